@@ -0,0 +1,810 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Inflater;
+
+// AsyncChatClient: non-blocking client library for the chat servers.
+//
+// One AsyncChatClient is one event loop thread with a Selector, and it can host many
+// Sessions (the console and Swing clients open one, a test harness thousands). A Session
+// speaks the binary frame protocol (see Frame), compressed if the server agrees and over TLS
+// if the client was given a Tls, and:
+//   - send() never blocks: the frame goes into the session's send buffer and the returned
+//     future completes once it is written to the socket. Any number of sends may be in
+//     flight; the loop writes them out together, one gathering write per turn.
+//   - when the connection drops, or the server goes silent (see Heartbeats), it reconnects
+//     with jittered exponential backoff. Sends queued meanwhile go out on the new connection.
+//   - the reconnect hello asks for the room the session was in and for the messages after
+//     the point up to which it has everything ("room=" and "since=", see Frame), so what was
+//     said in between is replayed. That is not simply the highest sequence number seen: the
+//     server numbers a message before fanning it out, so a lower one may still have been in
+//     flight. A gap counts as missing until REORDER_GRACE_MILLIS have passed without it being
+//     filled (sequence numbers are shared by all rooms, so most gaps are other rooms' messages).
+//   - with "ack" (see Delivery), every room message arrives with its sequence number and the
+//     session acknowledges them cumulatively, one ACK frame per ACK_BATCH messages or
+//     ACK_DELAY_MILLIS, whichever comes first. The reconnect hello names the session
+//     ("resume=") so the server sends again what was written but never acknowledged; the
+//     messages that arrive twice that way (or again in the replay) are dropped by sequence
+//     number. Without it (a server that does not offer "ack"), the sequence numbers come
+//     from the history footers ("--- end of history, seq N ---") and a replay may repeat a
+//     few messages.
+//
+// Listener callbacks and future completions run on the loop thread and must not block.
+public class AsyncChatClient {
+
+    // Settings of one session
+    public static class Config {
+        public final String host;
+        public final int port;
+        public final boolean deflate;            // ask for compressed frames
+        public final long reconnectMinMillis;    // first retry delay (before jitter)
+        public final long reconnectMaxMillis;    // the delay doubles up to this
+        public final int sendBufferBytes;        // send() fails beyond this many queued bytes
+        public final long connectTimeoutMillis;  // connect + handshake until the ID arrives
+        public final boolean ack;                // ask for sequenced, acknowledged room messages
+
+        public Config(String host, int port, boolean deflate, long reconnectMinMillis, long reconnectMaxMillis,
+                      int sendBufferBytes, long connectTimeoutMillis, boolean ack) {
+            this.host = host;
+            this.port = port;
+            this.deflate = deflate;
+            this.ack = ack;
+            this.reconnectMinMillis = reconnectMinMillis;
+            this.reconnectMaxMillis = reconnectMaxMillis;
+            this.sendBufferBytes = sendBufferBytes;
+            this.connectTimeoutMillis = connectTimeoutMillis;
+        }
+
+        // -Dchat.client.host=localhost -Dchat.client.port=5000 -Dchat.client.deflate=true
+        // -Dchat.client.reconnectMinMillis=250 -Dchat.client.reconnectMaxMillis=30000
+        // -Dchat.client.sendBufferBytes=1048576 -Dchat.client.connectTimeoutMillis=5000
+        // -Dchat.client.ack=true
+        public static Config fromSystemProperties() {
+            return new Config(
+                    System.getProperty("chat.client.host", "localhost"),
+                    Integer.getInteger("chat.client.port", 5000),
+                    Boolean.parseBoolean(System.getProperty("chat.client.deflate", "true")),
+                    Long.getLong("chat.client.reconnectMinMillis", 250L),
+                    Long.getLong("chat.client.reconnectMaxMillis", 30_000L),
+                    Integer.getInteger("chat.client.sendBufferBytes", 1 << 20),
+                    Long.getLong("chat.client.connectTimeoutMillis", 5_000L),
+                    Boolean.parseBoolean(System.getProperty("chat.client.ack", "true")));
+        }
+    }
+
+    // One message from the server, as a binary client receives it
+    public static final class Message {
+        public final byte type;       // Frame.CHAT, JOIN or LEAVE
+        public final int senderId;    // 0 = the server itself
+        public final String text;     // chat text, server notice, or the username (JOIN/LEAVE)
+        public final long seq;        // room message sequence number (0 = not sequenced)
+
+        Message(byte type, int senderId, String text, long seq) {
+            this.type = type;
+            this.senderId = senderId;
+            this.text = text;
+            this.seq = seq;
+        }
+
+        // How the console and Swing clients show it
+        @Override
+        public String toString() {
+            switch (type) {
+                case Frame.JOIN:
+                    return text + " joined the chat (Client " + senderId + ").";
+                case Frame.LEAVE:
+                    return text + " left the chat (Client " + senderId + ").";
+                default:
+                    return senderId == 0 ? text : "Client " + senderId + ": " + text;
+            }
+        }
+    }
+
+    public interface Listener {
+        // The server assigned an ID: the session is connected (again, if reconnected)
+        default void onConnected(Session session, int clientId, boolean reconnected) {}
+
+        void onMessage(Session session, Message message);
+
+        // The connection is gone; the next attempt is in retryMillis (-1: the session was closed)
+        default void onDisconnected(Session session, String reason, long retryMillis) {}
+    }
+
+    private static final int READ_BUFFER_BYTES = 64 * 1024;
+    private static final int MAX_GATHER = 64;
+
+    // Acknowledge after this many sequenced messages, or this long after the first unacked one
+    private static final int ACK_BATCH = 32;
+    private static final long ACK_DELAY_MILLIS = 100;
+
+    // Sequence numbers remembered to drop redelivered duplicates
+    private static final int SEEN_SEQS = 4096;
+
+    // A message numbered before one that already arrived can only be in flight this long
+    private static final long REORDER_GRACE_MILLIS = 1000;
+
+    // Server notices a session follows to know where to resume
+    private static final String HISTORY_FOOTER = "--- end of history, seq ";
+    private static final String ROOM_NOTICE = "✔ You are now in #";
+
+    private static final AsyncLogger log = AsyncLogger.shared();
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private volatile boolean running = true;
+
+    // Reconnect and connect timeouts; the tasks are handed to the loop
+    private final TimerWheel timers = new TimerWheel("Chat-Client-Timers", 50, 512);
+    private final Heartbeats heartbeats = new Heartbeats(Heartbeats.Config.fromSystemProperties());
+
+    private final Tls tls;                        // null = plain TCP
+    private TlsChannel.BufferPool tlsBuffers;     // created with the first TLS session (loop thread)
+
+    // Shared by all sessions of the loop (loop thread only)
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_BYTES);
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+
+    private final Set<Session> sessions = ConcurrentHashMap.newKeySet();
+
+    public AsyncChatClient(Tls tls) throws IOException {
+        this.tls = tls;
+        this.selector = Selector.open();
+        this.thread = new Thread(this::run, "Chat-Client-Loop");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Start a session; it connects in the background (see Session.connected())
+    public Session open(Config config, String username, Listener listener) {
+        Session s = new Session(config, username == null ? "" : username.trim(), listener);
+        sessions.add(s);
+        execute(s::connect);
+        return s;
+    }
+
+    // Close every session and stop the loop
+    public void close() {
+        for (Session s : sessions) s.close();
+        execute(() -> running = false);
+        heartbeats.stop();
+        timers.stop();
+    }
+
+    public int sessionCount() {
+        return sessions.size();
+    }
+
+    private void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread && wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                selector.select();
+                wakeupPending.set(false);
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        log.warn("Client task failed: ", e);
+                    }
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Session s = (Session) key.attachment();
+                    try {
+                        if (!key.isValid()) continue;
+                        if (key.isConnectable()) {
+                            s.onConnectable();
+                            continue;
+                        }
+                        if (key.isReadable()) s.onReadable();
+                        if (key.isValid() && key.isWritable()) s.flush();
+                    } catch (RuntimeException e) {
+                        log.warn("Client session failed: ", e);
+                    }
+                }
+            } catch (IOException e) {
+                log.warn("Client loop error: " + e.getMessage());
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) {}
+    }
+
+    // A chat message waiting in the send buffer
+    private static final class Pending {
+        final byte[] payload;
+        final CompletableFuture<Void> done;
+        ByteBuffer frame;   // encoded for the current connection; null = not yet (loop thread only)
+
+        Pending(byte[] payload, CompletableFuture<Void> done) {
+            this.payload = payload;
+            this.done = done;
+        }
+
+        int size() {
+            return Frame.HEADER_BYTES + payload.length;
+        }
+    }
+
+    ////////////////////////////////
+    // Session inner class        //
+    ////////////////////////////////
+    public final class Session implements Heartbeats.Peer {
+        private final Config config;
+        private final String username;
+        private final Listener listener;
+        private final CompletableFuture<Integer> connected = new CompletableFuture<>();
+
+        // Chat messages from any thread, written in order once the server assigned an ID
+        private final Queue<Pending> outbound = new ConcurrentLinkedQueue<>();
+        private final AtomicLong bufferedBytes = new AtomicLong();
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+        // Handshake and heartbeat frames, written before any chat message (loop thread only)
+        private final ArrayDeque<ByteBuffer> control = new ArrayDeque<>();
+
+        // The current connection (loop thread only)
+        private SocketChannel channel;
+        private SelectionKey key;
+        private TlsChannel tlsChannel;
+        private ByteBuffer partial;          // incomplete frame, null while idle
+        private Inflater inflater;
+        private boolean ready;               // ID assigned: chat messages may go out
+        private boolean deflate;             // the server accepted compressed frames
+        private boolean writePending;
+        private boolean retryScheduled;
+        private int attempt;                 // failed attempts since the last success
+        private TimerWheel.Timeout connectTimeout;
+        private Heartbeats.Monitor heartbeat;
+        private volatile int epoch;          // tells a stale eviction from a current one
+
+        // Acknowledged delivery (loop thread only)
+        private boolean acking;              // the server sends sequenced messages and wants ACKs
+        private String sessionToken;         // names the server-side window on reconnect
+        private long ackSeq;                 // last sequenced message received
+        private int unacked;                 // received since the last ACK frame
+        private boolean ackScheduled;
+        private final HashSet<Long> seen = new HashSet<>();
+        private final ArrayDeque<Long> seenOrder = new ArrayDeque<>();
+
+        // Resume point (loop thread only): every message up to safeSeq arrived, or the gap
+        // before it is too old to be a message in flight. 'ahead' holds the sequence numbers
+        // above it, with their arrival time (System.nanoTime()).
+        private long safeSeq;
+        private boolean haveBaseline;
+        private final TreeMap<Long, Long> ahead = new TreeMap<>();
+
+        // Readable from any thread
+        private volatile int clientId = -1;
+        private volatile String room;
+        private volatile long lastSeq;
+        private volatile int reconnects;
+        private volatile long duplicates;
+        private volatile boolean online;
+        private volatile boolean closed;
+
+        private Session(Config config, String username, Listener listener) {
+            this.config = config;
+            this.username = username;
+            this.listener = listener;
+        }
+
+        // Completes with the client ID of the first connection
+        public CompletableFuture<Integer> connected() {
+            return connected;
+        }
+
+        // Queue a chat message (or command); completes when it was written to the socket, or
+        // fails if the send buffer is full or the session closed. While disconnected, messages
+        // wait for the next connection.
+        public CompletableFuture<Void> send(String text) {
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            if (closed) {
+                done.completeExceptionally(new IOException("Session closed"));
+                return done;
+            }
+            Pending p = new Pending(text.getBytes(StandardCharsets.UTF_8), done);
+            if (bufferedBytes.addAndGet(p.size()) > config.sendBufferBytes) {
+                bufferedBytes.addAndGet(-p.size());
+                done.completeExceptionally(new IOException("Send buffer full"));
+                return done;
+            }
+            outbound.add(p);
+            if (flushScheduled.compareAndSet(false, true)) {
+                execute(() -> {
+                    flushScheduled.set(false);
+                    flush();
+                });
+            }
+            return done;
+        }
+
+        // Close for good; queued messages are not sent
+        public CompletableFuture<Void> close() {
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            closed = true;
+            execute(() -> {
+                shutdown("closed");
+                done.complete(null);
+            });
+            return done;
+        }
+
+        public int clientId() {
+            return clientId;
+        }
+
+        public String room() {
+            return room;
+        }
+
+        // Highest sequence number seen, on a message or in a history footer (0 = none yet)
+        public long lastSeq() {
+            return lastSeq;
+        }
+
+        public int reconnects() {
+            return reconnects;
+        }
+
+        // Sequenced messages that arrived again after a reconnect and were not passed on
+        public long duplicates() {
+            return duplicates;
+        }
+
+        public boolean isConnected() {
+            return online;
+        }
+
+        // Bytes of chat messages waiting to be written
+        public long bufferedBytes() {
+            return bufferedBytes.get();
+        }
+
+        private void connect() {
+            retryScheduled = false;
+            if (closed) return;
+            epoch++;
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                boolean now = channel.connect(new InetSocketAddress(config.host, config.port));
+                key = channel.register(selector, now ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+
+                // Give up on this attempt if the server has not assigned an ID in time
+                SocketChannel attemptChannel = channel;
+                connectTimeout = timers.schedule(() -> execute(() -> {
+                    if (channel == attemptChannel && !ready) drop("no answer from " + config.host + ":" + config.port);
+                }), config.connectTimeoutMillis, TimeUnit.MILLISECONDS);
+
+                if (now) startProtocol();
+            } catch (IOException e) {
+                drop("cannot connect: " + e.getMessage());
+            }
+        }
+
+        private void onConnectable() {
+            try {
+                if (!channel.finishConnect()) return;
+                startProtocol();
+            } catch (IOException e) {
+                drop("cannot connect: " + e.getMessage());
+            }
+        }
+
+        // Connected: TLS handshake (if any), then the hello line and the JOIN frame
+        private void startProtocol() throws IOException {
+            key.interestOps(SelectionKey.OP_READ);
+            if (tls != null) {
+                if (tlsBuffers == null) tlsBuffers = new TlsChannel.BufferPool(tls.newClientEngine(config.host, config.port), 64);
+                tlsChannel = new TlsChannel(channel, tls.newClientEngine(config.host, config.port), tlsBuffers, tls);
+                if (!tlsChannel.startHandshake()) setWritePending(true);
+            }
+            StringBuilder hello = new StringBuilder(Frame.HELLO_BINARY);
+            if (config.deflate) hello.append(' ').append(Frame.OPTION_DEFLATE);
+            if (config.ack) hello.append(' ').append(Frame.OPTION_ACK);
+            if (config.ack && sessionToken != null) hello.append(" resume=").append(sessionToken);
+            if (room != null) hello.append(" room=").append(room);
+            long resumeFrom = resumePoint();
+            if (resumeFrom > 0) hello.append(" since=").append(resumeFrom);
+            control.add(ByteBuffer.wrap((hello + "\n").getBytes(StandardCharsets.UTF_8)));
+            control.add(ByteBuffer.wrap(Frame.encode(Frame.JOIN, 0, username)));
+            flush();
+        }
+
+        private void onReadable() {
+            if (channel == null) return;
+            readBuffer.clear();
+            int n;
+            try {
+                if (tlsChannel == null) {
+                    n = channel.read(readBuffer);
+                } else {
+                    n = tlsChannel.read(readBuffer);
+                    if (tlsChannel.hasPendingOutput()) setWritePending(true);
+                    else if (tlsChannel.handshakeDone()) flush(); // the hello waited for the handshake
+                }
+            } catch (IOException e) {
+                drop("connection lost: " + e.getMessage());
+                return;
+            }
+            if (n < 0) {
+                drop("connection closed by the server");
+                return;
+            }
+            if (heartbeat != null) heartbeat.onRead(System.nanoTime());
+            if (n == 0) return;
+            readBuffer.flip();
+            try {
+                parse(readBuffer);
+            } catch (IOException e) {
+                drop("protocol error: " + e.getMessage());
+                return;
+            }
+            // More decrypted data than fit into the read buffer: continue on the next turn
+            if (tlsChannel != null && tlsChannel.moreAvailable()) {
+                TlsChannel current = tlsChannel;
+                execute(() -> {
+                    if (tlsChannel == current) onReadable();
+                });
+            }
+        }
+
+        // Handle every complete frame; keep an incomplete tail for the next read
+        private void parse(ByteBuffer buf) throws IOException {
+            ByteBuffer src = buf;
+            if (partial != null) {
+                if (partial.remaining() < buf.remaining()) {
+                    ByteBuffer bigger = ByteBuffer.allocate(Math.max(partial.capacity() * 2, partial.position() + buf.remaining()));
+                    partial.flip();
+                    bigger.put(partial);
+                    partial = bigger;
+                }
+                partial.put(buf).flip();
+                src = partial;
+            }
+            int total;
+            while (channel != null && (total = Frame.completeFrameLength(src, src.position(), src.limit())) > 0) {
+                int at = src.position();
+                src.position(at + total);
+                onFrame(src, at);
+            }
+            if (channel == null) return; // dropped while handling a frame
+            if (!src.hasRemaining()) {
+                partial = null;
+            } else if (src == partial) {
+                partial.compact();
+            } else {
+                partial = ByteBuffer.allocate(Math.max(1024, src.remaining()));
+                partial.put(src);
+            }
+        }
+
+        private void onFrame(ByteBuffer src, int at) throws IOException {
+            int offset = Frame.payloadOffset(at);
+            int length = Frame.payloadLength(src, at);
+            long seq = 0;
+            if ((Frame.flags(src, at) & Frame.FLAG_SEQ) != 0) {
+                if (length < 8) throw new IOException("sequenced frame without a sequence number");
+                seq = src.getLong(offset);
+                offset += 8;
+                length -= 8;
+            }
+            byte[] payload = new byte[length];
+            src.get(offset, payload);
+            if ((Frame.flags(src, at) & Frame.FLAG_DEFLATE) != 0) {
+                if (inflater == null) inflater = Compression.newInflater();
+                payload = Compression.shared().inflate(inflater, payload, 0, payload.length);
+            }
+            int senderId = Frame.senderId(src, at);
+            byte type = Frame.type(src, at);
+            switch (type) {
+                case Frame.ID_ASSIGN:
+                    onAssigned(senderId, new String(payload, StandardCharsets.UTF_8));
+                    break;
+                case Frame.PING:
+                    control.add(ByteBuffer.wrap(Frame.encode(Frame.PONG, 0, payload)));
+                    flush();
+                    break;
+                case Frame.CHAT:
+                case Frame.JOIN:
+                case Frame.LEAVE: {
+                    if (seq > 0 && !firstTime(seq)) {
+                        duplicates++;
+                        acknowledge(seq); // the server still holds it until acked
+                        break;
+                    }
+                    Message m = new Message(type, senderId, new String(payload, StandardCharsets.UTF_8), seq);
+                    if (senderId == 0 && type == Frame.CHAT) follow(m.text);
+                    if (seq > 0) received(seq);
+                    listener.onMessage(this, m);
+                    if (seq > 0) acknowledge(seq);
+                    break;
+                }
+                default:
+                    break; // PONG: the read already counted as a sign of life
+            }
+        }
+
+        private void onAssigned(int id, String options) {
+            boolean reconnected = connected.isDone();
+            clientId = id;
+            deflate = Frame.hasOption(options, Frame.OPTION_DEFLATE);
+            acking = Frame.hasOption(options, Frame.OPTION_ACK);
+            sessionToken = acking ? Frame.option(options, "session") : null;
+            ready = true;
+            online = true;
+            attempt = 0;
+            if (connectTimeout != null) connectTimeout.cancel();
+            connectTimeout = null;
+            heartbeat = heartbeats.watch(this, true);
+            if (reconnected) reconnects++;
+            listener.onConnected(this, id, reconnected);
+            connected.complete(id);
+            flush();
+        }
+
+        // A sequenced message arrived: move the resume point over what is now complete
+        private void received(long seq) {
+            if (seq > lastSeq) lastSeq = seq;
+            if (!haveBaseline) {
+                // The first message without a history footer before it: nothing older is owed
+                haveBaseline = true;
+                safeSeq = seq - 1;
+            }
+            if (seq <= safeSeq) return;
+            ahead.putIfAbsent(seq, System.nanoTime());
+            advance(System.nanoTime());
+        }
+
+        // A history replay delivered everything of the room up to seq
+        private void settle(long seq) {
+            if (seq > lastSeq) lastSeq = seq;
+            haveBaseline = true;
+            if (seq <= safeSeq) return;
+            safeSeq = seq;
+            ahead.headMap(seq, true).clear();
+            advance(System.nanoTime());
+        }
+
+        // Close gaps that were filled, and skip those older than the grace period (or too many)
+        private void advance(long now) {
+            long grace = TimeUnit.MILLISECONDS.toNanos(REORDER_GRACE_MILLIS);
+            while (!ahead.isEmpty()) {
+                Map.Entry<Long, Long> first = ahead.firstEntry();
+                boolean contiguous = first.getKey() == safeSeq + 1;
+                if (!contiguous && now - first.getValue() < grace && ahead.size() <= SEEN_SEQS) break;
+                safeSeq = first.getKey();
+                ahead.pollFirstEntry();
+            }
+        }
+
+        // "since=" for the next connection: nothing after it is known to be complete
+        private long resumePoint() {
+            return safeSeq;
+        }
+
+        // The connection dropped: gaps still open now stay open (their messages were lost with
+        // it, not reordered), so forget what arrived above them; the replay sends it again and
+        // the duplicates are dropped
+        private void freezeResumePoint() {
+            advance(System.nanoTime());
+            ahead.clear();
+        }
+
+        // Remember a sequence number; false if it was seen already (a redelivery)
+        private boolean firstTime(long seq) {
+            if (!seen.add(seq)) return false;
+            seenOrder.addLast(seq);
+            if (seenOrder.size() > SEEN_SEQS) seen.remove(seenOrder.pollFirst());
+            return true;
+        }
+
+        // Acknowledge in batches: the ACK for the last message received covers all before it
+        private void acknowledge(long seq) {
+            if (!acking) return;
+            ackSeq = seq;
+            if (++unacked >= ACK_BATCH) {
+                sendAck();
+            } else if (!ackScheduled) {
+                ackScheduled = true;
+                timers.schedule(() -> execute(this::sendAck), ACK_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void sendAck() {
+            ackScheduled = false;
+            if (!ready || unacked == 0) return;
+            unacked = 0;
+            control.add(ByteBuffer.wrap(Frame.encode(Frame.ACK, 0, Long.toString(ackSeq))));
+            flush();
+        }
+
+        // Remember where to resume from
+        private void follow(String notice) {
+            if (notice.startsWith(HISTORY_FOOTER)) {
+                int end = notice.indexOf(' ', HISTORY_FOOTER.length());
+                try {
+                    long seq = Long.parseLong(notice.substring(HISTORY_FOOTER.length(), end < 0 ? notice.length() : end));
+                    settle(seq);
+                } catch (NumberFormatException ignored) {}
+            } else if (notice.startsWith(ROOM_NOTICE)) {
+                room = notice.substring(ROOM_NOTICE.length()).trim();
+            }
+        }
+
+        // Write control frames, then (once ready) chat messages, as far as the socket takes them
+        private void flush() {
+            if (channel == null || !channel.isConnected()) return;
+            try {
+                if (tlsChannel != null) {
+                    if (!tlsChannel.flush()) {
+                        setWritePending(true);
+                        return;
+                    }
+                    if (!tlsChannel.handshakeDone()) {
+                        setWritePending(false);
+                        return;
+                    }
+                }
+                while (true) {
+                    int n = 0;
+                    for (ByteBuffer b : control) {
+                        if (n == gather.length) break;
+                        gather[n++] = b;
+                    }
+                    int controlCount = n;
+                    if (ready) {
+                        for (Pending p : outbound) {
+                            if (n == gather.length) break;
+                            if (p.frame == null) p.frame = ByteBuffer.wrap(encode(p.payload));
+                            gather[n++] = p.frame;
+                        }
+                    }
+                    if (n == 0) break;
+
+                    if (tlsChannel == null) channel.write(gather, 0, n);
+                    else tlsChannel.write(gather, 0, n);
+
+                    int done = 0;
+                    while (done < n && !gather[done].hasRemaining()) {
+                        if (done < controlCount) {
+                            control.poll();
+                        } else {
+                            Pending p = outbound.poll();
+                            bufferedBytes.addAndGet(-p.size());
+                            p.done.complete(null);
+                        }
+                        done++;
+                    }
+                    Arrays.fill(gather, 0, n, null);
+                    if (done < n || (tlsChannel != null && tlsChannel.hasPendingOutput())) {
+                        setWritePending(true);
+                        return;
+                    }
+                    if (channel == null) return; // a completion callback closed the session
+                }
+                setWritePending(false);
+            } catch (IOException e) {
+                drop("connection lost: " + e.getMessage());
+            }
+        }
+
+        private byte[] encode(byte[] payload) {
+            byte[] compressed = deflate ? Compression.shared().deflate(payload) : null;
+            return (compressed == null) ? Frame.encode(Frame.CHAT, 0, payload)
+                    : Frame.encode(Frame.CHAT, Frame.FLAG_DEFLATE, 0, compressed);
+        }
+
+        private void setWritePending(boolean pending) {
+            if (writePending == pending || key == null || !key.isValid()) return;
+            writePending = pending;
+            key.interestOps(SelectionKey.OP_READ | (pending ? SelectionKey.OP_WRITE : 0));
+        }
+
+        // Heartbeats.Peer: both called on the timer wheel thread
+        public void sendPing(long token) {
+            execute(() -> {
+                if (!ready) return;
+                control.add(ByteBuffer.wrap(Frame.encode(Frame.PING, 0, Long.toString(token))));
+                flush();
+            });
+        }
+
+        public void evict(String reason) {
+            int e = epoch;
+            execute(() -> {
+                if (epoch == e) drop("server not responding (" + reason + ")");
+            });
+        }
+
+        // The connection is gone: clean up and, unless closed, try again after a backoff
+        private void drop(String reason) {
+            if (channel != null) {
+                if (heartbeat != null) heartbeat.stop();
+                if (connectTimeout != null) connectTimeout.cancel();
+                if (tlsChannel != null) tlsChannel.close();
+                try {
+                    channel.close();
+                } catch (IOException ignored) {}
+            }
+            heartbeat = null;
+            connectTimeout = null;
+            tlsChannel = null;
+            channel = null;
+            key = null;
+            partial = null;
+            ready = false;
+            online = false;
+            writePending = false;
+            unacked = 0; // unacked messages come again with the resumed session
+            freezeResumePoint();
+            control.clear();
+            // A message cut off mid-frame is sent again whole, encoded for the next connection
+            for (Pending p : outbound) p.frame = null;
+
+            if (closed) {
+                listener.onDisconnected(this, reason, -1);
+                return;
+            }
+            if (retryScheduled) return;
+            retryScheduled = true;
+            long delay = backoffMillis(attempt++);
+            listener.onDisconnected(this, reason, delay);
+            timers.schedule(() -> execute(this::connect), delay, TimeUnit.MILLISECONDS);
+        }
+
+        // Exponential with "equal jitter": half the step is fixed, half random, so clients
+        // dropped together do not come back together
+        private long backoffMillis(int failures) {
+            long step = Math.min(config.reconnectMaxMillis, config.reconnectMinMillis << Math.min(failures, 20));
+            return step / 2 + ThreadLocalRandom.current().nextLong(step / 2 + 1);
+        }
+
+        private void shutdown(String reason) {
+            sessions.remove(this);
+            drop(reason); // closed is set, so this tells the listener once
+            Pending p;
+            while ((p = outbound.poll()) != null) {
+                bufferedBytes.addAndGet(-p.size());
+                p.done.completeExceptionally(new IOException("Session closed"));
+            }
+            connected.completeExceptionally(new IOException("Session closed"));
+        }
+    }
+}
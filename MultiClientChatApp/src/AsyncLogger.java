@@ -0,0 +1,147 @@
+import java.io.PrintStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// AsyncLogger: console logging that stays off the message path.
+//
+// A log call checks the level, then puts a small entry (level, time, text parts) on a
+// lock-free queue; the parts are only concatenated and formatted by one background writer,
+// which prints everything queued in a single write and flush. When the writer falls more
+// than QUEUE_LIMIT entries behind, new entries are dropped and counted instead of growing
+// the heap. Per-message logs go through sampled(), which keeps only every Nth call.
+//
+// -Dchat.logger.level=debug|info|warn|error (default info)
+// -Dchat.logger.sampleEvery=N                (default 1 = log every message)
+public final class AsyncLogger {
+
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    private static final int QUEUE_LIMIT = 1 << 16;
+
+    private static final AsyncLogger SHARED = new AsyncLogger(System.out,
+            Level.valueOf(System.getProperty("chat.logger.level", "info").trim().toUpperCase()),
+            Integer.getInteger("chat.logger.sampleEvery", 1));
+
+    // One queued line; 'arg' is appended to 'text' by the writer, not by the caller
+    private static final class Entry {
+        final Level level;
+        final long timeMillis;
+        final String text;
+        final Object arg;
+
+        Entry(Level level, long timeMillis, String text, Object arg) {
+            this.level = level;
+            this.timeMillis = timeMillis;
+            this.text = text;
+            this.arg = arg;
+        }
+    }
+
+    private final PrintStream out;
+    private final Level threshold;
+    private final int sampleEvery;
+
+    private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong sampleCounter = new AtomicLong();
+    private final TimestampCache clock = new TimestampCache("HH:mm:ss.SSS", 1);
+
+    private final Thread writer;
+    private volatile boolean writerParked;
+
+    public AsyncLogger(PrintStream out, Level threshold, int sampleEvery) {
+        this.out = out;
+        this.threshold = threshold;
+        this.sampleEvery = Math.max(1, sampleEvery);
+        this.writer = new Thread(this::writeLoop, "Async-Logger");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::drain, "Async-Logger-Flush"));
+    }
+
+    // The process-wide logger used by the servers
+    public static AsyncLogger shared() {
+        return SHARED;
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.compareTo(threshold) >= 0;
+    }
+
+    public void debug(String text) { log(Level.DEBUG, text, null); }
+    public void info(String text) { log(Level.INFO, text, null); }
+    public void warn(String text) { log(Level.WARN, text, null); }
+    public void error(String text) { log(Level.ERROR, text, null); }
+
+    public void debug(String text, Object arg) { log(Level.DEBUG, text, arg); }
+    public void info(String text, Object arg) { log(Level.INFO, text, arg); }
+    public void warn(String text, Object arg) { log(Level.WARN, text, arg); }
+    public void error(String text, Object arg) { log(Level.ERROR, text, arg); }
+
+    // For logs written once per chat message: only every sampleEvery-th call is kept
+    public void sampled(Level level, String text, Object arg) {
+        if (!isEnabled(level)) return;
+        if (sampleEvery > 1 && sampleCounter.getAndIncrement() % sampleEvery != 0) return;
+        log(level, text, arg);
+    }
+
+    public void log(Level level, String text, Object arg) {
+        if (!isEnabled(level)) return;
+        if (queued.incrementAndGet() > QUEUE_LIMIT) {
+            queued.decrementAndGet();
+            dropped.incrementAndGet();
+            return;
+        }
+        queue.offer(new Entry(level, System.currentTimeMillis(), text, arg));
+        if (writerParked) LockSupport.unpark(writer);
+    }
+
+    public long droppedCount() {
+        return dropped.get();
+    }
+
+    // ---- Writer thread ----
+
+    private final StringBuilder batch = new StringBuilder(8192);
+    private long reportedDrops;
+
+    private void writeLoop() {
+        while (true) {
+            if (queue.isEmpty()) {
+                writerParked = true;
+                if (queue.isEmpty()) LockSupport.parkNanos(100_000_000L);
+                writerParked = false;
+            }
+            drain();
+        }
+    }
+
+    // Print everything queued so far with one write
+    private synchronized void drain() {
+        Entry e;
+        int n = 0;
+        while ((e = queue.poll()) != null) {
+            n++;
+            batch.append(clock.format(e.timeMillis)).append(' ')
+                 .append(e.level == Level.INFO || e.level == Level.WARN ? e.level + " " : e.level).append(' ')
+                 .append(e.text);
+            if (e.arg != null) batch.append(e.arg);
+            batch.append('\n');
+        }
+        queued.addAndGet(-n);
+
+        long drops = dropped.get();
+        if (drops != reportedDrops) {
+            batch.append(clock.now()).append(" WARN  ").append(drops - reportedDrops).append(" log lines dropped\n");
+            reportedDrops = drops;
+        }
+        if (batch.length() > 0) {
+            out.print(batch);
+            out.flush();
+            batch.setLength(0);
+        }
+    }
+}
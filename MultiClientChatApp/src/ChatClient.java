@@ -1,5 +1,3 @@
-import java.io.*; // Import classes for input/output operations
-import java.net.*; // Import classes for networking (Socket)
 import java.util.Scanner; // Import Scanner class to read user input from console
 
 // ChatClient class: Connects to the server and sends/receives messages
@@ -11,51 +9,46 @@ public class ChatClient {
         // Create a Scanner object to read user input from the console
         Scanner scanner = new Scanner(System.in);
 
-        // Create a Socket connection to the server at localhost (same computer) on port 5000
-        // This establishes a TCP connection with the ChatServer
-        Socket socket = new Socket("localhost", 5000);
-
-        // Print confirmation message that connection was successful
-        System.out.println("✔ Connected to Chat Server!");
-
-        // Create BufferedReader to receive messages from the server
-        // Gets the input stream from socket and wraps it to read text lines
-        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-        // Create PrintWriter to send messages to the server
-        // Gets the output stream from socket, 'true' enables auto-flush
-        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-
-        // Create a new Thread to continuously read incoming messages from server
-        // This runs concurrently with the main thread (which handles user input)
-        Thread readerThread = new Thread(() -> {
-            try {
-                // Infinite loop to continuously read messages from server
-                while (true) {
-                    // Read one line of text from the server (blocks until data arrives)
-                    String response = in.readLine();
-
-                    // If the message is not null, print it to the console
-                    if (response != null) {
-                        System.out.println(response);
+        // Open a session to the server at localhost (same computer) on port 5000 (see
+        // AsyncChatClient.Config). The client library connects in the background, reconnects
+        // when the connection drops and catches up on what was missed in the meantime.
+        // (Encrypted with -Dchat.tls.enabled=true, for NioChatServer with TLS; see Tls)
+        AsyncChatClient client = new AsyncChatClient(Tls.client(Tls.Config.fromSystemProperties()));
+        AsyncChatClient.Session session = client.open(AsyncChatClient.Config.fromSystemProperties(), "",
+                new AsyncChatClient.Listener() {
+                    @Override
+                    public void onConnected(AsyncChatClient.Session s, int clientId, boolean reconnected) {
+                        // Print confirmation message that connection was successful
+                        System.out.println(reconnected ? "✔ Reconnected to Chat Server as Client " + clientId + "."
+                                : "✔ Connected to Chat Server as Client " + clientId + "!");
                     }
-                }
-            } catch (Exception e) {
-                // If connection is lost or error occurs, print disconnection message
-                System.out.println("⚠ Disconnected from server.");
-            }
-        });
-
-        // Start the reader thread (calls the run() method defined above)
-        readerThread.start();
-
-        // Main loop in the main thread: continuously read user input and send to server
-        while (true) {
+
+                    @Override
+                    public void onMessage(AsyncChatClient.Session s, AsyncChatClient.Message message) {
+                        // Print every message from the server to the console
+                        System.out.println(message);
+                    }
+
+                    @Override
+                    public void onDisconnected(AsyncChatClient.Session s, String reason, long retryMillis) {
+                        if (retryMillis >= 0) {
+                            System.out.println("⚠ Disconnected from server (" + reason + "), retrying in " + retryMillis + " ms.");
+                        }
+                    }
+                });
+
+        // Main loop in the main thread: continuously read user input and send to server.
+        // Lines typed while disconnected are sent after the reconnect.
+        while (scanner.hasNextLine()) {
             // Read a line of text typed by the user in the console
             String msg = scanner.nextLine();
 
-            // Send the message to the server (auto-flushed due to PrintWriter configuration)
-            out.println(msg);
+            // Queue the message; the library writes it out without blocking this thread
+            session.send(msg).exceptionally(e -> {
+                System.out.println("⚠ Not sent: " + e.getMessage());
+                return null;
+            });
         }
+        client.close();
     }
-}
\ No newline at end of file
+}
@@ -1,26 +1,21 @@
 import javax.swing.*;
 import java.awt.*;
-import java.awt.event.*;
-import java.io.*;
-import java.net.*;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.io.IOException;
 
 
 public class ChatClientGUI extends JFrame {
 
-    private JTextArea chatArea;
+    private ChatView chatArea;
     private JTextField messageField;
     private JButton sendButton;
     private JButton disconnectButton;
 
-    private Socket socket;
-    private BufferedReader in;
-    private PrintWriter out;
+    private AsyncChatClient client;
+    private AsyncChatClient.Session session;
 
     private String username;
-    private int clientId = -1; // will be assigned by server
-    private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss");
+    private volatile int clientId = -1; // will be assigned by server
+    private final TimestampCache timeFormat = new TimestampCache("HH:mm:ss", 1000);
 
     public ChatClientGUI() {
         setTitle("Chat Client");
@@ -45,14 +40,9 @@ public class ChatClientGUI extends JFrame {
         setLayout(new BorderLayout(8, 8));
 
         // Chat area (top)
-        chatArea = new JTextArea();
-        chatArea.setEditable(false);
-        chatArea.setLineWrap(true);
-        chatArea.setWrapStyleWord(true);
-        chatArea.setFont(new Font("Segoe UI", Font.PLAIN, 14));
-        JScrollPane scroll = new JScrollPane(chatArea);
-        scroll.setBorder(BorderFactory.createTitledBorder("Chat Messages"));
-        add(scroll, BorderLayout.CENTER);
+        chatArea = new ChatView(); // batched per frame, capped at chat.ui.maxLines
+        chatArea.setBorder(BorderFactory.createTitledBorder("Chat Messages"));
+        add(chatArea, BorderLayout.CENTER);
 
         // Message input (bottom)
         JPanel bottom = new JPanel(new BorderLayout(6, 6));
@@ -79,43 +69,36 @@ public class ChatClientGUI extends JFrame {
 
     private void connectToServer() {
         try {
-            socket = new Socket("localhost", 5000);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
-
-            // Send username as first message
-            out.println(username);
-
-            appendToChat("✔ Connected to server as " + username + ". Waiting for assigned Client ID...\n");
-
-            // Start reader thread to handle incoming messages (including ID assignment)
-            new Thread(new IncomingReader(), "Incoming-Thread").start();
-
+            // Plain TCP, or TLS with -Dchat.tls.enabled=true (see Tls). The session reconnects
+            // by itself and replays what was said while it was away (see AsyncChatClient).
+            client = new AsyncChatClient(Tls.client(Tls.Config.fromSystemProperties()));
+            session = client.open(AsyncChatClient.Config.fromSystemProperties(), username, new IncomingListener());
+            appendToChat("Connecting to server as " + username + "...\n");
         } catch (IOException e) {
-            JOptionPane.showMessageDialog(this, "Unable to connect to server: " + e.getMessage(),
+            JOptionPane.showMessageDialog(this, "Unable to start the client: " + e.getMessage(),
                     "Connection Error", JOptionPane.ERROR_MESSAGE);
             System.exit(0);
         }
     }
 
-    // Append text to chat area on EDT
+    // Queue text for the chat area; it is drawn with everything else that arrived in the same frame
     private void appendToChat(String text) {
-        SwingUtilities.invokeLater(() -> {
-            chatArea.append(text);
-            chatArea.setCaretPosition(chatArea.getDocument().getLength());
-        });
+        chatArea.append(text);
     }
 
     // Send a message typed by this client
     private void sendMessage() {
         String msg = messageField.getText().trim();
-        if (msg.isEmpty() || out == null) return;
+        if (msg.isEmpty() || session == null) return;
 
-        // Send to server
-        out.println(msg);
+        // Queue for the server; while reconnecting it goes out once the connection is back
+        session.send(msg).exceptionally(e -> {
+            appendToChat("⚠ Not sent: " + e.getMessage() + "\n");
+            return null;
+        });
 
         // Append locally because server will not echo sender's message
-        String timestamp = timeFormat.format(new Date());
+        String timestamp = timeFormat.now();
         String idPart = (clientId > 0) ? ("Client " + clientId) : "Me";
         appendToChat("[" + timestamp + "] " + idPart + " (" + username + "): " + msg + "\n");
 
@@ -125,46 +108,33 @@ public class ChatClientGUI extends JFrame {
 
     // Disconnect gracefully
     private void disconnect() {
-        try {
-            appendToChat("\n━━━━━━━━━━━━━━━━━━━━━━━━━━━\n");
-            appendToChat("✔ Disconnected from server.\n");
-            if (socket != null && !socket.isClosed()) socket.close();
-            messageField.setEnabled(false);
-            sendButton.setEnabled(false);
-            disconnectButton.setEnabled(false);
-        } catch (IOException e) {
-            appendToChat("⚠ Error while disconnecting: " + e.getMessage() + "\n");
-        }
+        appendToChat("\n━━━━━━━━━━━━━━━━━━━━━━━━━━━\n");
+        appendToChat("✔ Disconnected from server.\n");
+        if (session != null) session.close();
+        messageField.setEnabled(false);
+        sendButton.setEnabled(false);
+        disconnectButton.setEnabled(false);
     }
 
-    // Thread to read incoming messages from server
-    private class IncomingReader implements Runnable {
-        public void run() {
-            try {
-                String line;
-                while ((line = in.readLine()) != null) {
-                    // Special protocol: server sends "ID:<num>" to assign client id
-                    if (line.startsWith("ID:")) {
-                        try {
-                            clientId = Integer.parseInt(line.substring(3).trim());
-                            SwingUtilities.invokeLater(() -> setTitle("Chat Client - " + username + " (Client " + clientId + ")"));
-                            appendToChat("✔ Assigned Client ID: " + clientId + "\n");
-                        } catch (NumberFormatException ignored) {}
-                        continue;
-                    }
-
-                    // Normal chat message: just display
-                    appendToChat(line + "\n");
-                }
-            } catch (IOException e) {
-                appendToChat("\n⚠ Connection lost.\n");
-            } finally {
-                try { if (socket != null && !socket.isClosed()) socket.close(); } catch (IOException ignored) {}
-                SwingUtilities.invokeLater(() -> {
-                    messageField.setEnabled(false);
-                    sendButton.setEnabled(false);
-                    disconnectButton.setEnabled(false);
-                });
+    // Events from the session, on the client library's loop thread
+    private class IncomingListener implements AsyncChatClient.Listener {
+        @Override
+        public void onConnected(AsyncChatClient.Session s, int id, boolean reconnected) {
+            clientId = id;
+            SwingUtilities.invokeLater(() -> setTitle("Chat Client - " + username + " (Client " + id + ")"));
+            appendToChat(reconnected ? "✔ Reconnected as Client " + id + ".\n" : "✔ Assigned Client ID: " + id + "\n");
+        }
+
+        @Override
+        public void onMessage(AsyncChatClient.Session s, AsyncChatClient.Message message) {
+            // Server notices as they are, everything else with the time it arrived
+            appendToChat(message.senderId == 0 ? message + "\n" : "[" + timeFormat.now() + "] " + message + "\n");
+        }
+
+        @Override
+        public void onDisconnected(AsyncChatClient.Session s, String reason, long retryMillis) {
+            if (retryMillis >= 0) {
+                appendToChat("\n⚠ Connection lost (" + reason + "), retrying in " + retryMillis + " ms.\n");
             }
         }
     }
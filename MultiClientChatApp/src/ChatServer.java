@@ -1,12 +1,55 @@
 import java.io.*;   // For input/output streams
 import java.net.*;  // For networking (Socket, ServerSocket)
-import java.util.*; // For ArrayList to store connected clients
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService; // Runs client handlers (platform or virtual threads)
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 // ChatServer class: runs the server and handles multiple clients
 public class ChatServer {
 
-    // List to store output streams (writers) of all connected clients
-    private static ArrayList<PrintWriter> clientWriters = new ArrayList<>();
+    // All connected clients, keyed by client ID (lock-free join/leave/broadcast)
+    private static final ClientRegistry<ClientHandler> clients = new ClientRegistry<>();
+
+    // Token buckets on inbound messages: per client, per room and for the whole server
+    private static final RateLimiter rateLimiter = new RateLimiter(RateLimiter.Config.fromSystemProperties());
+
+    // Room name → members; messages only go to the sender's room
+    private static final RoomRegistry<ClientHandler> rooms = new RoomRegistry<>(rateLimiter::newRoomBucket);
+
+    // Capacity and overflow policy of each client's outbound queue
+    private static final OutboundQueue.Config queueConfig = OutboundQueue.Config.fromSystemProperties();
+
+    // Messages per flush and flushes per second of all writer tasks
+    private static final FlushStats flushStats = new FlushStats();
+
+    // Append-only history of routed messages on disk (null if disabled)
+    private static MessageLog messageLog;
+    private static final AtomicLong messageSeq = new AtomicLong();
+
+    // Full-text index over the same messages, for /search (null if disabled)
+    private static SearchIndex searchIndex;
+
+    // Unacked room messages of clients that acknowledge them, kept for redelivery
+    private static final Delivery delivery = new Delivery(Delivery.Config.fromSystemProperties());
+
+    // Connections, rates and fan-out latency (scraped on -Dchat.metrics.port)
+    private static final ServerMetrics metrics = new ServerMetrics(flushStats);
+
+    // Pings silent clients and evicts dead or idle ones (one timer wheel for all connections)
+    private static final Heartbeats heartbeats = new Heartbeats(Heartbeats.Config.fromSystemProperties());
+
+    // Runs client handlers and their writer tasks
+    private static ExecutorService handlers;
+
+    // Console output goes through the async logger (per-message lines are sampled)
+    private static final AsyncLogger log = AsyncLogger.shared();
+
+    // Other server processes this one shares clients and rooms with (null if not clustered)
+    private static ClusterNode cluster;
 
     // Counter to assign unique client IDs
     private static int clientCount = 0;
@@ -14,34 +57,184 @@ public class ChatServer {
     // Main method: starts the server
     public static void main(String[] args) throws Exception {
 
-        System.out.println(" Chat Server started on port 5000...");
+        // Choose platform or virtual threads for client handlers (--virtual-threads or -Dchat.threads=virtual)
+        HandlerThreads.Mode mode = HandlerThreads.modeFrom(args);
+        handlers = HandlerThreads.newExecutor(mode, "ClientHandler-");
+
+        // Client port (-Dchat.port=5000); several servers on one host need different ones
+        int port = Integer.getInteger("chat.port", 5000);
+        log.info("Chat Server started on port " + port + " (" + mode + " threads)...");
+
+        // Relay rooms and /msg to the other nodes (-Dchat.cluster.port, see ClusterNode)
+        ClusterNode.Config clusterConfig = ClusterNode.Config.fromSystemProperties();
+        if (clusterConfig.enabled()) {
+            cluster = new ClusterNode(clusterConfig, new ClusterListener(), ChatServer::localMembers);
+            clientCount = cluster.clientIdBase();
+            cluster.start();
+        }
+
+        // Persist routed messages (-Dchat.log.enabled=false turns it off)
+        if (Boolean.parseBoolean(System.getProperty("chat.log.enabled", "true"))) {
+            try {
+                messageLog = new MessageLog(MessageLog.Config.fromSystemProperties(port));
+                messageSeq.set(messageLog.lastSequence());
+                log.info("Message log opened, last sequence ", messageLog.lastSequence());
+                Runtime.getRuntime().addShutdownHook(new Thread(messageLog::close, "MessageLog-Close"));
+            } catch (IOException | IllegalArgumentException e) {
+                log.warn("Message log disabled: ", e.getMessage());
+            }
+        }
+
+        // Index routed messages for /search (-Dchat.search.enabled=false turns it off)
+        SearchIndex.Config searchConfig = SearchIndex.Config.fromSystemProperties();
+        if (searchConfig.enabled) {
+            searchIndex = new SearchIndex(searchConfig);
+            searchIndex.start(messageLog);
+        }
 
-        // Create server socket on port 5000
-        ServerSocket serverSocket = new ServerSocket(5000);
+        // Plain-text metrics on http://127.0.0.1:<-Dchat.metrics.port>/metrics (off unless set)
+        metrics.queueDepths(() -> {
+            Map<Integer, Integer> depths = new TreeMap<>();
+            for (ClientHandler c : clients.clients()) depths.put(c.clientId, c.queue == null ? 0 : c.queue.depth());
+            return depths;
+        });
+        metrics.rateLimiter(rateLimiter);
+        metrics.heartbeats(heartbeats);
+        metrics.compression(Compression.shared());
+        metrics.cluster(cluster);
+        metrics.search(searchIndex);
+        metrics.delivery(delivery);
+        try {
+            metrics.startEndpoint(ServerMetrics.portFromSystemProperties());
+        } catch (IOException e) {
+            log.warn("Metrics endpoint not started: ", e.getMessage());
+        }
+
+        // Print write-batching numbers every 10 seconds while there is traffic
+        Thread statsThread = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(10_000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                flushStats.sample();
+                metrics.sample();
+                if (flushStats.flushesPerSecond() > 0) {
+                    log.info("Flush stats: ", flushStats);
+                    log.info("Fan-out latency: ", metrics.recentLatency());
+                    log.info("Inbound ", rateLimiter);
+                    Compression compression = Compression.shared();
+                    if (compression.compressedCount() + compression.inflatedCount() > 0) log.info("Wire ", compression);
+                    if (messageLog != null) log.info("Message ", messageLog);
+                    if (searchIndex != null) log.info("Search ", searchIndex);
+                    if (delivery.ackCount() > 0) log.info("Acked ", delivery);
+                }
+                rooms.sampleRates();
+                if (clients.size() > 0) {
+                    log.info("Rooms: ", rooms.rooms());
+                    log.info("Connections: ", heartbeats);
+                    if (cluster != null) log.info("Cluster: ", cluster);
+                }
+            }
+        }, "Flush-Stats");
+        statsThread.setDaemon(true);
+        statsThread.start();
+
+        // Create server socket on the client port
+        ServerSocket serverSocket = new ServerSocket(port);
 
         // Loop forever to accept new clients
         while (true) {
 
             // Wait for a client to connect
             Socket clientSocket = serverSocket.accept();
+            clientSocket.setKeepAlive(true); // text clients get no pings (see Heartbeats)
+            metrics.onAccept();
 
-            System.out.println("✔ Client connected: " + clientSocket);
+            log.info("✔ Client connected: ", clientSocket);
 
-            // Create a thread to handle this client
+            // Create a handler for this client
             ClientHandler handler = new ClientHandler(clientSocket);
 
-            // Start the client handler thread
-            handler.start();
+            // Run the client handler on its own thread
+            handlers.execute(handler);
+        }
+    }
+
+    // Give a routed message the next sequence number, hand it to the log writer and the search
+    // indexer and remember it in the room's history. Only queue offers and an array store on
+    // the sender's thread. Returns the sequence number.
+    private static long recordMessage(String room, int senderId, String sender, String line, String text) {
+        long seq = messageSeq.incrementAndGet();
+        long now = System.currentTimeMillis();
+        MessageLog.Record record = new MessageLog.Record(seq, now, room, senderId, sender, text);
+        if (messageLog != null) messageLog.append(record);
+        if (searchIndex != null) searchIndex.add(record);
+        rooms.history(room).add(new HistoryRing.Entry(seq, now, senderId, line, text));
+        return seq;
+    }
+
+    // Rebuild a history entry from the disk log, formatted like the live message was
+    private static HistoryRing.Entry fromDisk(MessageLog.Record r) {
+        return new HistoryRing.Entry(r.seq, r.timeMillis, r.senderId, "Client " + r.senderId + ": " + r.text, r.text);
+    }
+
+    // This node's clients, for the membership snapshot sent to a (re)connected peer node
+    private static List<ClusterNode.Member> localMembers() {
+        List<ClusterNode.Member> members = new java.util.ArrayList<>();
+        for (ClientHandler c : clients.clients()) {
+            members.add(new ClusterNode.Member(cluster.nodeId(), c.clientId, c.username, c.room));
+        }
+        return members;
+    }
+
+    // A username is taken if a client of this node or of another node has it
+    private static boolean nameTakenElsewhere(String name) {
+        return cluster != null && cluster.find(name) != null;
+    }
+
+    // Messages relayed by other nodes, delivered to this node's clients like local ones
+    private static class ClusterListener implements ClusterNode.Listener {
+        public void onChat(String node, int senderId, String sender, String room, String line, String text) {
+            // Remembered even if nobody here is in that room now, for whoever joins it later
+            long seq = recordMessage(room, senderId, sender, line, text);
+            RoomRegistry.Room<ClientHandler> current = rooms.get(room);
+            if (current == null) return;
+            current.recordMessage();
+            EncodedMessage encoded = EncodedMessage.of(line, Frame.CHAT, senderId, text).sequenced(seq);
+            for (ClientHandler client : current.members()) {
+                client.queue.offer(encoded);
+            }
+            encoded.release();
+        }
+
+        public void onDirect(String node, int targetId, String line, String text) {
+            ClientHandler target = clients.get(targetId);
+            if (target == null) return;
+            EncodedMessage pm = EncodedMessage.of(line, Frame.CHAT, 0, text);
+            target.queue.offer(pm);
+            pm.release();
         }
     }
 
     // Inner class to handle communication with ONE client
-    public static class ClientHandler extends Thread {
+    public static class ClientHandler implements Runnable, Heartbeats.Peer {
 
         Socket socket;          // Client's socket connection
-        BufferedReader in;      // To read messages from client
-        PrintWriter out;        // To send messages to client
+        BufferedReader in;      // To read messages from a text client
+        FrameReader frames;     // To read messages from a binary client
+        boolean firstFrameHeld; // The frame after the hello was not a JOIN; read it as a message
+        OutputStream out;       // To send messages to client
+        OutboundQueue queue;    // Lines waiting to be written to this client
+        volatile String room = RoomRegistry.DEFAULT_ROOM; // Room this client talks in
+        volatile String username; // Optional name for /msg, set with /nick or the binary JOIN frame
         int clientId;           // Unique ID for each client
+        final TokenBucket limit = rateLimiter.newClientBucket(); // this client's message rate
+        boolean throttled;      // the client was told its messages are being dropped
+        Heartbeats.Monitor heartbeat; // liveness of this connection (null if heartbeats are off)
+        Delivery.Window window; // sent but unacked room messages (null if the client does not ack)
+        long resumeAfter = -1;  // replay from this seq instead of the recent history ("since=" in the hello)
 
         // Constructor assigns socket and auto-increments client ID
         public ClientHandler(Socket socket) {
@@ -52,65 +245,404 @@ public class ChatServer {
                 clientId = ++clientCount;
             }
 
-            System.out.println("Assigned Client ID: " + clientId);
+            log.info("Assigned Client ID: ", clientId);
         }
 
         public void run() {
             try {
-                // Create reader to receive messages
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
                 // Create writer to send messages
-                out = new PrintWriter(socket.getOutputStream(), true);
+                out = new BufferedOutputStream(socket.getOutputStream());
 
-                // Add this client's writer to global list (thread-safe)
-                synchronized (clientWriters) {
-                    clientWriters.add(out);
+                // Outbound queue drained by its own writer task; a full queue disconnects or drops
+                queue = new OutboundQueue(queueConfig, out, flushStats, () -> {
+                    log.warn("Client " + clientId + " is too slow, disconnecting.");
+                    try {
+                        socket.close();
+                    } catch (IOException ignored) {}
+                });
+
+                // Binary clients say hello right after connecting; anyone else is a text client
+                BufferedInputStream rawIn = new BufferedInputStream(socket.getInputStream());
+                String hello = Frame.detectBinaryHello(socket, rawIn, 200);
+                if (hello != null) queue.setBinary(true);
+                // The writer runs before anything is queued, so a resumed window cannot
+                // overflow a queue nobody drains yet
+                handlers.execute(queue);
+                if (hello != null) {
+                    frames = new FrameReader(rawIn);
+                    boolean deflate = Frame.wantsDeflate(hello) && Compression.shared().enabled();
+
+                    // A reconnecting client asks for its room back and for what it missed there
+                    String wantedRoom = Frame.helloOption(hello, "room");
+                    if (wantedRoom != null && !RoomRegistry.normalize(wantedRoom).isEmpty()) {
+                        room = RoomRegistry.normalize(wantedRoom);
+                    }
+                    resumeAfter = parseSeq(Frame.helloOption(hello, "since"));
+
+                    // The JOIN frame carries an optional username; a peer that never sends it times out
+                    socket.setSoTimeout(heartbeats.handshakeTimeoutMillis());
+                    if (!frames.next()) return;
+                    socket.setSoTimeout(0);
+                    if (frames.type != Frame.JOIN) {
+                        firstFrameHeld = true;
+                    } else if (frames.payloadLength > 0) {
+                        username = ClientRegistry.clipName(frames.payloadText());
+                    }
+                    // Acknowledged delivery: the window the client's previous connection left
+                    // behind (resume=<token>), or a new one
+                    Delivery.Window resumed = null;
+                    if (Frame.wantsAck(hello) && delivery.enabled()) {
+                        resumed = delivery.resume(Frame.helloOption(hello, "resume"));
+                        window = (resumed != null) ? resumed : delivery.open();
+                    }
+
+                    // Accepted options go back with the ID; compressed frames only after that
+                    String options = (deflate ? Frame.OPTION_DEFLATE : "")
+                            + (window != null ? " " + Frame.OPTION_ACK + " session=" + window.token : "");
+                    EncodedMessage id = EncodedMessage.control(Frame.ID_ASSIGN, clientId, options.trim().getBytes(StandardCharsets.UTF_8));
+                    queue.offer(id);
+                    id.release();
+                    queue.setDeflate(deflate);
+                    queue.setWindow(window);
+
+                    // What the previous connection did not get acknowledged goes first
+                    if (resumed != null) {
+                        int n = delivery.redeliver(resumed, queue);
+                        log.info("Client " + clientId + " resumed a session, " + n + " messages sent again.");
+                    }
+                } else {
+                    // Create reader to receive messages
+                    in = new BufferedReader(new InputStreamReader(rawIn));
+                }
+
+                // Register this client (thread-safe, no global lock) and put it in the default room
+                clients.add(clientId, this);
+                metrics.onConnect();
+                heartbeat = heartbeats.watch(this, frames != null);
+                rooms.join(room, this);
+                if (username != null && (nameTakenElsewhere(username) || !clients.bindName(username, this))) {
+                    username = null; // taken by someone else
                 }
+                if (cluster != null) cluster.publishJoin(clientId, username, room);
 
                 // Inform server that this client joined
-                System.out.println("Client " + clientId + " joined the chat.");
+                log.info("Client " + clientId + " joined the chat.");
+
+                // Catch up on what the room said before this client arrived (or while it was away)
+                if (resumeAfter >= 0) {
+                    if (!RoomRegistry.DEFAULT_ROOM.equals(room)) reply("✔ You are now in #" + room);
+                    replaySince(resumeAfter);
+                } else {
+                    replayRecent();
+                }
 
                 // Listen for messages from client
                 while (true) {
 
                     // Read one message
-                    String message = in.readLine();
+                    String message = nextMessage();
 
                     // If null → client disconnected
                     if (message == null) break;
+                    if (heartbeat != null) heartbeat.onMessage(System.nanoTime());
+
+                    // Over the rate limit → dropped, delayed or disconnected (see RateLimiter)
+                    if (!admit(message)) {
+                        if (socket.isClosed()) break; // disconnected for flooding
+                        continue;
+                    }
+                    long receivedNanos = System.nanoTime();
+
+                    // Room commands are answered to this client only
+                    if (message.startsWith("/") && handleCommand(message)) continue;
 
                     // Format message with client ID
                     String finalMessage = "Client " + clientId + ": " + message;
 
                     // Show on server console
-                    System.out.println("Message Received → " + finalMessage);
+                    log.sampled(AsyncLogger.Level.INFO, "Message Received → ", finalMessage);
+
+                    // Encode once; every recipient queue shares the same bytes
+                    // (text clients get the formatted line, binary clients a CHAT frame)
+                    EncodedMessage encoded = EncodedMessage.of(finalMessage, Frame.CHAT, clientId, message);
+                    metrics.onInbound(encoded.payloadLength() + (frames == null ? 1 : Frame.HEADER_BYTES));
+                    metrics.track(encoded, receivedNanos);
 
-                    // Broadcast to all OTHER clients
-                    for (PrintWriter writer : clientWriters) {
+                    // Broadcast to all OTHER clients in the same room (only queued here, written by their writer tasks)
+                    RoomRegistry.Room<ClientHandler> current = rooms.get(room);
+                    if (current == null) current = rooms.join(room, this);
+                    current.recordMessage();
+                    encoded.sequenced(recordMessage(room, clientId, username == null ? "Client " + clientId : username, finalMessage, message));
+                    for (ClientHandler client : current.members()) {
 
                         // Don't send back to the sender
-                        if (writer != out) {
-                            writer.println(finalMessage);
+                        if (client != this) {
+                            client.queue.offer(encoded);
                         }
                     }
+                    encoded.release();
+
+                    // Once per other node, which fans it out to its own members of the room
+                    if (cluster != null) {
+                        cluster.publishChat(clientId, username == null ? "Client " + clientId : username, room, finalMessage, message);
+                    }
                 }
 
             } catch (Exception e) {
-                System.out.println("⚠ Client " + clientId + " disconnected.");
+                log.warn("Client " + clientId + " disconnected.");
 
             } finally {
                 try {
                     socket.close();  // Close this client's socket
                 } catch (Exception e) {}
 
-                // Remove client writer from list
-                synchronized (clientWriters) {
-                    clientWriters.remove(out);
+                // Unregister client and stop its writer task and heartbeat
+                if (heartbeat != null) heartbeat.stop();
+                if (clients.remove(clientId, this)) metrics.onDisconnect();
+                clients.unbindName(username, this);
+                rooms.leave(room, this);
+                if (queue != null) queue.close();
+                if (window != null) delivery.park(window); // unacked messages wait for a resume
+                if (cluster != null) cluster.publishLeave(clientId);
+
+                log.info("Client " + clientId + " removed from chat.");
+            }
+        }
+
+        // Apply the rate limits to one inbound line; false if it must not be handled.
+        // Commands count against the client and the server, chat lines also against the room.
+        private boolean admit(String message) {
+            RoomRegistry.Room<ClientHandler> current = message.startsWith("/") ? null : rooms.get(room);
+            long verdict = rateLimiter.admit(limit, current == null ? null : current.limit);
+            if (verdict == RateLimiter.DISCONNECT) {
+                log.warn("Client " + clientId + " exceeded the rate limit, disconnecting.");
+                try {
+                    socket.close();  // the read loop sees the closed socket and ends
+                } catch (IOException ignored) {}
+                return false;
+            }
+            if (verdict == RateLimiter.DROP) {
+                // Say it once per burst, not once per dropped line
+                if (!throttled) reply("⚠ You are sending too fast; messages are being dropped.");
+                throttled = true;
+                return false;
+            }
+            throttled = false;
+
+            // DELAY: this reader stops until the token is due, so the client's socket buffer
+            // fills up and TCP slows the sender down
+            if (verdict > 0) LockSupport.parkNanos(verdict);
+            return true;
+        }
+
+        // Commands: /join <room>, /leave (back to the default room), /rooms,
+        // /msg <user|id> <text> (private message), /nick <name>, /since <seq> (missed history)
+        // and /search <words> [filters] (see SearchIndex).
+        // Returns false if the line is not one of them, so it is sent as a normal message.
+        private boolean handleCommand(String message) {
+            String[] parts = message.trim().split("\\s+", 2);
+            switch (parts[0]) {
+                case "/msg": {
+                    String[] args = (parts.length < 2) ? new String[0] : parts[1].split("\\s+", 2);
+                    if (args.length < 2) {
+                        reply("Usage: /msg <user|id> <text>");
+                        return true;
+                    }
+                    // O(1) lookup by name or ID; only the recipient's queue is touched
+                    // A client of another node gets it through that node only
+                    ClientHandler target = clients.find(args[0]);
+                    String from = (username == null) ? "Client " + clientId : "Client " + clientId + " (" + username + ")";
+                    if (target == null) {
+                        boolean remote = cluster != null && cluster.sendDirect(args[0], "[PM] " + from + ": " + args[1], "[PM] " + args[1]);
+                        if (!remote) reply("⚠ No such user: " + args[0]);
+                    } else {
+                        EncodedMessage pm = EncodedMessage.of("[PM] " + from + ": " + args[1], Frame.CHAT, clientId, "[PM] " + args[1]);
+                        target.queue.offer(pm);
+                        pm.release();
+                    }
+                    return true;
+                }
+                case "/nick": {
+                    String newName = (parts.length < 2) ? "" : ClientRegistry.clipName(parts[1]);
+                    if (newName.isEmpty()) {
+                        reply("Usage: /nick <name>");
+                    } else if (!nameTakenElsewhere(newName) && clients.rename(username, newName, this)) {
+                        username = newName;
+                        if (cluster != null) cluster.publishJoin(clientId, username, room);
+                        reply("✔ You are now known as " + username);
+                    } else {
+                        reply("⚠ Name already taken: " + newName);
+                    }
+                    return true;
+                }
+                case "/join":
+                    if (parts.length < 2 || RoomRegistry.normalize(parts[1]).isEmpty()) {
+                        reply("Usage: /join <room>");
+                    } else {
+                        moveTo(RoomRegistry.normalize(parts[1]));
+                    }
+                    return true;
+                case "/leave":
+                    moveTo(RoomRegistry.DEFAULT_ROOM);
+                    return true;
+                case "/search": {
+                    if (searchIndex == null) {
+                        reply("⚠ Search is turned off on this server.");
+                        return true;
+                    }
+                    SearchIndex.Result found;
+                    try {
+                        found = searchIndex.search(SearchIndex.Query.parse(parts.length < 2 ? "" : parts[1]));
+                    } catch (IllegalArgumentException e) {
+                        reply(SearchIndex.USAGE + " (" + e.getMessage() + ")");
+                        return true;
+                    }
+                    reply(found.summary());
+                    for (SearchIndex.Hit hit : found.hits) reply(hit.toString());
+                    return true;
                 }
+                case "/rooms":
+                    for (RoomRegistry.Room<ClientHandler> r : rooms.rooms()) {
+                        int remote = (cluster == null) ? 0 : cluster.remoteMembersIn(r.name);
+                        reply(remote == 0 ? r.toString() : r + " +" + remote + " on other nodes");
+                    }
+                    return true;
+                case "/since": {
+                    long after = parseSeq(parts.length < 2 ? null : parts[1]);
+                    if (after < 0) {
+                        reply("Usage: /since <seq>");
+                    } else {
+                        replaySince(after);
+                    }
+                    return true;
+                }
+                default:
+                    return false;
+            }
+        }
+
+        private void moveTo(String target) {
+            if (!target.equals(room)) {
+                rooms.leave(room, this);
+                room = target;
+                rooms.join(room, this);
+                if (cluster != null) cluster.publishJoin(clientId, username, room);
+                log.info("Client " + clientId + " moved to #" + room + ".");
+                reply("✔ You are now in #" + room);
+                replayRecent();
+                return;
+            }
+            reply("✔ You are now in #" + room);
+        }
 
-                System.out.println("Client " + clientId + " removed from chat.");
+        // Replay the current room's ring buffer (on connect and after /join)
+        private void replayRecent() {
+            List<HistoryRing.Entry> recent = rooms.history(room).snapshot(0, HistoryRing.DEFAULT_CAPACITY);
+            if (!recent.isEmpty()) {
+                replay(recent, recent.size() + " earlier messages in #" + room);
             }
         }
+
+        // Replay the current room's messages after a sequence number (/since, resume on reconnect).
+        // Older than the ring → the disk log fills the gap.
+        private void replaySince(long after) {
+            List<HistoryRing.Entry> missed = rooms.history(room)
+                    .since(after, HistoryRing.MAX_REPLAY, messageLog, room, ChatServer::fromDisk);
+            if (missed.isEmpty()) {
+                reply("--- no messages in #" + room + " after seq " + after + " ---");
+            } else {
+                replay(missed, missed.size() + " messages in #" + room + " after seq " + after);
+            }
+        }
+
+        // A sequence number from /since or the hello; -1 if missing or not a number
+        private long parseSeq(String text) {
+            try {
+                return (text == null) ? -1 : Math.max(0, Long.parseLong(text.trim()));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        // Send history entries between a header and a footer carrying the last sequence
+        // number, which the client can pass to /since when it reconnects
+        private void replay(List<HistoryRing.Entry> entries, String header) {
+            reply("--- " + header + " ---");
+            for (HistoryRing.Entry e : entries) {
+                EncodedMessage m = e.encode();
+                queue.offer(m);
+                m.release();
+            }
+            reply("--- end of history, seq " + entries.get(entries.size() - 1).seq + " ---");
+        }
+
+        // Send a line to this client only
+        private void reply(String line) {
+            EncodedMessage m = EncodedMessage.of(line);
+            queue.offer(m);
+            m.release();
+        }
+
+        // Next chat message from the client, or null when it disconnected.
+        // Heartbeats (text "#PING"/"#PONG" lines, PING/PONG frames) are answered here and only
+        // count as a sign of life; other control frames are ignored.
+        private String nextMessage() throws IOException {
+            if (frames == null) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (!line.startsWith("#")) return line;
+                    String pong = Heartbeats.pongFor(line);
+                    if (pong != null) {
+                        reply(pong);
+                    } else if (!Heartbeats.isPong(line)) {
+                        return line;
+                    }
+                    if (heartbeat != null) heartbeat.onRead(System.nanoTime());
+                }
+                return null;
+            }
+
+            // A first frame that was not a JOIN is still current in the reader
+            boolean held = firstFrameHeld;
+            firstFrameHeld = false;
+            while (held || frames.next()) {
+                held = false;
+                if (frames.type == Frame.CHAT) return frames.payloadText();
+                if (heartbeat != null) heartbeat.onRead(System.nanoTime());
+                if (frames.type == Frame.ACK) {
+                    onAck(frames.payloadText());
+                } else if (frames.type == Frame.PING) {
+                    EncodedMessage pong = EncodedMessage.control(Frame.PONG, 0, frames.payloadCopy());
+                    queue.offer(pong);
+                    pong.release();
+                }
+            }
+            return null;
+        }
+
+        // Cumulative acknowledgement: everything up to the message with this seq has arrived
+        private void onAck(String payload) {
+            if (window == null) return;
+            try {
+                window.ack(Long.parseLong(payload.trim()));
+            } catch (NumberFormatException ignored) {
+                // not a sequence number; nothing to release
+            }
+        }
+
+        // Heartbeats.Peer: called on the timer wheel thread
+        public void sendPing(long token) {
+            EncodedMessage ping = EncodedMessage.of(Heartbeats.PING_PREFIX + " " + token, Frame.PING, 0, Long.toString(token));
+            queue.offer(ping);
+            ping.release();
+        }
+
+        // Closing the socket wakes the blocked read, and the handler cleans up as usual
+        public void evict(String reason) {
+            log.warn("Client " + clientId + ": " + reason + ", disconnecting.");
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
     }
 }
@@ -3,35 +3,73 @@ import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
 import java.net.*;
-import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 
 public class ChatServerGUI extends JFrame {
 
     // UI components
-    private JTextArea chatArea;                     // shows all messages
+    private ChatView chatArea;                      // shows all messages
     private JTextField serverMessageField;          // text field for sending server messages
     private JButton sendButton;                     // send server message
-    private DefaultListModel<String> clientsModel;  // models the JList of clients
-    private JList<String> clientsList;              // shows "Client <id> (username)"
+    private DefaultListModel<ClientHandler> clientsModel; // models the JList of clients
+    private JList<ClientHandler> clientsList;       // shows "Client <id> (username)"
     private JButton disconnectButton;               // disconnect selected client
+    private JLabel flushLabel;                      // write batching numbers
+    private JComboBox<String> roomTarget;           // where server messages go: all rooms or one
+    private DefaultListModel<String> roomsModel;    // room stats shown under the clients
+    private final Map<String, JLabel> statsLabels = new LinkedHashMap<>(); // live stats panel values
+    private JTextField searchField;                 // query for the search index
+    private JDialog searchDialog;                   // search results, reused between searches
+    private JLabel searchSummary;                   // "n of m matches" above the results
+    private DefaultListModel<String> searchModel;   // one line per hit
 
     // Networking
     private ServerSocket serverSocket;
-    private final List<ClientHandler> clientHandlers = Collections.synchronizedList(new ArrayList<>());
+    private final ExecutorService handlerExecutor;
+    private final ClientRegistry<ClientHandler> clients = new ClientRegistry<>();
+    private final OutboundQueue.Config queueConfig = OutboundQueue.Config.fromSystemProperties();
+    private final FlushStats flushStats = new FlushStats();
+    private final RateLimiter rateLimiter = new RateLimiter(RateLimiter.Config.fromSystemProperties());
+    private final RoomRegistry<ClientHandler> rooms = new RoomRegistry<>(rateLimiter::newRoomBucket);
+    private final ServerMetrics metrics = new ServerMetrics(flushStats);
+    private final Heartbeats heartbeats = new Heartbeats(Heartbeats.Config.fromSystemProperties());
+
+    // Append-only history of routed messages on disk (null if it could not be opened)
+    private MessageLog messageLog;
+    private final AtomicLong messageSeq = new AtomicLong();
+
+    // Full-text index over the same messages, for /search and the search box (null if disabled)
+    private SearchIndex searchIndex;
+
+    // Unacked room messages of clients that acknowledge them, kept for redelivery
+    private final Delivery delivery = new Delivery(Delivery.Config.fromSystemProperties());
+
+    private static final String ALL_ROOMS = "All rooms";
 
     // ID counter
     private int clientCount = 0;
 
-    // Timestamp formatter
-    private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss");
+    // Timestamp formatter: thread-safe, shared by all handler threads, cached per second
+    private final TimestampCache timeFormat = new TimestampCache("HH:mm:ss", 1000);
 
     public ChatServerGUI(int port) {
+        this(port, HandlerThreads.Mode.PLATFORM);
+    }
+
+    public ChatServerGUI(int port, HandlerThreads.Mode mode) {
         super("Chat Server - Option B");
+        handlerExecutor = HandlerThreads.newExecutor(mode, "ClientHandler-");
         initUI();
-        startServer(port);
+        openMessageLog(port);
+        openSearchIndex();
+        startMetrics();
+        startServer(port, mode);
+        new javax.swing.Timer(1000, e -> refreshStats()).start(); // refresh queue depth and flush numbers
         setSize(700, 600);
         setLocationRelativeTo(null);
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
@@ -42,22 +80,34 @@ public class ChatServerGUI extends JFrame {
     private void initUI() {
         setLayout(new BorderLayout(8, 8));
 
-        // ---- Chat area (top) ----
-        chatArea = new JTextArea();
-        chatArea.setEditable(false);
-        chatArea.setLineWrap(true);
-        chatArea.setWrapStyleWord(true);
-        chatArea.setFont(new Font("Segoe UI", Font.PLAIN, 14));
-        JScrollPane chatScroll = new JScrollPane(chatArea);
-        chatScroll.setBorder(BorderFactory.createTitledBorder("Chat Messages"));
-        add(chatScroll, BorderLayout.CENTER);
-
-        // ---- Server message box (middle) ----
+        // ---- Search box (top) ----
+        JPanel searchPanel = new JPanel(new BorderLayout(6, 6));
+        searchField = new JTextField();
+        searchField.setToolTipText(SearchIndex.USAGE);
+        JButton searchButton = new JButton("Search History");
+        searchPanel.add(new JLabel("Search:"), BorderLayout.WEST);
+        searchPanel.add(searchField, BorderLayout.CENTER);
+        searchPanel.add(searchButton, BorderLayout.EAST);
+        add(searchPanel, BorderLayout.NORTH);
+
+        searchButton.addActionListener(e -> searchHistory());
+        searchField.addActionListener(e -> searchHistory());
+
+        // ---- Chat area (middle) ----
+        chatArea = new ChatView(); // batched per frame, capped at chat.ui.maxLines
+        chatArea.setBorder(BorderFactory.createTitledBorder("Chat Messages"));
+        add(chatArea, BorderLayout.CENTER);
+
+        // ---- Server message box (bottom) ----
         JPanel sendPanel = new JPanel(new BorderLayout(6, 6));
         serverMessageField = new JTextField();
         sendButton = new JButton("Send (Broadcast)");
+        roomTarget = new JComboBox<>(new String[]{ALL_ROOMS});
+        JPanel sendButtons = new JPanel(new FlowLayout(FlowLayout.RIGHT, 6, 0));
+        sendButtons.add(roomTarget);
+        sendButtons.add(sendButton);
         sendPanel.add(serverMessageField, BorderLayout.CENTER);
-        sendPanel.add(sendButton, BorderLayout.EAST);
+        sendPanel.add(sendButtons, BorderLayout.EAST);
         sendPanel.setBorder(BorderFactory.createEmptyBorder(0, 10, 0, 10));
         add(sendPanel, BorderLayout.SOUTH);
 
@@ -65,7 +115,7 @@ public class ChatServerGUI extends JFrame {
         sendButton.addActionListener(e -> sendServerMessage());
         serverMessageField.addActionListener(e -> sendServerMessage());
 
-        // ---- Connected clients list (bottom) ----
+        // ---- Connected clients list (right) ----
         clientsModel = new DefaultListModel<>();
         clientsList = new JList<>(clientsModel);
         clientsList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
@@ -76,9 +126,41 @@ public class ChatServerGUI extends JFrame {
         disconnectButton = new JButton("Disconnect Selected");
         disconnectButton.addActionListener(e -> disconnectSelectedClient());
 
+        flushLabel = new JLabel(" ");
+        flushLabel.setFont(flushLabel.getFont().deriveFont(11f));
+
+        // ---- Live stats (refreshed every second) ----
+        JPanel statsPanel = new JPanel(new GridLayout(0, 2, 4, 0));
+        statsPanel.setBorder(BorderFactory.createTitledBorder("Live Stats"));
+        for (String name : new String[]{"Connections", "Accepts/s", "In msg/s", "In KB/s", "Out msg/s", "Out KB/s",
+                "Max queue", "Rate limited", "Evicted", "Compression", "Unacked", "Latency p50", "Latency p99", "Latency p99.9", "Latency max"}) {
+            JLabel label = new JLabel(name);
+            JLabel value = new JLabel("-", SwingConstants.RIGHT);
+            label.setFont(label.getFont().deriveFont(11f));
+            value.setFont(value.getFont().deriveFont(11f));
+            statsPanel.add(label);
+            statsPanel.add(value);
+            statsLabels.put(name, value);
+        }
+
+        JPanel clientsBottom = new JPanel(new BorderLayout(4, 4));
+        clientsBottom.add(disconnectButton, BorderLayout.NORTH);
+        clientsBottom.add(statsPanel, BorderLayout.CENTER);
+        clientsBottom.add(flushLabel, BorderLayout.SOUTH);
+
+        // ---- Rooms with member counts and message rates ----
+        roomsModel = new DefaultListModel<>();
+        JList<String> roomsList = new JList<>(roomsModel);
+        JScrollPane roomsScroll = new JScrollPane(roomsList);
+        roomsScroll.setBorder(BorderFactory.createTitledBorder("Rooms"));
+
+        JPanel lists = new JPanel(new GridLayout(2, 1, 6, 6));
+        lists.add(clientsScroll);
+        lists.add(roomsScroll);
+
         JPanel rightPanel = new JPanel(new BorderLayout(6, 6));
-        rightPanel.add(clientsScroll, BorderLayout.CENTER);
-        rightPanel.add(disconnectButton, BorderLayout.SOUTH);
+        rightPanel.add(lists, BorderLayout.CENTER);
+        rightPanel.add(clientsBottom, BorderLayout.SOUTH);
         rightPanel.setPreferredSize(new Dimension(220, 0));
 
         add(rightPanel, BorderLayout.EAST);
@@ -88,16 +170,18 @@ public class ChatServerGUI extends JFrame {
     }
 
     // Start server accept thread
-    private void startServer(int port) {
+    private void startServer(int port, HandlerThreads.Mode mode) {
         new Thread(() -> {
             try {
                 serverSocket = new ServerSocket(port);
-                appendToChat("✔ Server started on port " + port + ". Waiting for clients...\n");
+                appendToChat("✔ Server started on port " + port + " (" + mode + " threads). Waiting for clients...\n");
 
                 while (!serverSocket.isClosed()) {
                     Socket clientSocket = serverSocket.accept();
+                    clientSocket.setKeepAlive(true); // text clients get no pings (see Heartbeats)
+                    metrics.onAccept();
                     ClientHandler handler = new ClientHandler(clientSocket);
-                    handler.start();
+                    handlerExecutor.execute(handler);
                 }
             } catch (IOException e) {
                 appendToChat("⚠ Server stopped: " + e.getMessage() + "\n");
@@ -105,41 +189,144 @@ public class ChatServerGUI extends JFrame {
         }, "Server-Accept-Thread").start();
     }
 
-    // Append text to chatArea on the EDT
-    private void appendToChat(String text) {
-        SwingUtilities.invokeLater(() -> {
-            chatArea.append(text);
-            chatArea.setCaretPosition(chatArea.getDocument().getLength());
+    // Serve the plain-text metrics on http://127.0.0.1:<-Dchat.metrics.port>/metrics (off unless set)
+    private void startMetrics() {
+        metrics.queueDepths(() -> {
+            Map<Integer, Integer> depths = new TreeMap<>();
+            for (ClientHandler ch : clients.clients()) depths.put(ch.clientId, ch.queue == null ? 0 : ch.queue.depth());
+            return depths;
         });
+        metrics.rateLimiter(rateLimiter);
+        metrics.heartbeats(heartbeats);
+        metrics.compression(Compression.shared());
+        metrics.delivery(delivery);
+        try {
+            int port = ServerMetrics.portFromSystemProperties();
+            metrics.startEndpoint(port);
+            if (port > 0) appendToChat("✔ Metrics on http://127.0.0.1:" + port + "/metrics\n");
+        } catch (IOException e) {
+            appendToChat("⚠ Metrics endpoint not started: " + e.getMessage() + "\n");
+        }
+    }
+
+    // Open the message log and continue sequence numbers after what is already on disk
+    private void openMessageLog(int port) {
+        if (!Boolean.parseBoolean(System.getProperty("chat.log.enabled", "true"))) return;
+        try {
+            messageLog = new MessageLog(MessageLog.Config.fromSystemProperties(port));
+            messageSeq.set(messageLog.lastSequence());
+            appendToChat("✔ Message log opened, last sequence " + messageLog.lastSequence() + "\n");
+            Runtime.getRuntime().addShutdownHook(new Thread(messageLog::close, "MessageLog-Close"));
+        } catch (IOException | IllegalArgumentException e) {
+            appendToChat("⚠ Message log disabled: " + e.getMessage() + "\n");
+        }
+    }
+
+    // Index routed messages for searching, after what the message log already holds
+    // (-Dchat.search.enabled=false turns it off)
+    private void openSearchIndex() {
+        SearchIndex.Config config = SearchIndex.Config.fromSystemProperties();
+        if (!config.enabled) return;
+        searchIndex = new SearchIndex(config);
+        searchIndex.start(messageLog);
+        metrics.search(searchIndex);
+    }
+
+    // Run the query in the search box and show the hits, newest first. Queries take
+    // milliseconds, so this runs right here on the event thread.
+    private void searchHistory() {
+        String text = searchField.getText().trim();
+        if (text.isEmpty()) return;
+        if (searchIndex == null) {
+            JOptionPane.showMessageDialog(this, "Search is turned off (chat.search.enabled=false).", "Search", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+        SearchIndex.Result found;
+        try {
+            found = searchIndex.search(SearchIndex.Query.parse(text));
+        } catch (IllegalArgumentException e) {
+            JOptionPane.showMessageDialog(this, e.getMessage() + "\n" + SearchIndex.USAGE, "Search", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+        if (searchDialog == null) {
+            searchModel = new DefaultListModel<>();
+            searchSummary = new JLabel(" ");
+            searchDialog = new JDialog(this, "Search Results", false);
+            searchDialog.setLayout(new BorderLayout(6, 6));
+            searchDialog.add(searchSummary, BorderLayout.NORTH);
+            searchDialog.add(new JScrollPane(new JList<>(searchModel)), BorderLayout.CENTER);
+            searchDialog.setSize(650, 400);
+            searchDialog.setLocationRelativeTo(this);
+        }
+        searchSummary.setText(found.summary() + "   " + text);
+        searchModel.clear();
+        for (SearchIndex.Hit hit : found.hits) searchModel.addElement(hit.toString());
+        searchDialog.setVisible(true);
+    }
+
+    // Give a routed message the next sequence number, hand it to the log writer and the search
+    // indexer and remember it in its room's history ("*" = every room). Only queue offers and
+    // array stores here.
+    private long recordMessage(String room, int senderId, String sender, String line, String text) {
+        long seq = messageSeq.incrementAndGet();
+        long now = System.currentTimeMillis();
+        MessageLog.Record record = new MessageLog.Record(seq, now, room, senderId, sender, text);
+        if (messageLog != null) messageLog.append(record);
+        if (searchIndex != null) searchIndex.add(record);
+        HistoryRing.Entry entry = new HistoryRing.Entry(seq, now, senderId, line, text);
+        if (room.equals("*")) {
+            for (HistoryRing h : rooms.histories()) h.add(entry);
+        } else {
+            rooms.history(room).add(entry); // kept even if nobody is in the room right now
+        }
+        return seq;
     }
 
-    // Send a server-originated broadcast message
+    // Rebuild a history entry from the disk log, formatted like the live message was
+    private HistoryRing.Entry fromDisk(MessageLog.Record r) {
+        String timestamp = timeFormat.format(r.timeMillis);
+        String line = (r.senderId == 0)
+                ? "[" + timestamp + "] Server → #" + r.room + ": " + r.text
+                : "[" + timestamp + "] Client " + r.senderId + " (" + r.sender + "): " + r.text;
+        return new HistoryRing.Entry(r.seq, r.timeMillis, r.senderId, line, r.text);
+    }
+
+    // Queue text for chatArea; it is drawn with everything else that arrived in the same frame
+    private void appendToChat(String text) {
+        chatArea.append(text);
+    }
+
+    // Send a server-originated message to every room or to the room picked in the combo box
     private void sendServerMessage() {
         String msg = serverMessageField.getText().trim();
         if (msg.isEmpty()) return;
 
-        String timestamp = timeFormat.format(new Date());
-        String formatted = "[" + timestamp + "] Server: " + msg;
-        appendToChat(formatted + "\n");
-
-        broadcast(formatted, null); // broadcast to all clients (null -> no exclusion)
+        String timestamp = timeFormat.now();
+        String target = (String) roomTarget.getSelectedItem();
+        if (target == null || target.equals(ALL_ROOMS)) {
+            String formatted = "[" + timestamp + "] Server: " + msg;
+            appendToChat(formatted + "\n");
+            long seq = recordMessage("*", 0, "Server", formatted, msg);
+            broadcast(EncodedMessage.of(formatted).sequenced(seq), null); // broadcast to all clients (null -> no exclusion)
+        } else {
+            String formatted = "[" + timestamp + "] Server → #" + target + ": " + msg;
+            appendToChat(formatted + "\n");
+            long seq = recordMessage(target, 0, "Server", formatted, msg);
+            sendToRoom(EncodedMessage.of(formatted).sequenced(seq), target, null);
+        }
         serverMessageField.setText("");
     }
 
     // Disconnect the selected client from the UI
     private void disconnectSelectedClient() {
-        int idx = clientsList.getSelectedIndex();
-        if (idx < 0) {
+        ClientHandler selected = clientsList.getSelectedValue();
+        if (selected == null) {
             JOptionPane.showMessageDialog(this, "No client selected.", "Disconnect", JOptionPane.WARNING_MESSAGE);
             return;
         }
 
-        ClientHandler target = null;
-        synchronized (clientHandlers) {
-            if (idx < clientHandlers.size()) {
-                target = clientHandlers.get(idx);
-            }
-        }
+        // Look up by ID: the client may have left since the list was drawn
+        ClientHandler target = clients.get(selected.clientId);
         if (target != null) {
             try {
                 target.socket.close(); // closing socket triggers cleanup in handler
@@ -149,80 +336,249 @@ public class ChatServerGUI extends JFrame {
         }
     }
 
+    // Called every second on the EDT: redraw queue depths and flush numbers
+    private void refreshStats() {
+        clientsList.repaint();
+        flushStats.sample();
+        flushLabel.setText(flushStats.toString());
+
+        metrics.sample();
+        LatencyHistogram.Snapshot latency = metrics.recentLatency();
+        statsLabels.get("Connections").setText(String.valueOf(metrics.connections()));
+        statsLabels.get("Accepts/s").setText(String.format("%.0f", metrics.acceptsPerSecond()));
+        statsLabels.get("In msg/s").setText(String.format("%.0f", metrics.inMessagesPerSecond()));
+        statsLabels.get("In KB/s").setText(String.format("%.1f", metrics.inBytesPerSecond() / 1024));
+        statsLabels.get("Out msg/s").setText(String.format("%.0f", metrics.outMessagesPerSecond()));
+        statsLabels.get("Out KB/s").setText(String.format("%.1f", metrics.outBytesPerSecond() / 1024));
+        statsLabels.get("Max queue").setText(String.valueOf(metrics.maxQueueDepth()));
+        statsLabels.get("Rate limited").setText(rateLimiter.droppedCount() + rateLimiter.disconnectedCount()
+                + " (" + rateLimiter.delayedCount() + " delayed)");
+        statsLabels.get("Evicted").setText(heartbeats.deadPeers() + " dead, " + heartbeats.idleEvictions() + " idle");
+        Compression compression = Compression.shared();
+        statsLabels.get("Compression").setText(compression.compressedCount() == 0 ? "-"
+                : String.format("%.0f%%, %.1f µs/msg", compression.ratio() * 100, compression.deflateMicrosPerMessage()));
+        statsLabels.get("Unacked").setText(delivery.unackedCount() + " (" + delivery.redeliveredCount() + " resent)");
+        statsLabels.get("Latency p50").setText(latency.percentile(0.50) + " µs");
+        statsLabels.get("Latency p99").setText(latency.percentile(0.99) + " µs");
+        statsLabels.get("Latency p99.9").setText(latency.percentile(0.999) + " µs");
+        statsLabels.get("Latency max").setText(latency.max() + " µs");
+
+        rooms.sampleRates();
+        List<String> names = rooms.names();
+        roomsModel.clear();
+        for (String name : names) {
+            RoomRegistry.Room<ClientHandler> room = rooms.get(name);
+            if (room != null) roomsModel.addElement(room.toString());
+        }
+
+        // Keep the target menu in sync without losing the current choice
+        Object selected = roomTarget.getSelectedItem();
+        if (roomTarget.getItemCount() != names.size() + 1) {
+            roomTarget.removeAllItems();
+            roomTarget.addItem(ALL_ROOMS);
+            for (String name : names) roomTarget.addItem(name);
+            roomTarget.setSelectedItem(names.contains(selected) ? selected : ALL_ROOMS);
+        } else {
+            for (int i = 0; i < names.size(); i++) {
+                if (!names.get(i).equals(roomTarget.getItemAt(i + 1))) {
+                    roomTarget.removeItemAt(i + 1);
+                    roomTarget.insertItemAt(names.get(i), i + 1);
+                }
+            }
+        }
+    }
+
     // Update the JList showing clients (called on EDT)
     private void updateClientList() {
         SwingUtilities.invokeLater(() -> {
+            ClientHandler selected = clientsList.getSelectedValue();
             clientsModel.clear();
-            synchronized (clientHandlers) {
-                for (ClientHandler ch : clientHandlers) {
-                    clientsModel.addElement("Client " + ch.clientId + " (" + ch.username + ")");
-                }
+            for (ClientHandler ch : clients.clients()) {
+                clientsModel.addElement(ch);
             }
+            if (selected != null) clientsList.setSelectedValue(selected, false);
         });
     }
 
-    // Broadcast message to all clients; excludeUser can be null to send to everyone,
-    // or set to a specific ClientHandler to NOT send to that client.
-    private void broadcast(String message, ClientHandler excludeUser) {
-        synchronized (clientHandlers) {
-            for (ClientHandler ch : new ArrayList<>(clientHandlers)) {
+    // Send to the members of one room only; releases the message when done
+    private void sendToRoom(EncodedMessage encoded, String roomName, ClientHandler excludeUser) {
+        RoomRegistry.Room<ClientHandler> room = rooms.get(roomName);
+        if (room != null) {
+            for (ClientHandler ch : room.members()) {
                 if (ch != excludeUser) {
-                    ch.out.println(message);
+                    ch.queue.offer(encoded);
                 }
             }
         }
+        encoded.release();
+    }
+
+    // Send to every client, in every room (server announcements to all rooms); excludeUser can
+    // be null to send to everyone. Messages are only queued here; each client's writer task
+    // does the socket write, sharing the same encoded bytes. Releases the message when done.
+    private void broadcast(EncodedMessage encoded, ClientHandler excludeUser) {
+        for (ClientHandler ch : clients.clients()) {
+            if (ch != excludeUser) {
+                ch.queue.offer(encoded);
+            }
+        }
+        encoded.release();
     }
 
     ////////////////////////////////
     // ClientHandler inner class  //
     ////////////////////////////////
-    private class ClientHandler extends Thread {
+    private class ClientHandler implements Runnable, Heartbeats.Peer {
         private Socket socket;
-        private BufferedReader in;
-        private PrintWriter out;
-        private String username = "Unknown";
+        private BufferedReader in;       // text clients
+        private FrameReader frames;      // binary clients
+        private boolean firstFrameHeld;  // the frame after the hello was not a JOIN; read it as a message
+        private OutputStream out;
+        private OutboundQueue queue;
+        private volatile String username = "Unknown";
         private int clientId;
+        private volatile String room = RoomRegistry.DEFAULT_ROOM;
+        private final TokenBucket limit = rateLimiter.newClientBucket(); // this client's message rate
+        private boolean throttled;       // the client was told its messages are being dropped
+        private Heartbeats.Monitor heartbeat; // liveness of this connection (null if heartbeats are off)
+        private long resumeAfter = -1; // replay from this seq instead of the recent history ("since=" in the hello)
+        private boolean joined;        // the room was told this client joined (so it is told it left)
+        private Delivery.Window window; // sent but unacked room messages (null if the client does not ack)
+        private Delivery.Window resumed; // the previous connection's window, to send again
 
         public ClientHandler(Socket socket) {
             this.socket = socket;
             synchronized (ChatServerGUI.this) {
                 clientId = ++clientCount;
             }
-            setName("ClientHandler-" + clientId);
+        }
+
+        // Label shown in the connected clients list
+        @Override
+        public String toString() {
+            int depth = (queue == null) ? 0 : queue.depth();
+            return "Client " + clientId + " (" + username + ") #" + room + " [queued " + depth + "]";
         }
 
         public void run() {
+            Thread.currentThread().setName("ClientHandler-" + clientId);
             try {
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                out = new PrintWriter(socket.getOutputStream(), true);
-
-                // First message from client must be username
-                username = in.readLine();
-                if (username == null || username.trim().isEmpty()) {
+                BufferedInputStream rawIn = new BufferedInputStream(socket.getInputStream());
+                out = new BufferedOutputStream(socket.getOutputStream());
+
+                // All writes to this client go through its queue and writer task
+                queue = new OutboundQueue(queueConfig, out, flushStats, () -> {
+                    appendToChat("⚠ Client " + clientId + " is too slow, disconnecting.\n");
+                    try {
+                        socket.close();
+                    } catch (IOException ignored) {}
+                });
+
+                // First message from client must be username, or the binary hello followed
+                // by a JOIN frame carrying the username. A peer that never sends it times out.
+                socket.setSoTimeout(heartbeats.handshakeTimeoutMillis());
+                String first = Frame.readHandshakeLine(rawIn);
+                if (first == null) return; // gone before saying anything
+                boolean deflate = false;
+                if (Frame.isBinaryHello(first)) {
+                    frames = new FrameReader(rawIn);
+                    queue.setBinary(true);
+                    deflate = Frame.wantsDeflate(first) && Compression.shared().enabled();
+                    // A reconnecting client asks for its room back and for what it missed there
+                    String wantedRoom = Frame.helloOption(first, "room");
+                    if (wantedRoom != null && !RoomRegistry.normalize(wantedRoom).isEmpty()) {
+                        room = RoomRegistry.normalize(wantedRoom);
+                    }
+                    resumeAfter = parseSeq(Frame.helloOption(first, "since"));
+                    // Acknowledged delivery: the window the previous connection left behind, or a new one
+                    if (Frame.wantsAck(first) && delivery.enabled()) {
+                        resumed = delivery.resume(Frame.helloOption(first, "resume"));
+                        window = (resumed != null) ? resumed : delivery.open();
+                    }
+                    if (!frames.next()) return; // gone before the JOIN frame
+                    if (frames.type == Frame.JOIN) {
+                        username = frames.payloadText();
+                    } else {
+                        username = null; // named User<id> below
+                        firstFrameHeld = true;
+                    }
+                } else {
+                    in = new BufferedReader(new InputStreamReader(rawIn));
+                    username = first;
+                }
+                socket.setSoTimeout(0);
+                if (username != null) username = ClientRegistry.clipName(username);
+                if (username == null || username.isEmpty()) {
                     username = "User" + clientId;
                 }
-
-                // Send assigned ID to this client (special protocol line)
-                out.println("ID:" + clientId);
+                handlerExecutor.execute(queue);
+
+                // Send assigned ID to this client (special protocol line / ID_ASSIGN frame
+                // carrying the accepted options); compressed frames only after that
+                String options = (deflate ? Frame.OPTION_DEFLATE : "")
+                        + (window != null ? " " + Frame.OPTION_ACK + " session=" + window.token : "");
+                EncodedMessage idLine = EncodedMessage.of("ID:" + clientId, Frame.ID_ASSIGN, clientId, options.trim());
+                queue.offer(idLine);
+                idLine.release();
+                queue.setDeflate(deflate);
+                queue.setWindow(window);
+
+                // What the previous connection did not get acknowledged goes first
+                if (resumed != null) {
+                    int n = delivery.redeliver(resumed, queue);
+                    appendToChat("✔ Client " + clientId + " resumed a session, " + n + " messages sent again.\n");
+                    resumed = null;
+                }
 
                 // Add to list and update UI
-                synchronized (clientHandlers) {
-                    clientHandlers.add(this);
-                }
+                clients.add(clientId, this);
+                metrics.onConnect();
+                heartbeat = heartbeats.watch(this, frames != null);
+                rooms.join(room, this);
+                boolean nameIndexed = clients.bindName(username, this);
                 updateClientList();
 
                 String joinMsg = username + " joined the chat (Client " + clientId + ").";
                 appendToChat("✔ " + joinMsg + "\n");
-                broadcast("[" + timeFormat.format(new Date()) + "] " + joinMsg, this); // let others know
+                // let others in the room know
+                sendToRoom(EncodedMessage.of("[" + timeFormat.now() + "] " + joinMsg, Frame.JOIN, clientId, username), room, this);
+                joined = true;
+                if (!nameIndexed) {
+                    reply("⚠ The name " + username + " is already in use; others can reach you with /msg " + clientId);
+                }
+
+                // Catch up on what the room said before this client arrived (or while it was away)
+                if (resumeAfter >= 0) {
+                    if (!RoomRegistry.DEFAULT_ROOM.equals(room)) reply("✔ You are now in #" + room);
+                    replaySince(resumeAfter);
+                } else {
+                    replayRecent();
+                }
 
                 // Read messages from client
                 String line;
-                while ((line = in.readLine()) != null) {
-                    String timestamp = timeFormat.format(new Date());
+                while ((line = nextMessage()) != null) {
+                    if (heartbeat != null) heartbeat.onMessage(System.nanoTime());
+                    // Over the rate limit → dropped, delayed or disconnected (see RateLimiter)
+                    if (!admit(line)) {
+                        if (socket.isClosed()) break; // disconnected for flooding
+                        continue;
+                    }
+                    long receivedNanos = System.nanoTime();
+                    // Room commands are answered to this client only
+                    if (line.startsWith("/") && handleCommand(line)) continue;
+
+                    String timestamp = timeFormat.now();
                     String formatted = "[" + timestamp + "] Client " + clientId + " (" + username + "): " + line;
-                    appendToChat(formatted + "\n");
-                    // Broadcast to all other clients (exclude sender)
-                    broadcast(formatted, this);
+                    appendToChat(roomPrefix() + formatted + "\n");
+                    // Send to all other clients in the same room (exclude sender)
+                    RoomRegistry.Room<ClientHandler> current = rooms.get(room);
+                    if (current != null) current.recordMessage();
+                    long seq = recordMessage(room, clientId, username, formatted, line);
+                    EncodedMessage encoded = EncodedMessage.of(formatted, Frame.CHAT, clientId, line).sequenced(seq);
+                    metrics.onInbound(encoded.payloadLength() + (frames == null ? 1 : Frame.HEADER_BYTES));
+                    metrics.track(encoded, receivedNanos);
+                    sendToRoom(encoded, room, this);
                 }
 
             } catch (IOException e) {
@@ -233,20 +589,279 @@ public class ChatServerGUI extends JFrame {
                     if (socket != null && !socket.isClosed()) socket.close();
                 } catch (IOException ignored) {}
 
-                synchronized (clientHandlers) {
-                    clientHandlers.remove(this);
+                if (heartbeat != null) heartbeat.stop();
+                if (clients.remove(clientId, this)) metrics.onDisconnect();
+                clients.unbindName(username, this);
+                rooms.leave(room, this);
+                if (queue != null) queue.close();
+                if (window != null) delivery.park(window); // unacked messages wait for a resume
+                updateClientList();
+
+                // Only a client whose arrival was announced (not one that timed out or hung up
+                // during the handshake) is announced as leaving
+                if (joined) {
+                    String leftMsg = username + " (Client " + clientId + ") left the chat.";
+                    appendToChat("✔ " + leftMsg + "\n");
+                    sendToRoom(EncodedMessage.of("[" + timeFormat.now() + "] " + leftMsg, Frame.LEAVE, clientId, username), room, null);
                 }
+            }
+        }
+
+        // Commands: /join <room>, /leave (back to the default room), /rooms,
+        // /msg <user|id> <text> (private message), /nick <name>, /since <seq> (missed history)
+        // and /search <words> [filters] (see SearchIndex).
+        // Returns false if the line is not one of them, so it is sent as a normal message.
+        private boolean handleCommand(String line) {
+            String[] parts = line.trim().split("\\s+", 2);
+            switch (parts[0]) {
+                case "/msg": {
+                    String[] args = (parts.length < 2) ? new String[0] : parts[1].split("\\s+", 2);
+                    if (args.length < 2) {
+                        reply("Usage: /msg <user|id> <text>");
+                        return true;
+                    }
+                    // O(1) lookup by name or ID; only the recipient's queue is touched
+                    ClientHandler target = clients.find(args[0]);
+                    if (target == null) {
+                        reply("⚠ No such user: " + args[0]);
+                        return true;
+                    }
+                    String timestamp = timeFormat.now();
+                    String formatted = "[" + timestamp + "] [PM] Client " + clientId + " (" + username + "): " + args[1];
+                    EncodedMessage pm = EncodedMessage.of(formatted, Frame.CHAT, clientId, "[PM] " + args[1]);
+                    target.queue.offer(pm);
+                    pm.release();
+                    appendToChat("✉ Client " + clientId + " (" + username + ") → Client " + target.clientId
+                            + " (" + target.username + "): private message\n");
+                    return true;
+                }
+                case "/nick": {
+                    String newName = (parts.length < 2) ? "" : ClientRegistry.clipName(parts[1]);
+                    if (newName.isEmpty()) {
+                        reply("Usage: /nick <name>");
+                    } else if (!clients.rename(username, newName, this)) {
+                        reply("⚠ Name already taken: " + newName);
+                    } else {
+                        String old = username;
+                        username = newName;
+                        String notice = old + " (Client " + clientId + ") is now known as " + newName + ".";
+                        appendToChat("✔ " + notice + "\n");
+                        sendToRoom(EncodedMessage.of("[" + timeFormat.now() + "] " + notice,
+                                Frame.JOIN, clientId, newName), room, this);
+                        reply("✔ You are now known as " + newName);
+                        updateClientList();
+                    }
+                    return true;
+                }
+                case "/join":
+                    if (parts.length < 2 || RoomRegistry.normalize(parts[1]).isEmpty()) {
+                        reply("Usage: /join <room>");
+                    } else {
+                        moveTo(RoomRegistry.normalize(parts[1]));
+                    }
+                    return true;
+                case "/leave":
+                    moveTo(RoomRegistry.DEFAULT_ROOM);
+                    return true;
+                case "/search": {
+                    if (searchIndex == null) {
+                        reply("⚠ Search is turned off on this server.");
+                        return true;
+                    }
+                    SearchIndex.Result found;
+                    try {
+                        found = searchIndex.search(SearchIndex.Query.parse(parts.length < 2 ? "" : parts[1]));
+                    } catch (IllegalArgumentException e) {
+                        reply(SearchIndex.USAGE + " (" + e.getMessage() + ")");
+                        return true;
+                    }
+                    reply(found.summary());
+                    for (SearchIndex.Hit hit : found.hits) reply(hit.toString());
+                    return true;
+                }
+                case "/rooms":
+                    for (RoomRegistry.Room<ClientHandler> r : rooms.rooms()) {
+                        reply(r.toString());
+                    }
+                    return true;
+                case "/since": {
+                    long after = parseSeq(parts.length < 2 ? null : parts[1]);
+                    if (after < 0) {
+                        reply("Usage: /since <seq>");
+                    } else {
+                        replaySince(after);
+                    }
+                    return true;
+                }
+                default:
+                    return false;
+            }
+        }
+
+        // Replay the current room's ring buffer (on connect and after /join)
+        private void replayRecent() {
+            List<HistoryRing.Entry> recent = rooms.history(room).snapshot(0, HistoryRing.DEFAULT_CAPACITY);
+            if (!recent.isEmpty()) {
+                replay(recent, recent.size() + " earlier messages in #" + room);
+            }
+        }
+
+        // Replay the current room's messages after a sequence number (/since, resume on reconnect).
+        // Older than the ring → the disk log fills the gap.
+        private void replaySince(long after) {
+            List<HistoryRing.Entry> missed = rooms.history(room)
+                    .since(after, HistoryRing.MAX_REPLAY, messageLog, room, ChatServerGUI.this::fromDisk);
+            if (missed.isEmpty()) {
+                reply("--- no messages in #" + room + " after seq " + after + " ---");
+            } else {
+                replay(missed, missed.size() + " messages in #" + room + " after seq " + after);
+            }
+        }
+
+        // A sequence number from /since or the hello; -1 if missing or not a number
+        private long parseSeq(String text) {
+            try {
+                return (text == null) ? -1 : Math.max(0, Long.parseLong(text.trim()));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        // Send history entries between a header and a footer carrying the last sequence
+        // number, which the client can pass to /since when it reconnects
+        private void replay(List<HistoryRing.Entry> entries, String header) {
+            reply("--- " + header + " ---");
+            for (HistoryRing.Entry e : entries) {
+                EncodedMessage m = e.encode();
+                queue.offer(m);
+                m.release();
+            }
+            reply("--- end of history, seq " + entries.get(entries.size() - 1).seq + " ---");
+        }
+
+        private void moveTo(String target) {
+            if (!target.equals(room)) {
+                String timestamp = timeFormat.now();
+                String old = room;
+                rooms.leave(old, this);
+                sendToRoom(EncodedMessage.of("[" + timestamp + "] " + username + " (Client " + clientId + ") left #" + old + ".",
+                        Frame.LEAVE, clientId, username), old, this);
+
+                room = target;
+                rooms.join(room, this);
+                sendToRoom(EncodedMessage.of("[" + timestamp + "] " + username + " (Client " + clientId + ") joined #" + room + ".",
+                        Frame.JOIN, clientId, username), room, this);
+
+                appendToChat("✔ " + username + " (Client " + clientId + ") moved from #" + old + " to #" + room + ".\n");
                 updateClientList();
+                reply("✔ You are now in #" + room);
+                replayRecent();
+                return;
+            }
+            reply("✔ You are now in #" + room);
+        }
+
+        // Apply the rate limits to one inbound line; false if it must not be handled.
+        // Commands count against the client and the server, chat lines also against the room.
+        private boolean admit(String line) {
+            RoomRegistry.Room<ClientHandler> current = line.startsWith("/") ? null : rooms.get(room);
+            long verdict = rateLimiter.admit(limit, current == null ? null : current.limit);
+            if (verdict == RateLimiter.DISCONNECT) {
+                appendToChat("⚠ Client " + clientId + " exceeded the rate limit, disconnecting.\n");
+                try {
+                    socket.close();  // the read loop sees the closed socket and ends
+                } catch (IOException ignored) {}
+                return false;
+            }
+            if (verdict == RateLimiter.DROP) {
+                if (!throttled) reply("⚠ You are sending too fast; messages are being dropped.");
+                throttled = true;
+                return false;
+            }
+            throttled = false;
+            if (verdict > 0) LockSupport.parkNanos(verdict); // DELAY: TCP slows the sender down
+            return true;
+        }
+
+        // Send a line to this client only
+        private void reply(String text) {
+            EncodedMessage m = EncodedMessage.of(text);
+            queue.offer(m);
+            m.release();
+        }
+
+        // Rooms other than the default one are shown in the server's chat area
+        private String roomPrefix() {
+            String r = room;
+            return r.equals(RoomRegistry.DEFAULT_ROOM) ? "" : "#" + r + " ";
+        }
+
+        // Next chat message from the client, or null when it disconnected.
+        // Heartbeats (text "#PING"/"#PONG" lines, PING/PONG frames) are answered here and only
+        // count as a sign of life; other control frames are ignored.
+        private String nextMessage() throws IOException {
+            if (frames == null) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (!line.startsWith("#")) return line;
+                    String pong = Heartbeats.pongFor(line);
+                    if (pong != null) {
+                        reply(pong);
+                    } else if (!Heartbeats.isPong(line)) {
+                        return line;
+                    }
+                    if (heartbeat != null) heartbeat.onRead(System.nanoTime());
+                }
+                return null;
+            }
+
+            // A first frame that was not a JOIN is still current in the reader
+            boolean held = firstFrameHeld;
+            firstFrameHeld = false;
+            while (held || frames.next()) {
+                held = false;
+                if (frames.type == Frame.CHAT) return frames.payloadText();
+                if (heartbeat != null) heartbeat.onRead(System.nanoTime());
+                if (frames.type == Frame.ACK) {
+                    onAck(frames.payloadText());
+                } else if (frames.type == Frame.PING) {
+                    EncodedMessage pong = EncodedMessage.control(Frame.PONG, 0, frames.payloadCopy());
+                    queue.offer(pong);
+                    pong.release();
+                }
+            }
+            return null;
+        }
 
-                String leftMsg = username + " (Client " + clientId + ") left the chat.";
-                appendToChat("✔ " + leftMsg + "\n");
-                broadcast("[" + timeFormat.format(new Date()) + "] " + leftMsg, null);
+        // Cumulative acknowledgement: everything up to the message with this seq has arrived
+        private void onAck(String payload) {
+            if (window == null) return;
+            try {
+                window.ack(Long.parseLong(payload.trim()));
+            } catch (NumberFormatException ignored) {
+                // not a sequence number; nothing to release
             }
         }
+
+        // Heartbeats.Peer: called on the timer wheel thread
+        public void sendPing(long token) {
+            EncodedMessage ping = EncodedMessage.of(Heartbeats.PING_PREFIX + " " + token, Frame.PING, 0, Long.toString(token));
+            queue.offer(ping);
+            ping.release();
+        }
+
+        // Closing the socket wakes the blocked read, and the handler cleans up as usual
+        public void evict(String reason) {
+            appendToChat("⚠ Client " + clientId + " (" + username + "): " + reason + ", disconnecting.\n");
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
     }
 
     // Entry point
     public static void main(String[] args) {
-        SwingUtilities.invokeLater(() -> new ChatServerGUI(5000));
+        HandlerThreads.Mode mode = HandlerThreads.modeFrom(args);
+        SwingUtilities.invokeLater(() -> new ChatServerGUI(5000, mode));
     }
 }
@@ -0,0 +1,129 @@
+import javax.swing.*;
+import java.awt.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// ChatView: the scrolling list of chat lines shared by ChatServerGUI and ChatClientGUI.
+//
+// append() may be called from any thread and only queues the line. A Swing timer drains the
+// queue once per frame (~16 ms), so a burst of thousands of lines costs one model update and
+// one repaint instead of one EDT task each. The list keeps at most maxLines lines in a
+// circular buffer (the oldest are evicted) and is shown in a JList with a fixed row height,
+// which only lays out and paints the rows that are visible.
+public class ChatView extends JScrollPane {
+
+    // Lines kept on screen (-Dchat.ui.maxLines=5000)
+    public static final int DEFAULT_MAX_LINES = Integer.getInteger("chat.ui.maxLines", 5000);
+
+    private static final int FRAME_MILLIS = 16;
+
+    // Fixed-capacity list model: a ring of lines with one change event per batch
+    private static class LineModel extends AbstractListModel<String> {
+        private final String[] lines;
+        private int start;  // index of the oldest line in 'lines'
+        private int size;
+
+        LineModel(int capacity) {
+            lines = new String[capacity];
+        }
+
+        @Override
+        public int getSize() {
+            return size;
+        }
+
+        @Override
+        public String getElementAt(int index) {
+            return lines[(start + index) % lines.length];
+        }
+
+        // Add a batch of lines; evicts the oldest ones when full
+        void addAll(String[] batch, int count) {
+            int evicted = Math.max(0, size + count - lines.length);
+            for (int i = 0; i < count; i++) {
+                lines[(start + size) % lines.length] = batch[i];
+                if (size < lines.length) {
+                    size++;
+                } else {
+                    start = (start + 1) % lines.length;
+                }
+            }
+            if (evicted > 0) {
+                fireIntervalRemoved(this, 0, evicted - 1);
+            }
+            fireIntervalAdded(this, size - count, size - 1);
+        }
+    }
+
+    private final LineModel model;
+    private final JList<String> list;
+    private final int maxLines;
+
+    // Lines waiting for the next frame
+    private final ConcurrentLinkedQueue<String> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private String[] batch = new String[256];
+
+    public ChatView() {
+        this(DEFAULT_MAX_LINES);
+    }
+
+    public ChatView(int maxLines) {
+        this.maxLines = Math.max(1, maxLines);
+        model = new LineModel(this.maxLines);
+        list = new JList<>(model);
+        list.setFont(new Font("Segoe UI", Font.PLAIN, 14));
+        // Fixed row size: the list never measures every row, only the visible ones are painted.
+        // Rows take the viewport's width; a line too long for it is cut with "...".
+        list.setPrototypeCellValue("[00:00:00] Client 0000 (username): message");
+        list.setFixedCellWidth(100);
+        setViewportView(list);
+        setHorizontalScrollBarPolicy(ScrollPaneConstants.HORIZONTAL_SCROLLBAR_NEVER);
+
+        new Timer(FRAME_MILLIS, e -> drain()).start();
+    }
+
+    // Queue text for display; may contain several '\n'-separated lines. Thread-safe.
+    public void append(String text) {
+        int from = 0;
+        int end = text.endsWith("\n") ? text.length() - 1 : text.length();
+        while (from <= end) {
+            int nl = text.indexOf('\n', from);
+            if (nl < 0 || nl > end) nl = end;
+            String line = text.substring(from, nl);
+            pending.offer(line.isEmpty() ? " " : line); // an empty row would collapse
+            pendingCount.incrementAndGet();
+            from = nl + 1;
+            if (nl == end) break;
+        }
+    }
+
+    // Runs on the EDT once per frame: move every pending line into the model in one step
+    private void drain() {
+        int count = pendingCount.get();
+        if (count == 0) return;
+
+        // Lines that would be evicted in this same frame are skipped without being shown
+        while (count > maxLines) {
+            if (pending.poll() == null) break;
+            count = pendingCount.decrementAndGet();
+        }
+        if (batch.length < count) batch = new String[Math.min(maxLines, Math.max(count, batch.length * 2))];
+
+        int n = 0;
+        String line;
+        while (n < count && (line = pending.poll()) != null) {
+            batch[n++] = line;
+        }
+        pendingCount.addAndGet(-n);
+        if (n == 0) return;
+
+        // Follow new lines only if the user has not scrolled up
+        JScrollBar bar = getVerticalScrollBar();
+        boolean atBottom = bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - 4;
+
+        model.addAll(batch, n);
+        java.util.Arrays.fill(batch, 0, n, null);
+        if (atBottom) list.ensureIndexIsVisible(model.getSize() - 1);
+    }
+}
@@ -0,0 +1,93 @@
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+// ClientRegistry: the set of connected clients of a server, keyed by client ID, with a
+// second index by username for direct messages.
+// Join, leave and lookup are O(1) and never take a shared lock. Iterating clients()
+// walks the live map without copying it: clients that join or leave during a broadcast
+// may or may not be visited, but iteration never throws ConcurrentModificationException.
+public class ClientRegistry<T> {
+
+    private final ConcurrentHashMap<Integer, T> clients = new ConcurrentHashMap<>();
+
+    // Longer usernames are cut (they end up in every message line and in the message log)
+    public static final int MAX_NAME_LENGTH = 32;
+
+    // Lower-cased username → client. A name belongs to the first client that binds it.
+    private final ConcurrentHashMap<String, T> byName = new ConcurrentHashMap<>();
+
+    // Register a client; returns false if the ID is already taken
+    public boolean add(int clientId, T client) {
+        return clients.putIfAbsent(clientId, client) == null;
+    }
+
+    // Unregister a client; returns false if it was not registered
+    public boolean remove(int clientId, T client) {
+        return clients.remove(clientId, client);
+    }
+
+    public T get(int clientId) {
+        return clients.get(clientId);
+    }
+
+    public int size() {
+        return clients.size();
+    }
+
+    // Claim a username for a client; returns false if another client holds it
+    public boolean bindName(String name, T client) {
+        if (name == null) return false;
+        T holder = byName.putIfAbsent(nameKey(name), client);
+        return holder == null || holder == client;
+    }
+
+    // Release a username, only if this client holds it
+    public void unbindName(String name, T client) {
+        if (name != null) byName.remove(nameKey(name), client);
+    }
+
+    // Move a client from one username to another; returns false if the new one is taken
+    public boolean rename(String oldName, String newName, T client) {
+        if (!bindName(newName, client)) return false;
+        if (oldName != null && !nameKey(oldName).equals(nameKey(newName))) {
+            unbindName(oldName, client);
+        }
+        return true;
+    }
+
+    public T byName(String name) {
+        return byName.get(nameKey(name));
+    }
+
+    // Resolve "<user|id>" as used by /msg: a username first, then a client ID
+    public T find(String userOrId) {
+        T client = byName(userOrId);
+        if (client != null) return client;
+        try {
+            return get(Integer.parseInt(userOrId.trim()));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // A username as a client asked for it: trimmed and at most MAX_NAME_LENGTH characters
+    public static String clipName(String name) {
+        return clip(name.trim(), MAX_NAME_LENGTH);
+    }
+
+    // Cut to max chars without splitting a surrogate pair
+    static String clip(String s, int max) {
+        if (s.length() <= max) return s;
+        int end = Character.isHighSurrogate(s.charAt(max - 1)) ? max - 1 : max;
+        return s.substring(0, end);
+    }
+
+    private static String nameKey(String name) {
+        return name.trim().toLowerCase();
+    }
+
+    // Live, weakly consistent view of all registered clients (for fan-out)
+    public Collection<T> clients() {
+        return clients.values();
+    }
+}
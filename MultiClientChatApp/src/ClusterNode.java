@@ -0,0 +1,522 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// ClusterNode: lets several ChatServer processes act as one chat.
+//
+// Every node listens on a cluster port and opens one link to each configured peer (a full
+// mesh), so a node only ever relays what its own clients did, and each message crosses to
+// each peer node exactly once, however many clients that node has. The node on the other end
+// fans it out to its local members like a message from one of its own clients.
+//
+// What travels over a link:
+//   - CHAT    a room message: sender, room, the formatted line and the raw text
+//   - DIRECT  a /msg for one client of the receiving node
+//   - JOIN    a client connected, renamed itself or changed rooms (shared membership)
+//   - LEAVE   a client left
+// Each link has its own bounded queue and writer thread, which drains whatever is queued into
+// one batch per write and flush (plus an empty batch as keep-alive when idle). The writer
+// numbers CHAT and DIRECT as they go into a batch, so a link's sequence numbers go out in
+// order; a batch that was being written when a link broke is sent again after the
+// reconnect, and the receiver drops what it has already seen.
+// Membership is re-sent in full on every (re)connect, and forgotten when a link closes.
+//
+// -Dchat.cluster.node=1                    node number; client IDs start at node * 1,000,000
+// -Dchat.cluster.port=6001                 port for links from other nodes (0 = no cluster)
+// -Dchat.cluster.peers=localhost:6002,...  cluster ports of the other nodes
+public class ClusterNode {
+
+    // What the server does with traffic from other nodes (called on link reader threads)
+    public interface Listener {
+        void onChat(String node, int senderId, String sender, String room, String line, String text);
+        void onDirect(String node, int targetId, String line, String text);
+    }
+
+    // A client connected to some node
+    public static final class Member {
+        public final String node;
+        public final int clientId;
+        public final String name;   // may be null
+        public final String room;
+
+        public Member(String node, int clientId, String name, String room) {
+            this.node = node;
+            this.clientId = clientId;
+            this.name = name;
+            this.room = room;
+        }
+    }
+
+    public static class Config {
+        public final int node;
+        public final int port;
+        public final List<InetSocketAddress> peers;
+        public final int queueCapacity;   // messages waiting per link
+        public final int maxBatch;        // messages per write
+        public final long keepAliveMillis;
+
+        public Config(int node, int port, List<InetSocketAddress> peers, int queueCapacity, int maxBatch, long keepAliveMillis) {
+            this.node = node;
+            this.port = port;
+            this.peers = peers;
+            this.queueCapacity = queueCapacity;
+            this.maxBatch = maxBatch;
+            this.keepAliveMillis = keepAliveMillis;
+        }
+
+        public boolean enabled() {
+            return port > 0;
+        }
+
+        public String nodeId() {
+            return "node" + node;
+        }
+
+        // -Dchat.cluster.queue=65536 -Dchat.cluster.maxBatch=256 -Dchat.cluster.keepAliveMillis=5000
+        public static Config fromSystemProperties() {
+            List<InetSocketAddress> peers = new ArrayList<>();
+            for (String p : System.getProperty("chat.cluster.peers", "").split(",")) {
+                p = p.trim();
+                if (p.isEmpty()) continue;
+                int colon = p.lastIndexOf(':');
+                if (colon < 0) throw new IllegalArgumentException("Peer must be host:port: " + p);
+                peers.add(InetSocketAddress.createUnresolved(p.substring(0, colon), Integer.parseInt(p.substring(colon + 1))));
+            }
+            return new Config(
+                    Integer.getInteger("chat.cluster.node", 1),
+                    Integer.getInteger("chat.cluster.port", 0),
+                    peers,
+                    Integer.getInteger("chat.cluster.queue", 1 << 16),
+                    Math.max(1, Integer.getInteger("chat.cluster.maxBatch", 256)),
+                    Long.getLong("chat.cluster.keepAliveMillis", 5000L));
+        }
+    }
+
+    private static final String MAGIC = "CHAT-CLUSTER 1";
+
+    private static final byte CHAT = 1;
+    private static final byte DIRECT = 2;
+    private static final byte JOIN = 3;
+    private static final byte LEAVE = 4;
+
+    // One relayed event; shared (immutable) by the queues of all links
+    private static final class Message {
+        final byte kind;
+        final long seq;        // CHAT and DIRECT on a link, 0 otherwise (see PeerLink.stamp)
+        final int clientId;    // sender (CHAT, JOIN, LEAVE) or recipient (DIRECT)
+        final String name;
+        final String room;
+        final String line;
+        final String text;
+
+        Message(byte kind, long seq, int clientId, String name, String room, String line, String text) {
+            this.kind = kind;
+            this.seq = seq;
+            this.clientId = clientId;
+            this.name = name;
+            this.room = room;
+            this.line = line;
+            this.text = text;
+        }
+
+        Message withSeq(long seq) {
+            return new Message(kind, seq, clientId, name, room, line, text);
+        }
+    }
+
+    private static final AsyncLogger log = AsyncLogger.shared();
+
+    private final Config config;
+    private final Listener listener;
+    private final Supplier<Collection<Member>> localMembers;
+
+    // Identifies this run of the node, so peers reset their duplicate filter after a restart
+    private final long epoch = System.currentTimeMillis();
+
+    // Outbound links by peer node ID, once their handshake told us who is on the other end
+    private final List<PeerLink> links = new ArrayList<>();
+    private final Map<String, PeerLink> linksByNode = new ConcurrentHashMap<>();
+
+    // Clients of other nodes, by ID and by lower-cased name
+    private final ConcurrentHashMap<Integer, Member> remote = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Member> remoteByName = new ConcurrentHashMap<>();
+
+    // Per peer node: {epoch, highest CHAT/DIRECT sequence delivered}
+    private final ConcurrentHashMap<String, long[]> seen = new ConcurrentHashMap<>();
+
+    // Current inbound link of each peer node (a reconnect may overlap a dying link)
+    private final ConcurrentHashMap<String, Socket> inbound = new ConcurrentHashMap<>();
+
+    private final LongAdder relayed = new LongAdder();      // messages written to links
+    private final LongAdder batches = new LongAdder();      // writes (batches) to links
+    private final LongAdder received = new LongAdder();     // messages read from links
+    private final LongAdder duplicates = new LongAdder();   // resent messages dropped
+    private final LongAdder dropped = new LongAdder();      // not queued: a link's queue was full
+
+    private volatile boolean running = true;
+    private ServerSocket serverSocket;
+
+    public ClusterNode(Config config, Listener listener, Supplier<Collection<Member>> localMembers) {
+        this.config = config;
+        this.listener = listener;
+        this.localMembers = localMembers;
+    }
+
+    public String nodeId() {
+        return config.nodeId();
+    }
+
+    // First client ID of this node, so IDs never clash across the cluster
+    public int clientIdBase() {
+        return config.node * 1_000_000;
+    }
+
+    // Listen for peers and start one link per configured peer
+    public void start() throws IOException {
+        serverSocket = new ServerSocket(config.port);
+        Thread accept = new Thread(this::acceptLoop, "Cluster-Accept");
+        accept.setDaemon(true);
+        accept.start();
+        for (InetSocketAddress peer : config.peers) {
+            PeerLink link = new PeerLink(peer);
+            links.add(link);
+            Thread t = new Thread(link, "Cluster-Out-" + peer.getHostString() + ":" + peer.getPort());
+            t.setDaemon(true);
+            t.start();
+        }
+        log.info("Cluster " + nodeId() + " listening on port " + config.port + ", " + config.peers.size() + " peers");
+    }
+
+    // ---- Publishing (any thread; never blocks) ----
+
+    public void publishChat(int senderId, String sender, String room, String line, String text) {
+        publish(new Message(CHAT, 0, senderId, sender, room, line, text));
+    }
+
+    // A client connected, or changed its name or room
+    public void publishJoin(int clientId, String name, String room) {
+        publish(new Message(JOIN, 0, clientId, name, room, null, null));
+    }
+
+    public void publishLeave(int clientId) {
+        publish(new Message(LEAVE, 0, clientId, null, null, null, null));
+    }
+
+    // Send a /msg to a client of another node; false if no node has such a client
+    public boolean sendDirect(String userOrId, String line, String text) {
+        Member target = find(userOrId);
+        PeerLink link = (target == null) ? null : linksByNode.get(target.node);
+        if (link == null) return false;
+        link.offer(new Message(DIRECT, 0, target.clientId, null, null, line, text));
+        return true;
+    }
+
+    // Queue the same message once for every peer node
+    private void publish(Message m) {
+        for (PeerLink link : links) {
+            link.offer(m);
+        }
+    }
+
+    // ---- Membership ----
+
+    // Resolve "<user|id>" among the clients of other nodes
+    public Member find(String userOrId) {
+        Member m = remoteByName.get(userOrId.trim().toLowerCase());
+        if (m != null) return m;
+        try {
+            return remote.get(Integer.parseInt(userOrId.trim()));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public Collection<Member> remoteMembers() {
+        return remote.values();
+    }
+
+    // Clients of other nodes in a room (for /rooms)
+    public int remoteMembersIn(String room) {
+        int n = 0;
+        for (Member m : remote.values()) {
+            if (room.equals(m.room)) n++;
+        }
+        return n;
+    }
+
+    private void addRemote(Member m) {
+        Member old = remote.put(m.clientId, m);
+        if (old != null && old.name != null) remoteByName.remove(old.name.toLowerCase(), old);
+        if (m.name != null) remoteByName.put(m.name.toLowerCase(), m);
+    }
+
+    private void removeRemote(int clientId) {
+        Member old = remote.remove(clientId);
+        if (old != null && old.name != null) remoteByName.remove(old.name.toLowerCase(), old);
+    }
+
+    // A node's link went away: its clients are no longer reachable
+    private void forgetNode(String node) {
+        for (Member m : remote.values()) {
+            if (m.node.equals(node)) removeRemote(m.clientId);
+        }
+    }
+
+    // ---- Wire format: strings are an int length (-1 = null) and UTF-8 bytes ----
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0) return null;
+        if (len > Frame.MAX_FRAME_BYTES) throw new IOException("Cluster string too long: " + len);
+        byte[] b = new byte[len];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private static void writeMessage(DataOutputStream out, Message m) throws IOException {
+        out.writeByte(m.kind);
+        out.writeLong(m.seq);
+        out.writeInt(m.clientId);
+        writeString(out, m.name);
+        writeString(out, m.room);
+        writeString(out, m.line);
+        writeString(out, m.text);
+    }
+
+    private static Message readMessage(DataInputStream in) throws IOException {
+        return new Message(in.readByte(), in.readLong(), in.readInt(),
+                readString(in), readString(in), readString(in), readString(in));
+    }
+
+    ////////////////////////////////
+    // Outbound link to one peer  //
+    ////////////////////////////////
+    private final class PeerLink implements Runnable {
+        private final InetSocketAddress address;
+        private final ArrayBlockingQueue<Message> queue = new ArrayBlockingQueue<>(config.queueCapacity);
+
+        // The batch being written; sent again if the link breaks before the flush returns
+        private final List<Message> batch = new ArrayList<>();
+        private final List<Message> drained = new ArrayList<>();
+        private long nextSeq;   // writer thread only; kept across reconnects (same epoch)
+        private volatile String peerNode;
+
+        PeerLink(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        void offer(Message m) {
+            if (!queue.offer(m)) dropped.increment();
+        }
+
+        public void run() {
+            long backoff = 500;
+            while (running) {
+                try (Socket socket = new Socket()) {
+                    InetSocketAddress resolved = new InetSocketAddress(address.getHostString(), address.getPort());
+                    socket.connect(resolved, 2000);
+                    socket.setTcpNoDelay(true);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+                    // Handshake: we say who we are, the peer answers with its node ID
+                    out.writeUTF(MAGIC);
+                    out.writeUTF(nodeId());
+                    out.writeLong(epoch);
+                    out.flush();
+                    socket.setSoTimeout(5000);
+                    peerNode = in.readUTF();
+                    socket.setSoTimeout(0);
+                    linksByNode.put(peerNode, this);
+                    log.info("Cluster link to " + peerNode + " (" + address.getHostString() + ":" + address.getPort() + ") up");
+                    backoff = 500;
+
+                    // The peer forgot our members when the link broke: send all of them again
+                    List<Message> snapshot = new ArrayList<>();
+                    for (Member m : localMembers.get()) {
+                        snapshot.add(new Message(JOIN, 0, m.clientId, m.name, m.room, null, null));
+                    }
+                    batch.addAll(0, snapshot);
+                    writeBatch(out);
+
+                    while (running) {
+                        Message m = queue.poll(config.keepAliveMillis, TimeUnit.MILLISECONDS);
+                        if (m != null) {
+                            batch.add(stamp(m));
+                            queue.drainTo(drained, config.maxBatch - 1);
+                            for (Message d : drained) batch.add(stamp(d));
+                            drained.clear();
+                        }
+                        writeBatch(out); // empty = keep-alive
+                    }
+                } catch (IOException e) {
+                    if (peerNode != null) log.warn("Cluster link to " + peerNode + " lost: ", e.getMessage());
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (peerNode != null) linksByNode.remove(peerNode, this);
+                batch.removeIf(m -> m.kind == JOIN); // the next snapshot has them
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                backoff = Math.min(10_000, backoff * 2);
+            }
+        }
+
+        // Senders on many threads queue concurrently, so the sequence number is taken here, in
+        // queue order, not when the message is published
+        private Message stamp(Message m) {
+            return (m.kind == CHAT || m.kind == DIRECT) ? m.withSeq(++nextSeq) : m;
+        }
+
+        private void writeBatch(DataOutputStream out) throws IOException {
+            out.writeInt(batch.size());
+            for (Message m : batch) writeMessage(out, m);
+            out.flush();
+            relayed.add(batch.size());
+            if (!batch.isEmpty()) batches.increment();
+            batch.clear();
+        }
+    }
+
+    ////////////////////////////////
+    // Inbound links              //
+    ////////////////////////////////
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread t = new Thread(() -> readLink(socket), "Cluster-In");
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                if (running) log.warn("Cluster accept failed: ", e.getMessage());
+            }
+        }
+    }
+
+    private void readLink(Socket socket) {
+        String node = null;
+        try (socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            // A peer that stops sending (not even keep-alives) is gone
+            socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, config.keepAliveMillis * 3));
+            if (!MAGIC.equals(in.readUTF())) throw new IOException("Not a cluster peer: " + socket);
+            node = in.readUTF();
+            long peerEpoch = in.readLong();
+            out.writeUTF(nodeId());
+            out.flush();
+            Thread.currentThread().setName("Cluster-In-" + node);
+
+            // A restarted peer counts its sequence numbers from the start again
+            long[] state = seen.compute(node, (k, s) -> (s == null || s[0] != peerEpoch) ? new long[] {peerEpoch, 0} : s);
+            Socket previous = inbound.put(node, socket);
+            if (previous != null) previous.close();
+            forgetNode(node);
+
+            while (running) {
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    deliver(node, state, readMessage(in));
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            log.warn("Cluster link from " + node + " timed out");
+        } catch (IOException e) {
+            // link closed; the peer reconnects
+        }
+        if (node != null && inbound.remove(node, socket)) forgetNode(node);
+    }
+
+    private void deliver(String node, long[] state, Message m) {
+        received.increment();
+        switch (m.kind) {
+            case JOIN:
+                addRemote(new Member(node, m.clientId, m.name, m.room));
+                break;
+            case LEAVE:
+                removeRemote(m.clientId);
+                break;
+            case CHAT:
+            case DIRECT:
+                // Only this link's reader touches state, and the peer's writer numbers its
+                // messages in the order it sends them (see PeerLink.stamp)
+                if (m.seq <= state[1]) {
+                    duplicates.increment();
+                    return;
+                }
+                state[1] = m.seq;
+                if (m.kind == CHAT) listener.onChat(node, m.clientId, m.name, m.room, m.line, m.text);
+                else listener.onDirect(node, m.clientId, m.line, m.text);
+                break;
+            default:
+                break;
+        }
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            if (serverSocket != null) serverSocket.close();
+        } catch (IOException ignored) {}
+    }
+
+    // ---- Stats ----
+
+    public int connectedPeers() {
+        return linksByNode.size();
+    }
+
+    public long relayedCount() {
+        return relayed.sum();
+    }
+
+    public long batchCount() {
+        return batches.sum();
+    }
+
+    public long receivedCount() {
+        return received.sum();
+    }
+
+    public long duplicateCount() {
+        return duplicates.sum();
+    }
+
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    @Override
+    public String toString() {
+        long b = batchCount();
+        return String.format("cluster %s: %d/%d peers, %d relayed in %d batches (%.1f per batch), %d received, %d duplicates, %d dropped, %d remote clients",
+                nodeId(), connectedPeers(), links.size(), relayedCount(), b, b == 0 ? 0.0 : (double) relayedCount() / b,
+                receivedCount(), duplicateCount(), droppedCount(), remote.size());
+    }
+}
@@ -0,0 +1,216 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Compression: optional deflate of frame payloads, for binary clients that ask for it with
+// "#HELLO bin deflate" (see Frame). A compressed frame has Frame.FLAG_DEFLATE set and its
+// payload is raw deflate data; everything else about the frame is unchanged.
+//
+// Most traffic is fan-out, so a payload is compressed once per message (EncodedMessage keeps
+// the compressed frame next to its other forms) and every compressing recipient gets the same
+// bytes. A streaming deflater per connection would compress a little better, but it would
+// compress every broadcast once per recipient. Instead each payload starts from the same preset
+// dictionary on both sides: the notices, prefixes and command words chat lines are made of,
+// which is most of what a warmed-up stream would know about a short line.
+//
+// Deflaters hold native memory (~256 KB each), so the compressing threads share a small pool
+// of them rather than one per (virtual) thread. Payloads shorter than minBytes, or that do not
+// get smaller, are sent as they are.
+public class Compression {
+
+    // Preset dictionary, most frequent strings last (deflate reaches the end most cheaply).
+    // Changing it changes the protocol: clients must use the same bytes.
+    private static final byte[] DICTIONARY = (
+            "Usage: /msg <user|id> <text> /join <room> /nick <name> /since <seq> /rooms /leave "
+            + "--- end of history, seq --- no messages in # messages in # on other nodes Rooms: "
+            + "⚠ No such user: ⚠ Name already taken: ⚠ You are sending too fast; messages are being dropped. "
+            + "✔ You are now known as ✔ You are now in #lobby [PM] Client  removed from chat. "
+            + "has left the chat. joined the chat (Client  moved to #lobby Client ")
+            .getBytes(StandardCharsets.UTF_8);
+
+    private static final Compression SHARED = new Compression(Config.fromSystemProperties());
+
+    // Settings shared by every connection of the process
+    public static class Config {
+        public final boolean enabled;   // false: the server ignores "deflate" in the hello
+        public final int minBytes;      // shorter payloads are not worth the call
+        public final int level;         // Deflater level, 1 (fast) .. 9 (small)
+
+        public Config(boolean enabled, int minBytes, int level) {
+            this.enabled = enabled;
+            this.minBytes = minBytes;
+            this.level = level;
+        }
+
+        // -Dchat.compress.enabled=true -Dchat.compress.minBytes=32 -Dchat.compress.level=6
+        public static Config fromSystemProperties() {
+            return new Config(
+                    Boolean.parseBoolean(System.getProperty("chat.compress.enabled", "true")),
+                    Integer.getInteger("chat.compress.minBytes", 32),
+                    Integer.getInteger("chat.compress.level", 6));
+        }
+    }
+
+    private final Config config;
+    private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+
+    // Compression (once per message)
+    private final LongAdder compressed = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder rawBytes = new LongAdder();
+    private final LongAdder deflatedBytes = new LongAdder();
+    private final LongAdder deflateNanos = new LongAdder();
+
+    // Compressed frames written (once per recipient) and the payload bytes that saved
+    private final LongAdder compressedSends = new LongAdder();
+    private final LongAdder savedBytes = new LongAdder();
+
+    // Compressed frames received
+    private final LongAdder inflated = new LongAdder();
+    private final LongAdder inflateNanos = new LongAdder();
+
+    public Compression(Config config) {
+        this.config = config;
+    }
+
+    public static Compression shared() {
+        return SHARED;
+    }
+
+    public boolean enabled() {
+        return config.enabled;
+    }
+
+    // Compressed payload, or null if it is too short or does not get smaller
+    public byte[] deflate(byte[] payload) {
+        if (payload.length < config.minBytes) {
+            skipped.increment();
+            return null;
+        }
+        long start = System.nanoTime();
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) deflater = new Deflater(config.level, true);
+        byte[] out;
+        try {
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(payload);
+            deflater.finish();
+            // Anything not smaller than the input is sent uncompressed, so that is all the room needed
+            byte[] buf = new byte[payload.length];
+            int len = 0;
+            while (!deflater.finished() && len < buf.length) {
+                len += deflater.deflate(buf, len, buf.length - len);
+            }
+            out = deflater.finished() && len < payload.length ? Arrays.copyOf(buf, len) : null;
+        } finally {
+            deflater.reset();
+            deflaters.offer(deflater);
+        }
+        deflateNanos.add(System.nanoTime() - start);
+        if (out == null) {
+            skipped.increment();
+            return null;
+        }
+        compressed.increment();
+        rawBytes.add(payload.length);
+        deflatedBytes.add(out.length);
+        return out;
+    }
+
+    // One per connection that may receive compressed frames
+    public static Inflater newInflater() {
+        return new Inflater(true);
+    }
+
+    // Decompress a FLAG_DEFLATE payload; the result may not exceed a frame's size
+    public byte[] inflate(Inflater inflater, byte[] src, int off, int len) throws IOException {
+        long start = System.nanoTime();
+        try {
+            inflater.setDictionary(DICTIONARY);
+            inflater.setInput(src, off, len);
+            byte[] buf = new byte[Math.min(Frame.MAX_FRAME_BYTES, Math.max(64, len * 4))];
+            int n = 0;
+            while (!inflater.finished()) {
+                if (n == buf.length) {
+                    if (n >= Frame.MAX_FRAME_BYTES) throw new IOException("Compressed payload too large");
+                    buf = Arrays.copyOf(buf, Math.min(Frame.MAX_FRAME_BYTES, n * 2));
+                }
+                int got = inflater.inflate(buf, n, buf.length - n);
+                if (got == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated compressed payload");
+                }
+                n += got;
+            }
+            inflated.increment();
+            return Arrays.copyOf(buf, n);
+        } catch (DataFormatException e) {
+            throw new IOException("Bad compressed payload: " + e.getMessage());
+        } finally {
+            inflater.reset();
+            inflateNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    // A compressed frame went to one recipient instead of the plain one
+    void onSend(int saved) {
+        compressedSends.increment();
+        savedBytes.add(saved);
+    }
+
+    public long compressedCount() {
+        return compressed.sum();
+    }
+
+    public long skippedCount() {
+        return skipped.sum();
+    }
+
+    public long rawBytes() {
+        return rawBytes.sum();
+    }
+
+    public long deflatedBytes() {
+        return deflatedBytes.sum();
+    }
+
+    // Compressed size / original size of the payloads that were compressed (1 = nothing yet)
+    public double ratio() {
+        long raw = rawBytes();
+        return raw == 0 ? 1.0 : (double) deflatedBytes() / raw;
+    }
+
+    // Time spent in the deflater per message it was asked to compress, in microseconds
+    public double deflateMicrosPerMessage() {
+        long n = compressedCount() + skippedCount();
+        return n == 0 ? 0 : deflateNanos.sum() / 1000.0 / n;
+    }
+
+    public long compressedSends() {
+        return compressedSends.sum();
+    }
+
+    public long savedBytes() {
+        return savedBytes.sum();
+    }
+
+    public long inflatedCount() {
+        return inflated.sum();
+    }
+
+    public double inflateMicrosPerMessage() {
+        long n = inflatedCount();
+        return n == 0 ? 0 : inflateNanos.sum() / 1000.0 / n;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("compression: %d compressed (ratio %.2f, %.1f µs each), %d skipped, %d sends saved %d KB, %d inflated (%.1f µs each)",
+                compressedCount(), ratio(), deflateMicrosPerMessage(), skippedCount(), compressedSends(),
+                savedBytes() / 1024, inflatedCount(), inflateMicrosPerMessage());
+    }
+}
@@ -0,0 +1,220 @@
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Delivery: at-least-once delivery of room messages to binary clients that ask for it with
+// "ack" in the hello (see Frame).
+//
+// Every routed room message already has a sequence number (the one the message log and the
+// history use); such a client gets it in front of each CHAT frame (Frame.FLAG_SEQ). Each
+// connection has a Window: its writer task adds every sequenced message it writes, in wire
+// order, and the client answers with cumulative ACK frames, "everything up to and including
+// seq N", batched (every few dozen messages or a fraction of a second, see AsyncChatClient),
+// so there is no round trip per message. An ACK releases the window up to that message.
+//
+// When the connection drops, the window (with whatever was still queued) is parked under the
+// session token the client got with its ID. A client reconnecting with "resume=<token>"
+// within parkMillis gets the unacked messages again before anything else, then the history
+// since its last sequence number; it drops the duplicates by sequence number.
+//
+// A window holds at most windowMessages; beyond that the oldest unacked messages are let go
+// (counted as overflowed) and the history replay is all that covers them.
+public class Delivery {
+
+    public static class Config {
+        public final boolean enabled;
+        public final int windowMessages;   // unacked messages kept per client
+        public final long parkMillis;      // how long a dropped client's window waits for it
+
+        public Config(boolean enabled, int windowMessages, long parkMillis) {
+            this.enabled = enabled;
+            this.windowMessages = windowMessages;
+            this.parkMillis = parkMillis;
+        }
+
+        // -Dchat.delivery.enabled=true -Dchat.delivery.windowMessages=1024 -Dchat.delivery.parkMillis=30000
+        public static Config fromSystemProperties() {
+            return new Config(
+                    Boolean.parseBoolean(System.getProperty("chat.delivery.enabled", "true")),
+                    Integer.getInteger("chat.delivery.windowMessages", 1024),
+                    Long.getLong("chat.delivery.parkMillis", 30_000L));
+        }
+    }
+
+    private final Config config;
+    private final SecureRandom random = new SecureRandom();
+    private final Map<String, Window> parked = new ConcurrentHashMap<>();
+
+    private final AtomicLong unacked = new AtomicLong();
+    private final LongAdder acks = new LongAdder();
+    private final LongAdder acked = new LongAdder();
+    private final LongAdder redelivered = new LongAdder();
+    private final LongAdder overflowed = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder resumed = new LongAdder();
+
+    public Delivery(Config config) {
+        this.config = config;
+    }
+
+    public boolean enabled() {
+        return config.enabled;
+    }
+
+    // The unacked messages sent to one client session, oldest first
+    public final class Window {
+        public final String token;
+        private final ArrayDeque<EncodedMessage> entries = new ArrayDeque<>();
+        private long parkedAt;
+
+        private Window(String token) {
+            this.token = token;
+        }
+
+        // Writer task: a sequenced message went to the socket (or was still queued at close)
+        public synchronized void add(EncodedMessage message) {
+            entries.addLast(message.retain());
+            unacked.incrementAndGet();
+            if (entries.size() > config.windowMessages) {
+                entries.pollFirst().release();
+                unacked.decrementAndGet();
+                overflowed.increment();
+            }
+        }
+
+        // Reader: the client has everything up to and including this seq. Acks are cumulative,
+        // so an ack for a seq that was never sent here still releases everything before it.
+        public synchronized void ack(long seq) {
+            acks.increment();
+            int through = 0;
+            EncodedMessage m;
+            while ((m = entries.peekFirst()) != null && m.seq() <= seq) {
+                entries.pollFirst();
+                m.release();
+                through++;
+            }
+            unacked.addAndGet(-through);
+            acked.add(through);
+        }
+
+        public synchronized int size() {
+            return entries.size();
+        }
+
+        // Take the unacked messages out to send them again (the caller releases them)
+        synchronized List<EncodedMessage> drain() {
+            List<EncodedMessage> list = new ArrayList<>(entries);
+            entries.clear();
+            unacked.addAndGet(-list.size());
+            return list;
+        }
+
+        private synchronized void clear() {
+            for (EncodedMessage m : drain()) m.release();
+        }
+    }
+
+    // A window for a new session, with a fresh token
+    public Window open() {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        StringBuilder token = new StringBuilder(32);
+        for (byte b : bytes) token.append(String.format("%02x", b));
+        return new Window(token.toString());
+    }
+
+    // The window of a session that reconnects with its token, or null if unknown or expired
+    public Window resume(String token) {
+        expireParked();
+        Window w = (token == null) ? null : parked.remove(token);
+        if (w != null) resumed.increment();
+        return w;
+    }
+
+    // Offer a resumed window's unacked messages to the new connection's queue (its writer
+    // must be running), which adds them back as it writes them. A full window is as large as
+    // the queue, so this waits for room instead of overflowing. Returns how many there were.
+    public int redeliver(Window w, OutboundQueue queue) {
+        List<EncodedMessage> again = w.drain();
+        for (EncodedMessage m : again) {
+            queue.offerWaiting(m, config.parkMillis);
+            m.release();
+        }
+        redelivered.add(again.size());
+        return again.size();
+    }
+
+    // The connection is gone: keep the window for a while if the client may still need it
+    public void park(Window w) {
+        expireParked();
+        if (w.size() == 0) return;
+        synchronized (w) {
+            w.parkedAt = System.currentTimeMillis();
+        }
+        parked.put(w.token, w);
+    }
+
+    // Parked windows are few and short-lived; checking on each park and resume is enough
+    private void expireParked() {
+        long cutoff = System.currentTimeMillis() - config.parkMillis;
+        for (Iterator<Window> it = parked.values().iterator(); it.hasNext(); ) {
+            Window w = it.next();
+            long at;
+            synchronized (w) {
+                at = w.parkedAt;
+            }
+            if (at < cutoff) {
+                it.remove();
+                expired.add(w.size());
+                w.clear();
+            }
+        }
+    }
+
+    // Messages sent but not acknowledged yet, over all sessions (parked ones included)
+    public long unackedCount() {
+        return unacked.get();
+    }
+
+    public int parkedSessions() {
+        return parked.size();
+    }
+
+    public long ackCount() {
+        return acks.sum();
+    }
+
+    public long ackedCount() {
+        return acked.sum();
+    }
+
+    public long redeliveredCount() {
+        return redelivered.sum();
+    }
+
+    public long overflowedCount() {
+        return overflowed.sum();
+    }
+
+    // Unacked messages of sessions that never came back
+    public long expiredCount() {
+        return expired.sum();
+    }
+
+    public long resumedCount() {
+        return resumed.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("delivery: %d unacked, %d acks for %d messages, %d resumed sessions, %d redelivered, %d overflowed, %d expired (%d parked)",
+                unackedCount(), ackCount(), ackedCount(), resumedCount(), redeliveredCount(), overflowedCount(),
+                expiredCount(), parkedSessions());
+    }
+}
@@ -0,0 +1,233 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+// EncodedMessage: one outgoing message, encoded once and shared read-only by every recipient.
+// It has three wire forms: the text line (UTF-8 with its '\n') for legacy clients, a binary
+// frame (see Frame) for clients that negotiated it, and the same frame with a compressed
+// payload for binary clients that also asked for deflate (see Compression). A room message
+// with a sequence number has the two frame forms once more with the number in front, for
+// clients that acknowledge what they get (see Delivery). Each form is built at most once, and
+// only if some recipient needs it.
+//
+// Each queue that accepts the message retains it and releases it once written or dropped;
+// the creator holds one reference for the fan-out loop. When the last reference is released
+// the optional onRelease hook runs, which tells the broadcaster that the last recipient write
+// has happened.
+public final class EncodedMessage {
+
+    private final byte type;
+    private final int senderId;
+
+    // Text form: either given, or formatted from the payload on first use
+    private volatile String line;
+    private final Function<String, String> lineFormat;
+
+    // Frame payload: either given, or taken from the line on first use
+    private volatile byte[] payload;
+
+    private volatile byte[] textBytes;
+    private volatile byte[] frameBytes;
+    private volatile byte[] deflatedBytes;   // frameBytes itself if compression does not pay
+    private volatile byte[] seqFrameBytes;
+    private volatile byte[] seqDeflatedBytes;
+
+    // Message sequence number, 0 = not a recorded room message
+    private volatile long seq;
+
+    private final AtomicInteger refCount = new AtomicInteger(1);
+    private volatile Runnable onRelease;
+
+    private EncodedMessage(byte type, int senderId, String line, byte[] payload, Function<String, String> lineFormat) {
+        this.type = type;
+        this.senderId = senderId;
+        this.line = line;
+        this.payload = payload;
+        this.lineFormat = lineFormat;
+    }
+
+    // A line from the server; binary clients get it as a CHAT frame from sender 0
+    public static EncodedMessage of(String line) {
+        return new EncodedMessage(Frame.CHAT, 0, line, null, null);
+    }
+
+    // A message that looks different per protocol: text clients get 'line',
+    // binary clients get a frame of 'type' from 'senderId' carrying 'payload'
+    public static EncodedMessage of(String line, byte type, int senderId, String payload) {
+        return new EncodedMessage(type, senderId, line, payload.getBytes(StandardCharsets.UTF_8), null);
+    }
+
+    // A message received as a binary frame. The text line is only formatted (from the decoded
+    // payload) if a text client is among the recipients.
+    public static EncodedMessage ofFrame(byte type, int senderId, byte[] payload, Function<String, String> lineFormat) {
+        return new EncodedMessage(type, senderId, null, payload, lineFormat);
+    }
+
+    // A binary-only control frame (ID assignment, ping, ...)
+    public static EncodedMessage control(byte type, int senderId, byte[] payload) {
+        return new EncodedMessage(type, senderId, null, payload == null ? new byte[0] : payload, null);
+    }
+
+    public byte type() {
+        return type;
+    }
+
+    public int senderId() {
+        return senderId;
+    }
+
+    // Attach the sequence number the message was recorded with, before it is shared
+    public EncodedMessage sequenced(long seq) {
+        this.seq = seq;
+        return this;
+    }
+
+    public long seq() {
+        return seq;
+    }
+
+    // The text form (for text clients, logging and the server UI)
+    public String line() {
+        String l = line;
+        if (l == null) {
+            String text = new String(payload, StandardCharsets.UTF_8);
+            l = (lineFormat == null) ? text : lineFormat.apply(text);
+            line = l;
+        }
+        return l;
+    }
+
+    // Size of the frame payload (the chat text as the sender typed it), in bytes
+    public int payloadLength() {
+        byte[] p = payload;
+        if (p == null) {
+            p = line.getBytes(StandardCharsets.UTF_8);
+            payload = p;
+        }
+        return p.length;
+    }
+
+    private byte[] textBytes() {
+        byte[] b = textBytes;
+        if (b == null) {
+            b = (line() + "\n").getBytes(StandardCharsets.UTF_8);
+            textBytes = b;
+        }
+        return b;
+    }
+
+    private byte[] frameBytes() {
+        byte[] b = frameBytes;
+        if (b == null) {
+            payloadLength(); // makes sure the payload exists
+            b = Frame.encode(type, senderId, payload);
+            frameBytes = b;
+        }
+        return b;
+    }
+
+    // Compressed once, here, for every compressing recipient
+    private byte[] deflatedBytes() {
+        byte[] b = deflatedBytes;
+        if (b == null) {
+            payloadLength(); // makes sure the payload exists
+            byte[] compressed = Compression.shared().deflate(payload);
+            b = (compressed == null) ? frameBytes() : Frame.encode(type, Frame.FLAG_DEFLATE, senderId, compressed);
+            deflatedBytes = b;
+        }
+        return b;
+    }
+
+    // The frame forms with the sequence number in front of the (possibly compressed) payload
+    private byte[] seqFrameBytes(boolean deflate) {
+        byte[] b = deflate ? seqDeflatedBytes : seqFrameBytes;
+        if (b == null) {
+            byte[] plain = deflate ? deflatedBytes() : frameBytes();
+            b = Frame.sequenced(plain, seq);
+            if (deflate) seqDeflatedBytes = b;
+            else seqFrameBytes = b;
+        }
+        return b;
+    }
+
+    private byte[] bytes(boolean binary, boolean deflate, boolean sequenced) {
+        if (!binary) return textBytes();
+        if (type != Frame.CHAT) return frameBytes(); // control frames are tiny
+        boolean withSeq = sequenced && seq > 0;
+        if (!deflate) return withSeq ? seqFrameBytes(false) : frameBytes();
+        byte[] b = deflatedBytes();
+        // The seq prefix is the same size either way, so the saving is the same with or without it
+        if (b != frameBytes) Compression.shared().onSend(frameBytes().length - b.length);
+        return withSeq ? seqFrameBytes(true) : b;
+    }
+
+    // Encoded size in bytes for the given protocol
+    public int length(boolean binary) {
+        return length(binary, false);
+    }
+
+    public int length(boolean binary, boolean deflate) {
+        return length(binary, deflate, false);
+    }
+
+    public int length(boolean binary, boolean deflate, boolean sequenced) {
+        if (!binary) return textBytes().length;
+        if (type != Frame.CHAT) return frameBytes().length;
+        if (sequenced && seq > 0) return seqFrameBytes(deflate).length;
+        return deflate ? deflatedBytes().length : frameBytes().length;
+    }
+
+    // Read-only view with its own position, for writing to a non-blocking channel
+    public ByteBuffer buffer(boolean binary) {
+        return buffer(binary, false);
+    }
+
+    public ByteBuffer buffer(boolean binary, boolean deflate) {
+        return ByteBuffer.wrap(bytes(binary, deflate, false)).asReadOnlyBuffer();
+    }
+
+    // Write the shared bytes to a blocking stream without copying them
+    public void writeTo(OutputStream out, boolean binary) throws IOException {
+        writeTo(out, binary, false);
+    }
+
+    public void writeTo(OutputStream out, boolean binary, boolean deflate) throws IOException {
+        writeTo(out, binary, deflate, false);
+    }
+
+    public void writeTo(OutputStream out, boolean binary, boolean deflate, boolean sequenced) throws IOException {
+        out.write(bytes(binary, deflate, sequenced));
+    }
+
+    // Control frames have no text form and are never sent to text clients
+    public boolean isControl() {
+        return line == null && lineFormat == null && type != Frame.CHAT;
+    }
+
+    // Called when something else needs to run after the last release
+    public void onRelease(Runnable hook) {
+        this.onRelease = hook;
+    }
+
+    public EncodedMessage retain() {
+        refCount.incrementAndGet();
+        return this;
+    }
+
+    // Returns true if this was the last reference
+    public boolean release() {
+        int left = refCount.decrementAndGet();
+        if (left == 0) {
+            Runnable hook = onRelease;
+            if (hook != null) hook.run();
+            return true;
+        }
+        if (left < 0) {
+            throw new IllegalStateException("EncodedMessage released too many times");
+        }
+        return false;
+    }
+}
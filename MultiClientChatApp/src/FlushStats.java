@@ -0,0 +1,68 @@
+import java.util.concurrent.atomic.LongAdder;
+
+// FlushStats: counts how many messages go out per socket flush, so the batching delay
+// and batch size can be tuned (bigger batches = fewer syscalls but more latency).
+// Writers record from many threads; sample() is called by whoever reports the numbers.
+public class FlushStats {
+
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+
+    // Values at the previous sample, used to compute rates
+    private long lastMessages;
+    private long lastFlushes;
+    private long lastSampleNanos = System.nanoTime();
+
+    // Rates computed by the most recent sample()
+    private volatile double messagesPerFlush;
+    private volatile double flushesPerSecond;
+
+    public void recordFlush(int messageCount, long byteCount) {
+        messages.add(messageCount);
+        bytes.add(byteCount);
+        flushes.increment();
+    }
+
+    public long totalMessages() {
+        return messages.sum();
+    }
+
+    public long totalBytes() {
+        return bytes.sum();
+    }
+
+    public long totalFlushes() {
+        return flushes.sum();
+    }
+
+    // Compute rates over the interval since the previous call
+    public synchronized void sample() {
+        long now = System.nanoTime();
+        long m = messages.sum();
+        long f = flushes.sum();
+        long dm = m - lastMessages;
+        long df = f - lastFlushes;
+        double seconds = (now - lastSampleNanos) / 1e9;
+
+        messagesPerFlush = (df == 0) ? 0 : (double) dm / df;
+        flushesPerSecond = (seconds <= 0) ? 0 : df / seconds;
+
+        lastMessages = m;
+        lastFlushes = f;
+        lastSampleNanos = now;
+    }
+
+    public double messagesPerFlush() {
+        return messagesPerFlush;
+    }
+
+    public double flushesPerSecond() {
+        return flushesPerSecond;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%.1f msgs/flush, %.0f flushes/s", messagesPerFlush, flushesPerSecond);
+    }
+}
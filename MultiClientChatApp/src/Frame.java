@@ -0,0 +1,203 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Frame: the length-prefixed binary protocol, spoken next to the legacy line protocol.
+//
+// A client opts in by sending the line "#HELLO bin" as its very first line, right after
+// connecting; everything after that newline (both directions) is frames. Clients that do
+// not send it are text clients and never see a frame. Options may follow on the same line:
+// "deflate" (compressed frames), "ack" (sequenced room messages, acknowledged, see Delivery),
+// and for a client that resumes after a reconnect "room=<name>" (start in that room instead
+// of the default one), "since=<seq>" (replay the room's messages after that sequence number
+// instead of the recent ones) and "resume=<token>" (send again what the previous connection
+// did not acknowledge), e.g. "#HELLO bin deflate ack room=dev since=1042 resume=9f2c...".
+// Layout (big-endian):
+//
+//   int32  length    number of bytes that follow this field (HEADER_BYTES - 4 + payload)
+//   byte   type      CHAT, JOIN, LEAVE, ID_ASSIGN, PING, PONG or ACK
+//   byte   flags     FLAG_DEFLATE: the payload is compressed (see Compression)
+//                    FLAG_SEQ: the payload starts with the message's int64 sequence number,
+//                    followed by the (possibly compressed) rest; other bits 0
+//   int32  senderId  client ID the frame is about (0 = server)
+//   bytes  payload   UTF-8 text (chat text, username, ...), may be empty
+//
+// Handshake: after "#HELLO bin" the client sends JOIN with its username (empty = default)
+// and the server answers ID_ASSIGN with the client ID in senderId and, as payload, the
+// options it accepted ("deflate", "ack session=<token>", both or nothing). Only then may either
+// side send compressed frames, and only if "deflate" was accepted. With "ack", room messages
+// arrive with FLAG_SEQ and the client sends ACK frames whose payload is the (decimal) sequence
+// number of the last one it got: everything up to there has arrived. Either side may send a
+// PING; it is answered with a PONG carrying the same payload (see Heartbeats).
+public final class Frame {
+
+    public static final String HELLO_PREFIX = "#HELLO";
+    public static final String HELLO_BINARY = HELLO_PREFIX + " bin";
+    public static final String OPTION_DEFLATE = "deflate";
+    public static final String HELLO_DEFLATE = HELLO_BINARY + " " + OPTION_DEFLATE;
+    public static final String OPTION_ACK = "ack";
+
+    // Bits of the flags byte
+    public static final byte FLAG_DEFLATE = 0x01;
+    public static final byte FLAG_SEQ = 0x02;
+
+    public static final byte CHAT = 1;
+    public static final byte JOIN = 2;
+    public static final byte LEAVE = 3;
+    public static final byte ID_ASSIGN = 4;
+    public static final byte PING = 5;
+    public static final byte ACK = 6;
+    public static final byte PONG = 7;
+
+    // length + type + flags + senderId
+    public static final int HEADER_BYTES = 10;
+
+    // Frames larger than this are a protocol error
+    public static final int MAX_FRAME_BYTES = 64 * 1024;
+
+    private Frame() {}
+
+    // True if a first line asks for the binary protocol
+    public static boolean isBinaryHello(String line) {
+        return line != null && line.startsWith(HELLO_PREFIX) && line.substring(HELLO_PREFIX.length()).trim().startsWith("bin");
+    }
+
+    // True if a binary hello also asks for compressed frames
+    public static boolean wantsDeflate(String hello) {
+        return isBinaryHello(hello) && hasOption(hello, OPTION_DEFLATE);
+    }
+
+    // True if a binary hello asks for acknowledged delivery
+    public static boolean wantsAck(String hello) {
+        return isBinaryHello(hello) && hasOption(hello, OPTION_ACK);
+    }
+
+    // Value of a "key=value" option in a binary hello, null if it is not there
+    public static String helloOption(String hello, String key) {
+        return isBinaryHello(hello) ? option(hello, key) : null;
+    }
+
+    // Options are space-separated words, in the hello and in the ID_ASSIGN payload
+    public static boolean hasOption(String options, String name) {
+        for (String option : options.trim().split("\\s+")) {
+            if (option.equals(name)) return true;
+        }
+        return false;
+    }
+
+    public static String option(String options, String key) {
+        for (String option : options.trim().split("\\s+")) {
+            if (option.startsWith(key + "=")) return option.substring(key.length() + 1);
+        }
+        return null;
+    }
+
+    public static byte[] encode(byte type, int senderId, byte[] payload) {
+        return encode(type, (byte) 0, senderId, payload);
+    }
+
+    public static byte[] encode(byte type, byte flags, int senderId, byte[] payload) {
+        int len = (payload == null) ? 0 : payload.length;
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_BYTES + len);
+        buf.putInt(HEADER_BYTES - 4 + len).put(type).put(flags).putInt(senderId);
+        if (len > 0) buf.put(payload);
+        return buf.array();
+    }
+
+    // The same frame with FLAG_SEQ and the sequence number in front of its payload
+    public static byte[] sequenced(byte[] frame, long seq) {
+        ByteBuffer buf = ByteBuffer.allocate(frame.length + 8);
+        buf.putInt(frame.length + 8 - 4).put(frame[4]).put((byte) (frame[5] | FLAG_SEQ));
+        buf.put(frame, 6, 4).putLong(seq).put(frame, HEADER_BYTES, frame.length - HEADER_BYTES);
+        return buf.array();
+    }
+
+    public static byte[] encode(byte type, int senderId, String payload) {
+        return encode(type, senderId, payload == null ? null : payload.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // ---- Allocation-free parsing of frames sitting in a ByteBuffer ----
+    // 'at' is the absolute index of the frame's length field.
+
+    // Total size of the frame starting at 'at' if it is complete in buf, -1 if more bytes
+    // are needed. Throws if the length field is invalid.
+    public static int completeFrameLength(ByteBuffer buf, int at, int limit) throws IOException {
+        if (limit - at < 4) return -1;
+        int total = buf.getInt(at) + 4;
+        if (total < HEADER_BYTES || total > MAX_FRAME_BYTES) {
+            throw new IOException("Invalid frame length " + total);
+        }
+        return (limit - at >= total) ? total : -1;
+    }
+
+    public static byte type(ByteBuffer buf, int at) {
+        return buf.get(at + 4);
+    }
+
+    public static byte flags(ByteBuffer buf, int at) {
+        return buf.get(at + 5);
+    }
+
+    public static int senderId(ByteBuffer buf, int at) {
+        return buf.getInt(at + 6);
+    }
+
+    public static int payloadOffset(int at) {
+        return at + HEADER_BYTES;
+    }
+
+    public static int payloadLength(ByteBuffer buf, int at) {
+        return buf.getInt(at) + 4 - HEADER_BYTES;
+    }
+
+    // Wait up to waitMillis for a binary hello at the start of a connection (for servers where
+    // text clients may stay silent). Returns the hello line if it was read; otherwise null, and
+    // the stream is reset so the text protocol sees every byte.
+    public static String detectBinaryHello(Socket socket, BufferedInputStream in, int waitMillis) throws IOException {
+        int oldTimeout = socket.getSoTimeout();
+        in.mark(MAX_FRAME_BYTES);
+        try {
+            socket.setSoTimeout(waitMillis);
+            int first;
+            try {
+                first = in.read();
+            } catch (SocketTimeoutException e) {
+                first = -1;
+            }
+            socket.setSoTimeout(oldTimeout);
+            if (first == '#') {
+                String rest = readHandshakeLine(in);
+                String hello = "#" + (rest == null ? "" : rest);
+                if (isBinaryHello(hello)) return hello;
+            }
+            in.reset();
+            return null;
+        } finally {
+            socket.setSoTimeout(oldTimeout);
+        }
+    }
+
+    // Read the first line of a connection straight from the raw stream, one byte at a time,
+    // so no bytes of a following binary frame end up in a character decoder's buffer.
+    // Returns null on end of stream.
+    public static String readHandshakeLine(InputStream in) throws IOException {
+        byte[] buf = new byte[256];
+        int len = 0;
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') break;
+            if (len == buf.length) {
+                if (len >= MAX_FRAME_BYTES) throw new IOException("Handshake line too long");
+                buf = java.util.Arrays.copyOf(buf, len * 2);
+            }
+            buf[len++] = (byte) b;
+        }
+        if (b == -1 && len == 0) return null;
+        if (len > 0 && buf[len - 1] == '\r') len--;
+        return new String(buf, 0, len, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,65 @@
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Inflater;
+
+// FrameReader: reads binary frames (see Frame) from a blocking stream.
+// The payload buffer is reused between frames; fields describe the last frame read.
+// Compressed payloads (Frame.FLAG_DEFLATE) are inflated here, so callers always see plain ones.
+public class FrameReader {
+
+    private final DataInputStream in;
+    private byte[] payload = new byte[1024];
+    private Inflater inflater;   // created with the first compressed frame
+
+    public byte type;
+    public byte flags;           // as received; FLAG_DEFLATE is already undone
+    public int senderId;
+    public int payloadLength;
+
+    public FrameReader(InputStream in) {
+        this.in = new DataInputStream(in);
+    }
+
+    // Read the next frame; returns false at end of stream
+    public boolean next() throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return false;
+        }
+        int total = length + 4;
+        if (total < Frame.HEADER_BYTES || total > Frame.MAX_FRAME_BYTES) {
+            throw new IOException("Invalid frame length " + total);
+        }
+        type = in.readByte();
+        flags = in.readByte();
+        senderId = in.readInt();
+        payloadLength = total - Frame.HEADER_BYTES;
+        if (payload.length < payloadLength) {
+            payload = new byte[Math.max(payloadLength, payload.length * 2)];
+        }
+        in.readFully(payload, 0, payloadLength);
+        if ((flags & Frame.FLAG_DEFLATE) != 0) {
+            if (inflater == null) inflater = Compression.newInflater();
+            byte[] plain = Compression.shared().inflate(inflater, payload, 0, payloadLength);
+            if (payload.length < plain.length) payload = new byte[plain.length];
+            System.arraycopy(plain, 0, payload, 0, plain.length);
+            payloadLength = plain.length;
+        }
+        return true;
+    }
+
+    // Payload of the last frame as text
+    public String payloadText() {
+        return new String(payload, 0, payloadLength, StandardCharsets.UTF_8);
+    }
+
+    // Copy of the payload of the last frame (the internal buffer is reused)
+    public byte[] payloadCopy() {
+        return java.util.Arrays.copyOf(payload, payloadLength);
+    }
+}
@@ -0,0 +1,31 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+// HandlerThreads: decides whether client handlers run on platform threads or virtual threads.
+// The mode comes from a command line flag (--virtual-threads / --platform-threads) or from the
+// system property -Dchat.threads=virtual|platform, so both can be compared on the same build.
+public final class HandlerThreads {
+
+    public enum Mode { PLATFORM, VIRTUAL }
+
+    private HandlerThreads() {}
+
+    // Read the mode from the program arguments, falling back to the system property
+    public static Mode modeFrom(String[] args) {
+        for (String arg : args) {
+            if (arg.equals("--virtual-threads")) return Mode.VIRTUAL;
+            if (arg.equals("--platform-threads")) return Mode.PLATFORM;
+        }
+        String prop = System.getProperty("chat.threads", "platform");
+        return prop.equalsIgnoreCase("virtual") ? Mode.VIRTUAL : Mode.PLATFORM;
+    }
+
+    // One new thread per submitted handler, of the requested kind
+    public static ExecutorService newExecutor(Mode mode, String namePrefix) {
+        ThreadFactory factory = (mode == Mode.VIRTUAL)
+                ? Thread.ofVirtual().name(namePrefix, 1).factory()
+                : Thread.ofPlatform().name(namePrefix, 1).factory();
+        return Executors.newThreadPerTaskExecutor(factory);
+    }
+}
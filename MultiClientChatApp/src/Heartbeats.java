@@ -0,0 +1,209 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Heartbeats: finds connections whose peer is gone (crashed, unplugged, half-open) or idle.
+//
+// Every read marks the connection alive with one volatile store; nothing is scheduled per
+// message. Each connection has a single timeout on a shared TimerWheel that fires at its
+// next deadline and looks at the last read:
+//   - nothing read for intervalMillis   → send a ping ("#PING <n>" line / PING frame),
+//                                         which a live client answers with a pong
+//   - nothing read for readTimeoutMillis → the peer is dead: evict it
+//   - no chat message for idleTimeoutMillis (0 = never) → evict it as idle
+// then re-arms itself for the next deadline. With 100k connections that is one small object
+// per connection and a few thousand checks per second on one thread.
+//
+// Pings and the read timeout only apply to clients that speak heartbeats: binary clients
+// (PING/PONG are part of the frame protocol). Plain text clients (the original console
+// client, telnet) would show "#PING" lines as chat and never answer them, so they are left
+// to TCP keepalive (SO_KEEPALIVE on the accepted socket) and only the idle timeout, if set.
+public class Heartbeats {
+
+    // Text form of the heartbeat, for line clients; binary clients use Frame.PING / Frame.PONG
+    public static final String PING_PREFIX = "#PING";
+    public static final String PONG_PREFIX = "#PONG";
+
+    // What a watched connection must do for its Monitor
+    public interface Peer {
+        void sendPing(long token);       // must not block (queue it)
+        void evict(String reason);       // close the connection; may be called on the wheel thread
+    }
+
+    // Settings shared by all connections of a server
+    public static class Config {
+        public final long intervalNanos;      // ping after this long without reading anything
+        public final long readTimeoutNanos;   // dead after this long without reading anything
+        public final long idleTimeoutNanos;   // idle after this long without a chat message, 0 = never
+        public final long tickMillis;
+
+        public Config(long intervalMillis, long readTimeoutMillis, long idleTimeoutMillis, long tickMillis) {
+            this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+            this.readTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(readTimeoutMillis);
+            this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+            this.tickMillis = tickMillis;
+        }
+
+        public boolean enabled() {
+            return intervalNanos > 0 || readTimeoutNanos > 0 || idleTimeoutNanos > 0;
+        }
+
+        // -Dchat.heartbeat.intervalMillis=15000 -Dchat.heartbeat.readTimeoutMillis=45000
+        // -Dchat.heartbeat.idleTimeoutMillis=0 -Dchat.heartbeat.tickMillis=100 (0 turns a check off)
+        public static Config fromSystemProperties() {
+            return new Config(
+                    Long.getLong("chat.heartbeat.intervalMillis", 15_000L),
+                    Long.getLong("chat.heartbeat.readTimeoutMillis", 45_000L),
+                    Long.getLong("chat.heartbeat.idleTimeoutMillis", 0L),
+                    Long.getLong("chat.heartbeat.tickMillis", 100L));
+        }
+    }
+
+    // Liveness of one connection; onRead()/onMessage() are called by whoever reads it
+    public final class Monitor {
+        private final Peer peer;
+        private final boolean pings;    // ping it and enforce the read timeout
+        private volatile long lastRead = System.nanoTime();
+        private volatile long lastMessage = lastRead;
+        private boolean pinged;         // a ping went out (wheel thread only)
+        private long lastReadAtPing;    // lastRead when it did; unchanged = no answer yet
+        private volatile TimerWheel.Timeout timeout;
+        private volatile boolean stopped;
+
+        private Monitor(Peer peer, boolean pings) {
+            this.peer = peer;
+            this.pings = pings;
+        }
+
+        // Bytes arrived (any: chat, command, pong)
+        public void onRead(long nanos) {
+            lastRead = nanos;
+        }
+
+        // A chat message or command arrived (resets the idle timeout)
+        public void onMessage(long nanos) {
+            lastRead = nanos;
+            lastMessage = nanos;
+        }
+
+        // The connection closed; its timeout is dropped when its slot comes up
+        public void stop() {
+            stopped = true;
+            TimerWheel.Timeout t = timeout;
+            if (t != null) t.cancel();
+        }
+
+        private void arm(long delayNanos) {
+            if (!stopped) timeout = wheel.schedule(this::check, delayNanos, TimeUnit.NANOSECONDS);
+        }
+
+        // Runs on the wheel thread at the earliest deadline of this connection
+        private void check() {
+            if (stopped) return;
+            long now = System.nanoTime();
+            long sinceRead = now - lastRead;
+            long intervalNanos = pings ? config.intervalNanos : 0;
+            long readTimeoutNanos = pings ? config.readTimeoutNanos : 0;
+
+            if (readTimeoutNanos > 0 && sinceRead >= config.readTimeoutNanos) {
+                deadPeers.increment();
+                stop();
+                peer.evict("no response for " + TimeUnit.NANOSECONDS.toSeconds(sinceRead) + " s");
+                return;
+            }
+            if (config.idleTimeoutNanos > 0 && now - lastMessage >= config.idleTimeoutNanos) {
+                idleEvictions.increment();
+                stop();
+                peer.evict("idle for " + TimeUnit.NANOSECONDS.toSeconds(now - lastMessage) + " s");
+                return;
+            }
+            // One ping per silent period: a new one only after something was read since
+            long read = lastRead;
+            if (intervalNanos > 0 && sinceRead >= intervalNanos && (!pinged || read != lastReadAtPing)) {
+                pinged = true;
+                lastReadAtPing = read;
+                pingsSent.increment();
+                peer.sendPing(tokens.incrementAndGet());
+            }
+
+            // Sleep until the nearest deadline that has not passed yet
+            long next = Long.MAX_VALUE;
+            if (intervalNanos > 0) {
+                long untilPing = intervalNanos - sinceRead;
+                next = Math.min(next, untilPing > 0 ? untilPing : intervalNanos);
+            }
+            if (readTimeoutNanos > 0) next = Math.min(next, readTimeoutNanos - sinceRead);
+            if (config.idleTimeoutNanos > 0) next = Math.min(next, config.idleTimeoutNanos - (now - lastMessage));
+            arm(Math.max(TimeUnit.MILLISECONDS.toNanos(config.tickMillis), next));
+        }
+    }
+
+    private final Config config;
+    private final TimerWheel wheel;
+    private final AtomicLong tokens = new AtomicLong();
+
+    private final LongAdder pingsSent = new LongAdder();
+    private final LongAdder deadPeers = new LongAdder();
+    private final LongAdder idleEvictions = new LongAdder();
+
+    // The wheel turns once per ~51 s with 512 slots of 100 ms; longer timeouts take more rounds
+    public Heartbeats(Config config) {
+        this.config = config;
+        this.wheel = config.enabled() ? new TimerWheel("Heartbeat-Wheel", config.tickMillis, 512) : null;
+    }
+
+    // Start watching a connection; pings = the client answers them (a binary client). Returns
+    // null if there is nothing to check for it.
+    public Monitor watch(Peer peer, boolean pings) {
+        if (wheel == null) return null;
+        long first = Long.MAX_VALUE;
+        if (pings && config.intervalNanos > 0) first = Math.min(first, config.intervalNanos);
+        if (pings && config.readTimeoutNanos > 0) first = Math.min(first, config.readTimeoutNanos);
+        if (config.idleTimeoutNanos > 0) first = Math.min(first, config.idleTimeoutNanos);
+        if (first == Long.MAX_VALUE) return null;
+        Monitor m = new Monitor(peer, pings);
+        m.arm(first);
+        return m;
+    }
+
+    // Stop the wheel thread (clients shutting down; servers keep theirs)
+    public void stop() {
+        if (wheel != null) wheel.stop();
+    }
+
+    // SO_TIMEOUT for the blocking handshake read, before a connection is watched (0 = none)
+    public int handshakeTimeoutMillis() {
+        return (int) Math.min(Integer.MAX_VALUE, TimeUnit.NANOSECONDS.toMillis(config.readTimeoutNanos));
+    }
+
+    // "#PING <n>" → "#PONG <n>"; null if the line is not a heartbeat ping
+    public static String pongFor(String line) {
+        return line.startsWith(PING_PREFIX) ? PONG_PREFIX + line.substring(PING_PREFIX.length()) : null;
+    }
+
+    public static boolean isPong(String line) {
+        return line.startsWith(PONG_PREFIX);
+    }
+
+    public long pingsSent() {
+        return pingsSent.sum();
+    }
+
+    public long deadPeers() {
+        return deadPeers.sum();
+    }
+
+    public long idleEvictions() {
+        return idleEvictions.sum();
+    }
+
+    public int scheduledTimeouts() {
+        return wheel == null ? 0 : wheel.pending();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("heartbeats: %d pings, %d dead peers evicted, %d idle evicted, %d timers",
+                pingsSent(), deadPeers(), idleEvictions(), scheduledTimeouts());
+    }
+}
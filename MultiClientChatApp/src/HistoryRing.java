@@ -0,0 +1,110 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+// HistoryRing: the last N messages of one room, replayed to clients that join late.
+//
+// The slots are allocated once; adding a message claims the next position with one
+// getAndIncrement and stores the entry in its slot, so the broadcast path takes no lock.
+// The oldest entry is simply overwritten. Readers take a snapshot of the slots and sort it
+// by sequence number (writers racing on neighbouring positions may land out of order).
+public final class HistoryRing {
+
+    // Messages kept per room (-Dchat.history.size=100)
+    public static final int DEFAULT_CAPACITY = Integer.getInteger("chat.history.size", 100);
+
+    // Most messages sent for one "since" request (-Dchat.history.maxReplay=500)
+    public static final int MAX_REPLAY = Integer.getInteger("chat.history.maxReplay", 500);
+
+    // One remembered message, in the form it was routed
+    public static final class Entry {
+        public final long seq;
+        public final long timeMillis;
+        public final int senderId;
+        public final String line;   // what text clients saw
+        public final String text;   // payload binary clients saw
+
+        public Entry(long seq, long timeMillis, int senderId, String line, String text) {
+            this.seq = seq;
+            this.timeMillis = timeMillis;
+            this.senderId = senderId;
+            this.line = line;
+            this.text = text;
+        }
+
+        // Encode again for one late recipient (replay is rare, so nothing is kept encoded)
+        public EncodedMessage encode() {
+            return EncodedMessage.of(line, Frame.CHAT, senderId, text).sequenced(seq);
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> slots;
+    private final int mask;
+    private final AtomicLong next = new AtomicLong();
+
+    public HistoryRing() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    // Capacity is rounded up to a power of two so a position maps to a slot with a mask
+    public HistoryRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity) - 1) << 1;
+        if (capacity <= 1) size = 1;
+        slots = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+    }
+
+    public void add(Entry entry) {
+        long pos = next.getAndIncrement();
+        slots.set((int) (pos & mask), entry);
+    }
+
+    // Remembered entries with seq > afterSeq, oldest first, at most 'max' (the newest ones)
+    public List<Entry> snapshot(long afterSeq, int max) {
+        List<Entry> list = new ArrayList<>(slots.length());
+        for (int i = 0; i < slots.length(); i++) {
+            Entry e = slots.get(i);
+            if (e != null && e.seq > afterSeq) list.add(e);
+        }
+        list.sort((a, b) -> Long.compare(a.seq, b.seq));
+        return (list.size() > max) ? list.subList(list.size() - max, list.size()) : list;
+    }
+
+    // Everything after afterSeq, up to 'max' entries: from the ring, and from the disk log for
+    // the part the ring has already overwritten. 'fromDisk' turns a logged record back into
+    // the line this server would have sent.
+    public List<Entry> since(long afterSeq, int max, MessageLog log, String room,
+                             Function<MessageLog.Record, Entry> fromDisk) {
+        List<Entry> recent = snapshot(afterSeq, Integer.MAX_VALUE);
+        long oldestInRing = recent.isEmpty() ? Long.MAX_VALUE : recent.get(0).seq;
+
+        List<Entry> result = new ArrayList<>();
+        if (log != null && afterSeq + 1 < oldestInRing) {
+            Consumer<MessageLog.Record> collect = r -> {
+                if (r.seq < oldestInRing) result.add(fromDisk.apply(r));
+            };
+            try {
+                log.read(afterSeq + 1, room, max, collect);
+            } catch (IOException e) {
+                // History is best effort; the live stream is unaffected
+            }
+            result.sort((a, b) -> Long.compare(a.seq, b.seq));
+        }
+        result.addAll(recent);
+        return (result.size() > max) ? result.subList(0, max) : result;
+    }
+
+    // Highest sequence number in the ring, 0 if empty
+    public long latestSeq() {
+        long latest = 0;
+        for (int i = 0; i < slots.length(); i++) {
+            Entry e = slots.get(i);
+            if (e != null && e.seq > latest) latest = e.seq;
+        }
+        return latest;
+    }
+}
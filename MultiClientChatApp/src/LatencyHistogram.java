@@ -0,0 +1,94 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// LatencyHistogram: HDR-style histogram of latencies in microseconds.
+//
+// Values below 32 get a bucket each; above that every power-of-two range is split into 16
+// linear sub-buckets, so any value is reported within ~6% while 0 µs to Long.MAX_VALUE fits
+// in under a thousand counters. Recording is one increment on an AtomicLongArray slot and
+// never allocates.
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;          // 16
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;              // 32
+    private static final int FIRST_EXPONENT = SUB_BUCKET_BITS + 1;        // 2^5 = 32
+    private static final int BUCKETS = LINEAR_LIMIT + (64 - FIRST_EXPONENT) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    // Counts copied at one moment, for percentiles
+    public static class Snapshot {
+        private final long[] counts;
+        private final long total;
+
+        Snapshot(long[] counts) {
+            this.counts = counts;
+            long t = 0;
+            for (long c : counts) t += c;
+            this.total = t;
+        }
+
+        public long count() {
+            return total;
+        }
+
+        // Smallest recorded bucket value that at least fraction p of the values are below or at
+        public long percentile(double p) {
+            if (total == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(p * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return highestValueIn(i);
+            }
+            return highestValueIn(counts.length - 1);
+        }
+
+        public long max() {
+            for (int i = counts.length - 1; i >= 0; i--) {
+                if (counts[i] > 0) return highestValueIn(i);
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("p50 %d µs, p99 %d µs, p99.9 %d µs, max %d µs (n=%d)",
+                    percentile(0.50), percentile(0.99), percentile(0.999), max(), total);
+        }
+    }
+
+    public void record(long micros) {
+        counts.incrementAndGet(bucketOf(Math.max(0, micros)));
+    }
+
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) copy[i] = counts.get(i);
+        return new Snapshot(copy);
+    }
+
+    // Snapshot and start counting from zero (values recorded during the copy may land in
+    // either interval, none are lost)
+    public Snapshot snapshotAndReset() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) copy[i] = counts.getAndSet(i, 0);
+        return new Snapshot(copy);
+    }
+
+    static int bucketOf(long value) {
+        if (value < LINEAR_LIMIT) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);              // >= 5
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKETS; // 0..15
+        return LINEAR_LIMIT + (exponent - FIRST_EXPONENT) * SUB_BUCKETS + sub;
+    }
+
+    static long highestValueIn(int bucket) {
+        if (bucket < LINEAR_LIMIT) return bucket;
+        int exponent = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + FIRST_EXPONENT;
+        long sub = (bucket - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+        int shift = exponent - SUB_BUCKET_BITS;
+        long high = ((sub + 1) << shift) - 1;
+        return (high < 0) ? Long.MAX_VALUE : high; // top bucket
+    }
+}
@@ -0,0 +1,316 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// LoadGenerator: headless load test for the chat servers (ChatServer, ChatServerGUI,
+// NioChatServer), run on the same machine over loopback.
+//
+// Opens many client connections, does the same handshake as ChatClientGUI (username line,
+// then wait for "ID:<n>"; or the binary hello + JOIN frame with --binary, plus compressed
+// frames with --deflate), lets some of them
+// send at a fixed total rate and measures how long each message takes to reach every other
+// client. Each message carries its scheduled send time (System.nanoTime of this process),
+// so latency is measured from when it should have been sent, and a stalled sender does not
+// hide a slow server. Prints one line per second and a summary at the end.
+//
+//   java LoadGenerator --clients 2000 --senders 100 --rate 5000 --duration 30
+//   options: --host localhost --port 5000 --clients 100 --senders 10 --rate 1000 (msgs/s in total)
+//            --duration 10 (s) --size 64 (bytes of text) --handshake username|none --binary
+//            --deflate (binary with compression, see Compression)
+//            --tls (encrypted, for NioChatServer with -Dchat.tls.enabled=true; trusts chat-tls.p12)
+//
+// The servers rate-limit every client (-Dchat.limit.client.rate, see RateLimiter); start them
+// with a higher limit (or 0 = none) when each sender goes faster than that.
+public class LoadGenerator {
+
+    // Marks our messages in whatever line format the server uses: "@lg <run> <nanos> "
+    private static final String MARKER = "@lg ";
+
+    private final String host;
+    private final int port;
+    private final int clientCount;
+    private final int senderCount;
+    private final double rate;
+    private final int durationSeconds;
+    private final int size;
+    private final boolean usernameHandshake;
+    private final boolean binary;
+    private final boolean deflate;
+    private final Tls tls;   // null = plain TCP; one context, so reconnects resume sessions
+
+    // Messages from an earlier run (replayed room history) carry another run ID
+    private final long runId = ThreadLocalRandom.current().nextInt(1 << 30);
+
+    private final List<Client> clients = new ArrayList<>();
+    private final List<Thread> readers = new ArrayList<>();
+    private volatile boolean running = true;
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final AtomicInteger connected = new AtomicInteger();
+    private final AtomicInteger failedConnects = new AtomicInteger();
+    private final AtomicInteger disconnects = new AtomicInteger();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram intervalLatency = new LatencyHistogram();
+
+    public LoadGenerator(Map<String, String> options) throws IOException {
+        host = options.getOrDefault("host", "localhost");
+        port = Integer.parseInt(options.getOrDefault("port", "5000"));
+        clientCount = Integer.parseInt(options.getOrDefault("clients", "100"));
+        senderCount = Math.min(clientCount, Integer.parseInt(options.getOrDefault("senders", "10")));
+        rate = Double.parseDouble(options.getOrDefault("rate", "1000"));
+        durationSeconds = Integer.parseInt(options.getOrDefault("duration", "10"));
+        size = Integer.parseInt(options.getOrDefault("size", "64"));
+        usernameHandshake = !options.getOrDefault("handshake", "username").equals("none");
+        deflate = options.containsKey("deflate");
+        binary = deflate || options.containsKey("binary");
+        Tls.Config defaults = Tls.Config.fromSystemProperties();
+        tls = Tls.client(new Tls.Config(options.containsKey("tls"), defaults.keystore, defaults.password,
+                false, defaults.protocols, defaults.sessionCacheSize, defaults.sessionTimeoutSeconds));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) continue;
+            String key = args[i].substring(2);
+            int eq = key.indexOf('=');
+            if (eq >= 0) {
+                options.put(key.substring(0, eq), key.substring(eq + 1));
+            } else if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                options.put(key, args[++i]);
+            } else {
+                options.put(key, "true");
+            }
+        }
+        new LoadGenerator(options).run();
+    }
+
+    public void run() throws InterruptedException {
+        System.out.printf("Load: %d clients (%d sending %.0f msg/s in total, %d bytes) → %s:%d, %s%s%s, %d s%n",
+                clientCount, senderCount, rate, size, host, port, deflate ? "binary+deflate" : binary ? "binary" : "text", tls != null ? " over TLS" : "",
+                usernameHandshake ? " + username/ID handshake" : "", durationSeconds);
+
+        // Connect one by one (a burst would overflow the servers' accept backlog);
+        // each connection gets its own virtual reader thread
+        // (readers that are still blocked when the sockets close at the end are expected to fail)
+        Thread.Builder readerThreads = Thread.ofVirtual().name("lg-read-", 0).uncaughtExceptionHandler((t, e) -> {
+            if (running) disconnects.incrementAndGet();
+        });
+        long connectStart = System.nanoTime();
+        for (int i = 0; i < clientCount; i++) {
+            Client c = new Client(i);
+            if (c.connect()) {
+                clients.add(c);
+                readers.add(readerThreads.start(c::readLoop));
+            }
+        }
+        waitForHandshakes(10_000);
+        System.out.printf("Connected %d/%d in %d ms (%d failed)%n", connected.get(), clientCount,
+                (System.nanoTime() - connectStart) / 1_000_000, failedConnects.get());
+
+        // Senders: fixed schedule, each one sends every senderCount/rate seconds
+        List<Thread> senders = new ArrayList<>();
+        long intervalNanos = (long) (1e9 * Math.max(1, Math.min(senderCount, clients.size())) / rate);
+        long start = System.nanoTime();
+        for (int i = 0; i < senderCount && i < clients.size(); i++) {
+            Client c = clients.get(i);
+            long firstSend = start + intervalNanos * i / Math.max(1, senderCount); // spread them out
+            senders.add(Thread.ofVirtual().name("lg-send-" + i).start(() -> c.sendLoop(firstSend, intervalNanos)));
+        }
+
+        // One report per second
+        long lastSent = 0, lastReceived = 0;
+        for (int s = 1; s <= durationSeconds; s++) {
+            Thread.sleep(1000);
+            long nowSent = sent.sum(), nowReceived = received.sum();
+            System.out.printf("[%3ds] connected %d, sent %d/s, delivered %d/s, latency %s, disconnects %d%n",
+                    s, connected.get(), nowSent - lastSent, nowReceived - lastReceived,
+                    intervalLatency.snapshotAndReset(), disconnects.get());
+            lastSent = nowSent;
+            lastReceived = nowReceived;
+        }
+        running = false;
+        for (Thread t : senders) t.join(2000);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        // Let in-flight messages arrive before counting
+        Thread.sleep(2000);
+        summary(elapsed);
+
+        // Close everything and let the readers finish before the JVM exits
+        for (Client c : clients) c.close();
+        for (Thread t : readers) t.join(1000);
+    }
+
+    private void waitForHandshakes(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (connected.get() + failedConnects.get() < clientCount && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+    }
+
+    private void summary(double elapsedSeconds) {
+        long s = sent.sum(), r = received.sum();
+        // Every message goes to every other client (all start in the same room)
+        long expected = s * Math.max(0, connected.get() - 1);
+        LatencyHistogram.Snapshot all = latency.snapshot();
+        System.out.println("---- Summary ----");
+        System.out.printf("Clients: %d connected, %d failed to connect, %d disconnected during the run%n",
+                connected.get(), failedConnects.get(), disconnects.get());
+        System.out.printf("Sent: %d (%.0f msg/s)   Delivered: %d of %d expected (%.2f%%), %.0f msg/s%n",
+                s, s / elapsedSeconds, r, expected, expected == 0 ? 0 : 100.0 * r / expected, r / elapsedSeconds);
+        System.out.printf("Latency: p50 %d µs, p90 %d µs, p99 %d µs, p99.9 %d µs, max %d µs%n",
+                all.percentile(0.50), all.percentile(0.90), all.percentile(0.99), all.percentile(0.999), all.max());
+        if (deflate) System.out.println("Client " + Compression.shared());
+        if (tls != null) {
+            tls.sample();
+            System.out.println(tls);
+        }
+        // One machine-readable line, for comparing runs and engines
+        System.out.printf("RESULT clients=%d senders=%d rate=%.0f sent=%d delivered=%d expected=%d disconnects=%d"
+                        + " p50_us=%d p99_us=%d p999_us=%d max_us=%d%n",
+                connected.get(), senderCount, rate, s, r, expected, disconnects.get(),
+                all.percentile(0.50), all.percentile(0.99), all.percentile(0.999), all.max());
+    }
+
+    ////////////////////////////////
+    // Client inner class         //
+    ////////////////////////////////
+    private final class Client {
+        private final int index;
+        private Socket socket;
+        private BufferedInputStream in;
+        private OutputStream out;
+        private volatile boolean ready;
+        private volatile boolean deflateAccepted; // the server's ID_ASSIGN said "deflate"
+
+        Client(int index) {
+            this.index = index;
+        }
+
+        boolean connect() {
+            try {
+                if (tls != null) {
+                    socket = tls.connect(host, port, 5000);
+                } else {
+                    socket = new Socket();
+                    socket.setTcpNoDelay(true);
+                    socket.connect(new InetSocketAddress(host, port), 5000);
+                }
+                in = new BufferedInputStream(socket.getInputStream());
+                out = new BufferedOutputStream(socket.getOutputStream());
+                if (binary) {
+                    out.write(((deflate ? Frame.HELLO_DEFLATE : Frame.HELLO_BINARY) + "\n").getBytes(StandardCharsets.UTF_8));
+                    out.write(Frame.encode(Frame.JOIN, 0, "lg" + index));
+                } else if (usernameHandshake) {
+                    out.write(("lg" + index + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+                out.flush();
+                if (!binary && !usernameHandshake) markReady();
+                return true;
+            } catch (IOException e) {
+                failedConnects.incrementAndGet();
+                close();
+                return false;
+            }
+        }
+
+        private void markReady() {
+            if (!ready) {
+                ready = true;
+                connected.incrementAndGet();
+            }
+        }
+
+        void readLoop() {
+            try {
+                if (binary) {
+                    FrameReader frames = new FrameReader(in);
+                    while (frames.next()) {
+                        if (frames.type == Frame.ID_ASSIGN) {
+                            deflateAccepted = frames.payloadText().contains(Frame.OPTION_DEFLATE);
+                            markReady();
+                        }
+                        else if (frames.type == Frame.CHAT) onMessage(frames.payloadText());
+                        else if (frames.type == Frame.PING) send(Frame.encode(Frame.PONG, 0, frames.payloadCopy()));
+                    }
+                } else {
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        String pong = Heartbeats.pongFor(line);
+                        if (line.startsWith("ID:")) markReady();
+                        else if (pong != null) send((pong + "\n").getBytes(StandardCharsets.UTF_8));
+                        else onMessage(line);
+                    }
+                }
+            } catch (IOException e) {
+                // counted below
+            }
+            if (running) disconnects.incrementAndGet();
+        }
+
+        private void onMessage(String text) {
+            int at = text.indexOf(MARKER);
+            if (at < 0) return;
+            long now = System.nanoTime();
+            String[] parts = text.substring(at + MARKER.length()).split(" ", 3);
+            if (parts.length < 2 || !parts[0].equals(Long.toString(runId))) return;
+            long sentAt = Long.parseLong(parts[1]);
+            long micros = (now - sentAt) / 1000;
+            latency.record(micros);
+            intervalLatency.record(micros);
+            received.increment();
+        }
+
+        void sendLoop(long firstSend, long intervalNanos) {
+            String padding = "x".repeat(Math.max(0, size - 40));
+            long next = firstSend;
+            try {
+                while (running) {
+                    long wait = next - System.nanoTime();
+                    if (wait > 0) LockSupport.parkNanos(wait);
+                    if (!running) break;
+
+                    String text = MARKER + runId + " " + next + " " + padding;
+                    send(binary ? chatFrame(text) : (text + "\n").getBytes(StandardCharsets.UTF_8));
+                    sent.increment();
+                    next += intervalNanos;
+                }
+            } catch (IOException e) {
+                // the reader notices the broken connection
+            }
+        }
+
+        private byte[] chatFrame(String text) {
+            byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+            byte[] compressed = deflateAccepted ? Compression.shared().deflate(payload) : null;
+            return compressed == null ? Frame.encode(Frame.CHAT, 0, payload)
+                    : Frame.encode(Frame.CHAT, Frame.FLAG_DEFLATE, 0, compressed);
+        }
+
+        // The sender and the reader (answering heartbeats) share the stream
+        private void send(byte[] bytes) throws IOException {
+            synchronized (out) {
+                out.write(bytes);
+                out.flush();
+            }
+        }
+
+        void close() {
+            try {
+                if (socket != null) socket.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
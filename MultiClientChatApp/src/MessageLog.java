@@ -0,0 +1,434 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+// MessageLog: persistent, append-only history of routed messages.
+//
+// Senders only offer() a record into a bounded queue (never blocking the broadcast path);
+// one background thread drains it in batches, encodes the batch into a reusable buffer and
+// writes it with a single FileChannel.write. Files are split into segments named after the
+// first sequence number they hold; old segments are deleted by total size and by age.
+//
+// Record layout (big-endian):
+//   int32 bodyLength, int32 crc32c(body),
+//   body: int64 seq, int64 timeMillis, int32 senderId, str room, str sender, str text
+// where str is an int16 byte length followed by UTF-8 bytes (text uses an int32 length).
+// Room and sender names are short (see RoomRegistry, ClientRegistry); anything longer than
+// an int16 length allows is cut when written. A record that does not parse ends the scan
+// like a torn one.
+public class MessageLog implements AutoCloseable {
+
+    // When the log asks the OS to put written data on disk
+    public enum FsyncPolicy {
+        ALWAYS,     // after every batch (group commit: one fsync covers all messages in it)
+        INTERVAL,   // at most every fsyncMillis
+        OS          // never explicitly; the OS flushes when it wants
+    }
+
+    public static class Config {
+        public final Path dir;
+        public final FsyncPolicy fsync;
+        public final long fsyncMillis;
+        public final long segmentBytes;
+        public final long retentionBytes;
+        public final long retentionMillis;
+
+        public Config(Path dir, FsyncPolicy fsync, long fsyncMillis, long segmentBytes, long retentionBytes, long retentionMillis) {
+            this.dir = dir;
+            this.fsync = fsync;
+            this.fsyncMillis = fsyncMillis;
+            this.segmentBytes = segmentBytes;
+            this.retentionBytes = retentionBytes;
+            this.retentionMillis = retentionMillis;
+        }
+
+        // -Dchat.log.dir=chat-log-<chat port> -Dchat.log.fsync=always|interval|os -Dchat.log.fsyncMillis=100
+        // -Dchat.log.segmentMB=64 -Dchat.log.retentionMB=1024 -Dchat.log.retentionHours=168
+        // The default directory is per chat port so nodes sharing a host keep separate logs
+        public static Config fromSystemProperties(int chatPort) {
+            Path dir = Paths.get(System.getProperty("chat.log.dir", "chat-log-" + chatPort));
+            FsyncPolicy fsync = FsyncPolicy.valueOf(System.getProperty("chat.log.fsync", "interval").trim().toUpperCase());
+            long fsyncMillis = Long.getLong("chat.log.fsyncMillis", 100L);
+            long segmentBytes = Long.getLong("chat.log.segmentMB", 64L) << 20;
+            long retentionBytes = Long.getLong("chat.log.retentionMB", 1024L) << 20;
+            long retentionMillis = TimeUnit.HOURS.toMillis(Long.getLong("chat.log.retentionHours", 168L));
+            return new Config(dir, fsync, fsyncMillis, segmentBytes, retentionBytes, retentionMillis);
+        }
+    }
+
+    // One logged message
+    public static final class Record {
+        public final long seq;
+        public final long timeMillis;
+        public final String room;
+        public final int senderId;
+        public final String sender;
+        public final String text;
+
+        public Record(long seq, long timeMillis, String room, int senderId, String sender, String text) {
+            this.seq = seq;
+            this.timeMillis = timeMillis;
+            this.room = room;
+            this.senderId = senderId;
+            this.sender = sender;
+            this.text = text;
+        }
+    }
+
+    private static final AsyncLogger log = AsyncLogger.shared();
+
+    private static final String SUFFIX = ".log";
+    private static final int RECORD_HEADER_BYTES = 8;
+    private static final int QUEUE_CAPACITY = 1 << 16;
+    private static final int MAX_BATCH = 4096;
+    // The writer notices close() within this long; it is never interrupted, since an
+    // interrupt during FileChannel.write or force closes the channel
+    private static final long POLL_MILLIS = 50;
+
+    private final Config config;
+    private final ArrayBlockingQueue<Record> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    // Held while the log is open so a second server pointed at the same directory refuses it
+    private final FileChannel lockChannel;
+    private final FileLock dirLock;
+
+    // Highest sequence number found on disk when the log was opened
+    private final long recoveredSeq;
+
+    private final AtomicLong appended = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    // Writer thread state
+    private FileChannel segment;
+    private long segmentSize;
+    private long lastFsyncMillis = System.currentTimeMillis();
+    private ByteBuffer encodeBuffer = ByteBuffer.allocateDirect(1 << 20);
+    private final CRC32C crc = new CRC32C();
+
+    public MessageLog(Config config) throws IOException {
+        this.config = config;
+        Files.createDirectories(config.dir);
+        this.lockChannel = FileChannel.open(config.dir.resolve("lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            this.dirLock = lockDirectory();
+            this.recoveredSeq = recover();
+        } catch (IOException | RuntimeException e) {
+            lockChannel.close();
+            throw e;
+        }
+        this.writer = new Thread(this::writeLoop, "MessageLog-Writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Next sequence numbers should continue after this one
+    public long lastSequence() {
+        return recoveredSeq;
+    }
+
+    // Queue a message for the log; never blocks. Returns false (and counts a drop)
+    // if the writer has fallen QUEUE_CAPACITY records behind.
+    public boolean append(Record record) {
+        if (!running) return false;
+        if (queue.offer(record)) return true;
+        dropped.incrementAndGet();
+        return false;
+    }
+
+    public long appendedCount() {
+        return appended.get();
+    }
+
+    public long droppedCount() {
+        return dropped.get();
+    }
+
+    // Stop the writer after it has written and synced everything queued so far
+    public void close() {
+        running = false;
+        try {
+            writer.join(30_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            lockChannel.close(); // releases dirLock
+        } catch (IOException ignored) {
+        }
+    }
+
+    // ---- Writer thread ----
+
+    private void writeLoop() {
+        List<Record> batch = new ArrayList<>(MAX_BATCH);
+        try {
+            openSegment(recoveredSeq + 1);
+            while (running || !queue.isEmpty()) {
+                Record first;
+                try {
+                    first = queue.poll(Math.min(config.fsyncMillis, POLL_MILLIS), TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    first = queue.poll(); // nobody interrupts the writer; carry on until close()
+                }
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    writeBatch(batch);
+                    batch.clear();
+                }
+                maybeFsync(false);
+            }
+            maybeFsync(true);
+            segment.close();
+        } catch (IOException e) {
+            log.warn("Message log stopped: ", e.getMessage());
+            running = false;
+        }
+    }
+
+    private void writeBatch(List<Record> batch) throws IOException {
+        encodeBuffer.clear();
+        for (Record r : batch) {
+            byte[] room = shortString(r.room);
+            byte[] sender = shortString(r.sender);
+            byte[] text = r.text.getBytes(StandardCharsets.UTF_8);
+            int body = 8 + 8 + 4 + 2 + room.length + 2 + sender.length + 4 + text.length;
+
+            if (encodeBuffer.remaining() < RECORD_HEADER_BYTES + body) {
+                flushEncoded();
+                if (encodeBuffer.capacity() < RECORD_HEADER_BYTES + body) {
+                    encodeBuffer = ByteBuffer.allocateDirect(RECORD_HEADER_BYTES + body);
+                }
+            }
+            if (segmentSize + encodeBuffer.position() + RECORD_HEADER_BYTES + body > config.segmentBytes && segmentSize > 0) {
+                flushEncoded();
+                rollover(r.seq);
+            }
+
+            int start = encodeBuffer.position();
+            encodeBuffer.putInt(body).putInt(0);
+            encodeBuffer.putLong(r.seq).putLong(r.timeMillis).putInt(r.senderId);
+            encodeBuffer.putShort((short) room.length).put(room);
+            encodeBuffer.putShort((short) sender.length).put(sender);
+            encodeBuffer.putInt(text.length).put(text);
+
+            ByteBuffer bodyView = encodeBuffer.duplicate();
+            bodyView.position(start + RECORD_HEADER_BYTES).limit(encodeBuffer.position());
+            crc.reset();
+            crc.update(bodyView);
+            encodeBuffer.putInt(start + 4, (int) crc.getValue());
+        }
+        flushEncoded();
+        appended.addAndGet(batch.size());
+        if (config.fsync == FsyncPolicy.ALWAYS) {
+            segment.force(false);
+            lastFsyncMillis = System.currentTimeMillis();
+        }
+    }
+
+    // UTF-8 bytes that fit an int16 length
+    private static byte[] shortString(String s) {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        return (b.length <= 0xFFFF) ? b : Arrays.copyOf(b, 0xFFFF);
+    }
+
+    private void flushEncoded() throws IOException {
+        encodeBuffer.flip();
+        while (encodeBuffer.hasRemaining()) {
+            segmentSize += segment.write(encodeBuffer);
+        }
+        encodeBuffer.clear();
+    }
+
+    private void maybeFsync(boolean force) throws IOException {
+        if (config.fsync == FsyncPolicy.OS && !force) return;
+        long now = System.currentTimeMillis();
+        if (force || (config.fsync == FsyncPolicy.INTERVAL && now - lastFsyncMillis >= config.fsyncMillis)) {
+            segment.force(false);
+            lastFsyncMillis = now;
+        }
+    }
+
+    private void openSegment(long firstSeq) throws IOException {
+        List<Path> existing = segments();
+        Path path;
+        if (!existing.isEmpty() && Files.size(existing.get(existing.size() - 1)) < config.segmentBytes) {
+            path = existing.get(existing.size() - 1); // keep appending to the newest segment
+        } else {
+            path = segmentPath(firstSeq);
+        }
+        segment = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segmentSize = segment.size();
+    }
+
+    private void rollover(long firstSeq) throws IOException {
+        segment.force(false);
+        segment.close();
+        segment = FileChannel.open(segmentPath(firstSeq), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segmentSize = 0;
+        applyRetention();
+    }
+
+    // Delete the oldest closed segments while the log is too big or they are too old
+    private void applyRetention() throws IOException {
+        List<Path> all = segments();
+        long total = 0;
+        for (Path p : all) total += Files.size(p);
+        long cutoff = System.currentTimeMillis() - config.retentionMillis;
+
+        for (int i = 0; i < all.size() - 1; i++) { // never the active segment
+            Path p = all.get(i);
+            boolean tooBig = total > config.retentionBytes;
+            boolean tooOld = Files.getLastModifiedTime(p).toMillis() < cutoff;
+            if (!tooBig && !tooOld) break;
+            total -= Files.size(p);
+            Files.deleteIfExists(p);
+        }
+    }
+
+    // ---- Reading ----
+
+    // Segment files, oldest first
+    private List<Path> segments() throws IOException {
+        List<Path> list = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(config.dir, "*" + SUFFIX)) {
+            for (Path p : ds) list.add(p);
+        }
+        list.sort((a, b) -> Long.compare(firstSeqOf(a), firstSeqOf(b)));
+        return list;
+    }
+
+    private Path segmentPath(long firstSeq) {
+        return config.dir.resolve(String.format("%020d%s", firstSeq, SUFFIX));
+    }
+
+    private static long firstSeqOf(Path p) {
+        String name = p.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    // Find the highest sequence number on disk; a torn record at the end of the newest
+    // segment (crash during write) is cut off
+    private FileLock lockDirectory() throws IOException {
+        FileLock lock;
+        try {
+            lock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null; // held by another MessageLog in this JVM
+        }
+        if (lock == null) throw new IOException(config.dir + " is in use by another server");
+        return lock;
+    }
+
+    private long recover() throws IOException {
+        List<Path> all = segments();
+        if (all.isEmpty()) return 0;
+        Path last = all.get(all.size() - 1);
+        long[] maxSeq = {firstSeqOf(last) - 1};
+        long validEnd = scan(last, 0, null, r -> maxSeq[0] = Math.max(maxSeq[0], r.seq));
+        try (FileChannel ch = FileChannel.open(last, StandardOpenOption.WRITE)) {
+            if (ch.size() > validEnd) {
+                log.warn("Message log: truncating torn tail of ", last.getFileName());
+                ch.truncate(validEnd);
+            }
+        }
+        return maxSeq[0];
+    }
+
+    // Stream every record with seq >= fromSeq (optionally only one room), oldest first,
+    // until the consumer has seen 'max' records. Only data already written by the writer
+    // thread is visible.
+    public void read(long fromSeq, String room, int max, Consumer<Record> consumer) throws IOException {
+        List<Path> all = segments();
+        int start = 0;
+        for (int i = 0; i < all.size(); i++) {
+            if (firstSeqOf(all.get(i)) <= fromSeq) start = i;
+        }
+        int[] count = {0};
+        for (int i = start; i < all.size() && count[0] < max; i++) {
+            scan(all.get(i), fromSeq, room, r -> {
+                if (count[0] < max) {
+                    consumer.accept(r);
+                    count[0]++;
+                }
+            });
+        }
+    }
+
+    // Read one segment; returns the offset just after the last valid record
+    private long scan(Path path, long fromSeq, String room, Consumer<Record> consumer) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = ch.size();
+            ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            CRC32C check = new CRC32C();
+            while (buf.remaining() >= RECORD_HEADER_BYTES) {
+                int at = buf.position();
+                int body = buf.getInt();
+                int expectedCrc = buf.getInt();
+                if (body < 28 || body > buf.remaining()) {
+                    buf.position(at);
+                    break;
+                }
+                ByteBuffer bodyView = buf.slice(buf.position(), body);
+                check.reset();
+                check.update(bodyView.duplicate());
+                if ((int) check.getValue() != expectedCrc) {
+                    buf.position(at);
+                    break;
+                }
+                long seq, time;
+                int senderId;
+                String r, sender, text;
+                try {
+                    seq = bodyView.getLong();
+                    time = bodyView.getLong();
+                    senderId = bodyView.getInt();
+                    r = readString(bodyView, bodyView.getShort() & 0xFFFF);
+                    sender = readString(bodyView, bodyView.getShort() & 0xFFFF);
+                    text = readString(bodyView, bodyView.getInt());
+                } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+                    // Lengths that do not fit the body: treat as the end of the valid log
+                    buf.position(at);
+                    break;
+                }
+                buf.position(at + RECORD_HEADER_BYTES + body);
+
+                if (seq >= fromSeq && (room == null || room.equals(r))) {
+                    consumer.accept(new Record(seq, time, r, senderId, sender, text));
+                }
+            }
+            return buf.position();
+        }
+    }
+
+    private static String readString(ByteBuffer buf, int len) {
+        byte[] bytes = new byte[len];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return "log " + config.dir + File.separator + " (" + appended.get() + " written, " + dropped.get() + " dropped)";
+    }
+}
@@ -0,0 +1,853 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.zip.Inflater;
+
+// NioChatServer: same line protocol as ChatServer, but instead of one thread per client
+// it runs a small, fixed pool of event loops (one per core). Each loop owns a Selector and
+// a set of non-blocking SocketChannels, so idle clients cost a few hundred bytes, not a thread.
+// Clients may also negotiate the binary frame protocol (see Frame), and the server can speak
+// TLS (-Dchat.tls.enabled=true): an SSLEngine per connection, run by the same loops (see Tls).
+public class NioChatServer {
+
+    // Longest line we accept from a client before dropping the connection
+    private static final int MAX_LINE_BYTES = 64 * 1024;
+
+    // How long a new connection may take to send the binary hello before it counts as text
+    private static final long HELLO_WAIT_NANOS = 200_000_000L;
+
+    // Size of the read buffer shared by all connections of one event loop
+    private static final int LOOP_READ_BUFFER_BYTES = 64 * 1024;
+
+    // Console output goes through the async logger, off the event loops' critical path
+    private static final AsyncLogger log = AsyncLogger.shared();
+
+    private final int port;
+    private final EventLoop[] loops;
+
+    // All connected clients, keyed by client ID (used for broadcasting)
+    private final ClientRegistry<Connection> connections = new ClientRegistry<>();
+
+    // Outbound queue capacity per client. An event loop cannot block, and the oldest buffer
+    // may be half written, so DROP_OLDEST drops the newest message instead and BLOCK disconnects
+    private final OutboundQueue.Config queueConfig = OutboundQueue.Config.fromSystemProperties();
+
+    // Messages per gathering write across all loops
+    private final FlushStats flushStats = new FlushStats();
+
+    // Connections, rates and fan-out latency (scraped on -Dchat.metrics.port)
+    private final ServerMetrics metrics = new ServerMetrics(flushStats);
+
+    // Token buckets on inbound messages, per connection and for the whole server (no rooms here).
+    // A loop cannot sleep, so DELAY stops reading from the connection until its token is due.
+    private final RateLimiter rateLimiter = new RateLimiter(RateLimiter.Config.fromSystemProperties());
+
+    // Pings silent clients and evicts dead or idle ones; the wheel thread hands evictions to
+    // the owning loop, which is the only thread that may close a connection
+    private final Heartbeats heartbeats = new Heartbeats(Heartbeats.Config.fromSystemProperties());
+    private final long handshakeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(heartbeats.handshakeTimeoutMillis());
+
+    // Encryption for every connection (null = plaintext); set up in start()
+    private Tls tls;
+
+    // Counter to assign unique client IDs
+    private final AtomicInteger clientCount = new AtomicInteger();
+
+    private volatile boolean running = true;
+
+    public NioChatServer(int port, int loopCount) {
+        this.port = port;
+        this.loops = new EventLoop[loopCount];
+    }
+
+    // Open the listening socket, start the event loops and accept clients on the calling thread
+    public void start() throws IOException {
+        tls = Tls.server(Tls.Config.fromSystemProperties());
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+            loops[i].thread = new Thread(loops[i], "EventLoop-" + i);
+            loops[i].thread.start();
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port), 1024);
+            log.info("NIO Chat Server started on port " + port + " with " + loops.length + " event loops"
+                    + (tls != null ? " (TLS)..." : "..."));
+            startMetrics();
+            startFlushReporter();
+
+            int next = 0;
+            while (running) {
+                // Blocking accept; the channel is switched to non-blocking before a loop owns it
+                SocketChannel channel = serverChannel.accept();
+                metrics.onAccept();
+                channel.configureBlocking(false);
+                channel.setOption(java.net.StandardSocketOptions.TCP_NODELAY, true);
+                channel.setOption(java.net.StandardSocketOptions.SO_KEEPALIVE, true); // text clients get no pings
+
+                // Hand connections to the loops round-robin
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        }
+    }
+
+    private void startMetrics() {
+        metrics.queueDepths(() -> {
+            Map<Integer, Integer> depths = new TreeMap<>();
+            for (Connection c : connections.clients()) depths.put(c.clientId, c.depth());
+            return depths;
+        });
+        metrics.rateLimiter(rateLimiter);
+        metrics.heartbeats(heartbeats);
+        metrics.compression(Compression.shared());
+        metrics.tls(tls);
+        try {
+            metrics.startEndpoint(ServerMetrics.portFromSystemProperties());
+        } catch (IOException e) {
+            log.warn("Metrics endpoint not started: ", e.getMessage());
+        }
+    }
+
+    // Print write-batching numbers every 10 seconds while there is traffic
+    private void startFlushReporter() {
+        Thread t = new Thread(() -> {
+            while (running) {
+                try {
+                    Thread.sleep(10_000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                flushStats.sample();
+                metrics.sample();
+                if (flushStats.flushesPerSecond() > 0) {
+                    log.info("Flush stats: ", flushStats);
+                    log.info("Fan-out latency: ", metrics.recentLatency());
+                    log.info("Inbound ", rateLimiter);
+                    Compression compression = Compression.shared();
+                    if (compression.compressedCount() + compression.inflatedCount() > 0) log.info("Wire ", compression);
+                }
+                if (connections.size() > 0) {
+                    log.info("Connections: ", heartbeats);
+                }
+                if (tls != null && tls.handshakeCount() > 0) {
+                    log.info("Transport ", tls);
+                }
+            }
+        }, "Flush-Stats");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // Send a message to every client except the sender (same semantics as ChatServer).
+    // It is encoded once per protocol; each connection writes its own view of the shared bytes.
+    private void broadcast(EncodedMessage encoded, Connection sender) {
+        for (Connection c : connections.clients()) {
+            if (c != sender) {
+                c.enqueue(encoded);
+            }
+        }
+        encoded.release();
+    }
+
+    ////////////////////////////////
+    // EventLoop inner class      //
+    ////////////////////////////////
+    private final class EventLoop implements Runnable {
+        private final int index;
+        private final Selector selector;
+        private Thread thread;
+
+        // Channels accepted by the acceptor thread, waiting to be registered on this selector
+        private final Queue<SocketChannel> pendingRegistrations = new ConcurrentLinkedQueue<>();
+
+        // Connections with new outbound data queued from other threads
+        private final Queue<Connection> pendingFlushes = new ConcurrentLinkedQueue<>();
+
+        // Work handed to this loop by other threads (e.g. evictions from the heartbeat wheel)
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        // Avoids calling selector.wakeup() once per queued message
+        private final AtomicBoolean wakeupPending = new AtomicBoolean();
+
+        // One read buffer per loop: a connection only keeps bytes of an incomplete line
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(LOOP_READ_BUFFER_BYTES);
+
+        // Connections that have not shown which protocol they speak (loop thread only)
+        private final List<Connection> undecided = new ArrayList<>();
+
+        // Connections not being read from until their rate-limit delay ends (loop thread only)
+        private final List<Connection> paused = new ArrayList<>();
+
+        // Encrypted-byte buffers lent to this loop's TLS connections while data is in transit
+        private final TlsChannel.BufferPool tlsBuffers = (tls == null) ? null : new TlsChannel.BufferPool(tls.newServerEngine(), 256);
+
+        // Scratch array for gathering writes (loop thread only)
+        private final ByteBuffer[] gather = new ByteBuffer[queueConfig.maxBatch];
+        private final EncodedMessage[] gatherMessages = new EncodedMessage[queueConfig.maxBatch];
+
+        EventLoop(int index) throws IOException {
+            this.index = index;
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            pendingRegistrations.add(channel);
+            wakeup();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            wakeup();
+        }
+
+        void scheduleFlush(Connection c) {
+            pendingFlushes.add(c);
+            wakeup();
+        }
+
+        private void wakeup() {
+            if (wakeupPending.compareAndSet(false, true)) {
+                selector.wakeup();
+            }
+        }
+
+        public void run() {
+            while (running) {
+                try {
+                    selector.select(selectTimeoutMillis());
+                    wakeupPending.set(false);
+
+                    processRegistrations();
+                    processTasks();
+                    processFlushes();
+                    processUndecided();
+                    processPaused();
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Connection c = (Connection) key.attachment();
+                        if (!key.isValid()) {
+                            c.close();
+                            continue;
+                        }
+                        if (key.isReadable()) {
+                            c.onReadable(readBuffer);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            c.flush();
+                        }
+                    }
+                } catch (IOException e) {
+                    log.warn("Event loop " + index + " error: " + e.getMessage());
+                }
+            }
+        }
+
+        private void processRegistrations() {
+            SocketChannel channel;
+            while ((channel = pendingRegistrations.poll()) != null) {
+                Connection c = new Connection(channel, clientCount.incrementAndGet(), this);
+                try {
+                    if (tls != null) c.tls = new TlsChannel(channel, tls.newServerEngine(), tlsBuffers, tls);
+                    c.key = channel.register(selector, SelectionKey.OP_READ, c);
+                } catch (IOException e) {
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {}
+                    continue;
+                }
+                connections.add(c.clientId, c);
+                metrics.onConnect();
+                undecided.add(c);
+                log.info("Client " + c.clientId + " joined the chat.");
+            }
+        }
+
+        // Wake up for the hello window and for the earliest paused connection (0 = no timeout)
+        private long selectTimeoutMillis() {
+            long timeout = undecided.isEmpty() ? 0 : 50;
+            if (!paused.isEmpty()) {
+                long now = System.nanoTime();
+                long earliest = Long.MAX_VALUE;
+                for (Connection c : paused) earliest = Math.min(earliest, c.readsPausedUntil - now);
+                long millis = Math.max(1, (earliest + 999_999) / 1_000_000);
+                timeout = (timeout == 0) ? millis : Math.min(timeout, millis);
+            }
+            return timeout;
+        }
+
+        // Stop reading from a connection for 'nanos' (rate limit DELAY policy)
+        void pauseReads(Connection c, long nanos) {
+            long until = System.nanoTime() + nanos;
+            if (c.readsPaused) {
+                c.readsPausedUntil = Math.max(c.readsPausedUntil, until);
+                return;
+            }
+            c.readsPaused = true;
+            c.readsPausedUntil = until;
+            paused.add(c);
+            c.updateInterest();
+        }
+
+        private void processPaused() {
+            if (paused.isEmpty()) return;
+            long now = System.nanoTime();
+            // Backwards by index: a resumed connection may pause again and be appended
+            for (int i = paused.size() - 1; i >= 0; i--) {
+                Connection c = paused.get(i);
+                if (c.closed) {
+                    paused.remove(i);
+                } else if (now - c.readsPausedUntil >= 0) {
+                    paused.remove(i);
+                    c.resumeReads();
+                }
+            }
+        }
+
+        // Silent connections are text clients once the hello window has passed
+        private void processUndecided() {
+            long now = System.nanoTime();
+            for (Iterator<Connection> it = undecided.iterator(); it.hasNext(); ) {
+                Connection c = it.next();
+                if (c.closed || c.protocolKnown) {
+                    it.remove();
+                } else if ((c.tls == null || c.tls.handshakeDone()) && now - c.connectedAt > HELLO_WAIT_NANOS) {
+                    it.remove();
+                    c.decideProtocol(false);
+                } else if (c.tls != null && handshakeTimeoutNanos > 0 && now - c.connectedAt > handshakeTimeoutNanos) {
+                    // Not watched by the heartbeats until the protocol is known
+                    it.remove();
+                    log.warn("Client " + c.clientId + " did not finish the TLS handshake.");
+                    c.close();
+                }
+            }
+        }
+
+        private void processTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+
+        private void processFlushes() {
+            Connection c;
+            while ((c = pendingFlushes.poll()) != null) {
+                c.flushScheduled.set(false);
+                c.flush();
+            }
+        }
+    }
+
+    ////////////////////////////////
+    // Connection inner class     //
+    ////////////////////////////////
+    private final class Connection implements Heartbeats.Peer {
+        private final SocketChannel channel;
+        private TlsChannel tls;      // null for a plaintext connection
+        private final int clientId;
+        private final EventLoop loop;
+        private SelectionKey key;
+
+        // Bytes of a line or frame that is not complete yet; null while the client is idle
+        private ByteBuffer partial;
+
+        // When the bytes being parsed were read (start of the fan-out latency)
+        private long receivedNanos;
+
+        // Binary clients send "#HELLO bin" right after connecting. Until the first bytes arrive
+        // (or HELLO_WAIT_NANOS pass) nothing is written, so a binary client never gets text.
+        // With TLS the window starts when the handshake is done.
+        private long connectedAt = System.nanoTime();
+        private boolean protocolKnown;
+        private volatile boolean binary;
+
+        // Compressed frames: asked for in the hello, used once the ID_ASSIGN said yes (loop thread only)
+        private boolean deflateAsked;
+        private boolean deflate;
+        private Inflater inflater;
+
+        // Builds the legacy text line for a chat message from this client
+        private final Function<String, String> lineFormat;
+
+        // Outbound messages, filled by any thread and drained by the owning loop
+        private final Queue<EncodedMessage> outbound = new ConcurrentLinkedQueue<>();
+
+        // This connection's view of the head message while it is partially written
+        private ByteBuffer writing;
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicLong dropped = new AtomicLong();
+        private volatile boolean overflowed;
+
+        // This client's message rate; reads stop while a DELAY is pending (loop thread only)
+        private final TokenBucket limit = rateLimiter.newClientBucket();
+        private boolean throttled;
+        private boolean readsPaused;
+        private long readsPausedUntil;
+        private ByteBuffer held;     // bytes read but not parsed when reads were paused
+        private boolean writePending;
+
+        // Liveness of this connection (null if heartbeats are off)
+        private Heartbeats.Monitor heartbeat;
+
+        private volatile boolean closed;
+
+        Connection(SocketChannel channel, int clientId, EventLoop loop) {
+            this.channel = channel;
+            this.clientId = clientId;
+            this.loop = loop;
+            this.lineFormat = text -> "Client " + clientId + ": " + text;
+        }
+
+        // Queue data for this client and make sure its loop will write it
+        void enqueue(EncodedMessage message) {
+            if (overflowed || closed) return;
+            if (queued.incrementAndGet() > queueConfig.capacity) {
+                if (queueConfig.policy == OutboundQueue.OverflowPolicy.DROP_OLDEST) {
+                    queued.decrementAndGet();
+                    dropped.incrementAndGet();
+                    return;
+                }
+                // Slow consumer: let the owning loop close it
+                overflowed = true;
+            } else {
+                outbound.add(message.retain());
+                // Lost a race with close() draining the queue: do not strand the message
+                if (closed) {
+                    discardOutbound();
+                    return;
+                }
+            }
+            if (Thread.currentThread() == loop.thread) {
+                // Same loop (e.g. a burst of lines read from a neighbour): write out full
+                // batches right away instead of letting the queue grow until the read ends
+                if (queued.get() >= queueConfig.maxBatch) flush();
+                else if (flushScheduled.compareAndSet(false, true)) loop.scheduleFlush(this);
+            } else if (flushScheduled.compareAndSet(false, true)) {
+                loop.scheduleFlush(this);
+            }
+        }
+
+        // Called on the loop thread when the channel has data
+        void onReadable(ByteBuffer readBuffer) {
+            readBuffer.clear();
+            int n;
+            try {
+                n = (tls == null) ? channel.read(readBuffer) : readTls(readBuffer);
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            if (n < 0) {
+                close();
+                return;
+            }
+            if (n == 0) {
+                // Only handshake data or part of a TLS record; still a sign of life
+                if (heartbeat != null) heartbeat.onRead(System.nanoTime());
+                return;
+            }
+            readBuffer.flip();
+            metrics.onInboundBytes(n);
+            receivedNanos = System.nanoTime();
+            if (heartbeat != null) heartbeat.onRead(receivedNanos);
+
+            // Only a line starting with '#' can be the binary hello
+            if (!protocolKnown && partial == null && readBuffer.hasRemaining()
+                    && readBuffer.get(readBuffer.position()) != '#') {
+                decideProtocol(false);
+            }
+
+            parse(readBuffer);
+
+            // More decrypted data than fit into the loop's buffer: continue on the next turn
+            if (tls != null && tls.moreAvailable() && !readsPaused && !closed) {
+                loop.execute(() -> onReadable(loop.readBuffer));
+            }
+        }
+
+        // Decrypt what arrived; the handshake runs in here and may leave output to write
+        private int readTls(ByteBuffer readBuffer) throws IOException {
+            boolean wasDone = tls.handshakeDone();
+            int n = tls.read(readBuffer);
+            if (!wasDone && tls.handshakeDone()) connectedAt = System.nanoTime(); // hello window starts now
+            if (tls.hasPendingOutput() && !writePending) {
+                writePending = true;
+                updateInterest();
+            }
+            return n;
+        }
+
+        private void parse(ByteBuffer buf) {
+            try {
+                // The hello line switches the rest of the buffer to frames
+                while (buf.hasRemaining() && !closed && !readsPaused) {
+                    if (binary) readFrames(buf);
+                    else readLines(buf);
+                }
+            } catch (IOException e) {
+                log.warn("Client " + clientId + ": " + e.getMessage());
+                close();
+                return;
+            }
+            // Paused by the rate limit: keep the rest (the loop's buffer is reused) until resumeReads()
+            if (readsPaused && !closed && buf.hasRemaining()) {
+                held = ByteBuffer.allocate(buf.remaining());
+                held.put(buf).flip();
+            }
+        }
+
+        // The rate-limit delay is over: parse what was held back, then read again
+        void resumeReads() {
+            readsPaused = false;
+            if (held != null) {
+                ByteBuffer buf = held;
+                held = null;
+                parse(buf);
+            }
+            if (!readsPaused) {
+                updateInterest();
+                // Records decrypted before the pause are not announced by the selector again
+                if (tls != null && tls.moreAvailable()) onReadable(loop.readBuffer);
+            }
+        }
+
+        // Split the received bytes into lines; returns early if the protocol switched to binary
+        private void readLines(ByteBuffer readBuffer) {
+            while (readBuffer.hasRemaining() && !binary && !readsPaused) {
+                int start = readBuffer.position();
+                int newline = -1;
+                for (int i = start; i < readBuffer.limit(); i++) {
+                    if (readBuffer.get(i) == '\n') {
+                        newline = i;
+                        break;
+                    }
+                }
+
+                if (newline < 0) {
+                    // Keep the incomplete tail until more bytes arrive
+                    appendPartial(readBuffer, readBuffer.limit());
+                    return;
+                }
+
+                appendPartial(readBuffer, newline);
+                if (closed) return;
+                readBuffer.position(newline + 1);
+                onLine(takeLine());
+            }
+        }
+
+        // Handle every complete frame in place; only an incomplete tail is copied to 'partial'
+        private void readFrames(ByteBuffer buf) throws IOException {
+            // First finish a frame started by an earlier read
+            while (partial != null && buf.hasRemaining() && !readsPaused) {
+                // Collect the length field first, then the rest of the frame
+                int have = partial.position();
+                if (have >= 4) Frame.completeFrameLength(partial, 0, have); // validates the length field
+                int want = (have < 4) ? 4 : partial.getInt(0) + 4;
+                appendPartial(buf, buf.position() + Math.min(want - have, buf.remaining()));
+                if (closed) return;
+                if (partial.position() >= 4 && Frame.completeFrameLength(partial, 0, partial.position()) > 0) {
+                    onFrame(partial, 0);
+                    partial = null;
+                }
+            }
+
+            while (buf.hasRemaining() && !closed && !readsPaused) {
+                int at = buf.position();
+                int total = Frame.completeFrameLength(buf, at, buf.limit());
+                if (total < 0) {
+                    appendPartial(buf, buf.limit());
+                    return;
+                }
+                onFrame(buf, at);
+                buf.position(at + total);
+            }
+        }
+
+        private void onFrame(ByteBuffer buf, int at) {
+            switch (Frame.type(buf, at)) {
+                case Frame.CHAT: {
+                    if (heartbeat != null) heartbeat.onMessage(receivedNanos);
+                    if (!admit()) break;
+                    // The only copy: the payload becomes the shared message body.
+                    // The text line is formatted only if a text client receives it.
+                    byte[] payload = new byte[Frame.payloadLength(buf, at)];
+                    buf.get(Frame.payloadOffset(at), payload);
+                    if ((Frame.flags(buf, at) & Frame.FLAG_DEFLATE) != 0) {
+                        if (inflater == null) inflater = Compression.newInflater();
+                        try {
+                            payload = Compression.shared().inflate(inflater, payload, 0, payload.length);
+                        } catch (IOException e) {
+                            log.warn("Client " + clientId + ": " + e.getMessage());
+                            close();
+                            break;
+                        }
+                    }
+                    broadcast(received(EncodedMessage.ofFrame(Frame.CHAT, clientId, payload, lineFormat)), this);
+                    break;
+                }
+                case Frame.JOIN: {
+                    // The accepted options go back with the ID; compressed frames only after that
+                    byte[] options = deflateAsked ? Frame.OPTION_DEFLATE.getBytes(StandardCharsets.UTF_8) : null;
+                    enqueueAndRelease(EncodedMessage.control(Frame.ID_ASSIGN, clientId, options));
+                    deflate = deflateAsked;
+                    break;
+                }
+                case Frame.PING: {
+                    byte[] payload = new byte[Frame.payloadLength(buf, at)];
+                    buf.get(Frame.payloadOffset(at), payload);
+                    enqueueAndRelease(EncodedMessage.control(Frame.PONG, 0, payload));
+                    break;
+                }
+                default:
+                    break; // nothing else is expected from clients yet
+            }
+        }
+
+        private void enqueueAndRelease(EncodedMessage message) {
+            enqueue(message);
+            message.release();
+        }
+
+        private void decideProtocol(boolean binaryClient) {
+            protocolKnown = true;
+            binary = binaryClient;
+            heartbeat = heartbeats.watch(this, binaryClient); // pings only for binary clients
+            flush(); // anything queued before the decision can go out now
+        }
+
+        private void appendPartial(ByteBuffer src, int end) {
+            int len = end - src.position();
+            if (len == 0 && partial == null) return;
+
+            int needed = (partial == null ? 0 : partial.position()) + len;
+            if (needed > MAX_LINE_BYTES) {
+                log.warn("Client " + clientId + " sent an oversized line.");
+                close();
+                return;
+            }
+            if (partial == null) {
+                partial = ByteBuffer.allocate(Math.max(256, len));
+            } else if (partial.remaining() < len) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(needed, partial.capacity() * 2));
+                partial.flip();
+                bigger.put(partial);
+                partial = bigger;
+            }
+            ByteBuffer slice = src.duplicate();
+            slice.limit(end);
+            partial.put(slice);
+            src.position(end);
+        }
+
+        // Decode the buffered line (without '\n' and optional '\r') and reset the partial buffer
+        private String takeLine() {
+            if (partial == null) return "";
+            partial.flip();
+            int len = partial.remaining();
+            if (len > 0 && partial.get(partial.limit() - 1) == '\r') len--;
+            String line = new String(partial.array(), 0, len, StandardCharsets.UTF_8);
+            partial = null;
+            return line;
+        }
+
+        private void onLine(String message) {
+            if (!protocolKnown) {
+                boolean hello = Frame.isBinaryHello(message);
+                deflateAsked = Frame.wantsDeflate(message) && Compression.shared().enabled();
+                decideProtocol(hello);
+                if (hello) return;
+            }
+            // Heartbeats only show the client is alive (the read already counted)
+            if (message.startsWith("#")) {
+                String pong = Heartbeats.pongFor(message);
+                if (pong != null) {
+                    enqueueAndRelease(EncodedMessage.of(pong));
+                    return;
+                }
+                if (Heartbeats.isPong(message)) return;
+            }
+            if (heartbeat != null) heartbeat.onMessage(receivedNanos);
+            if (!admit()) return;
+            // Format message with client ID, exactly like ChatServer
+            broadcast(received(EncodedMessage.of(lineFormat.apply(message), Frame.CHAT, clientId, message)), this);
+        }
+
+        // Apply the rate limits to one inbound chat message; false if it must not be sent on
+        private boolean admit() {
+            long verdict = rateLimiter.admit(limit, null);
+            if (verdict == RateLimiter.DISCONNECT) {
+                log.warn("Client " + clientId + " exceeded the rate limit, disconnecting.");
+                close();
+                return false;
+            }
+            if (verdict == RateLimiter.DROP) {
+                // Say it once per burst, not once per dropped line
+                if (!throttled) enqueueAndRelease(EncodedMessage.of("⚠ You are sending too fast; messages are being dropped."));
+                throttled = true;
+                return false;
+            }
+            throttled = false;
+            // DELAY: this message goes out, but nothing more is parsed or read until the next
+            // token is due (the held bytes and then the socket buffer fill up, TCP pushes back)
+            if (verdict > 0) loop.pauseReads(this, verdict);
+            return true;
+        }
+
+        // Count an inbound chat message and time its fan-out from the read that delivered it
+        private EncodedMessage received(EncodedMessage message) {
+            metrics.onInboundMessage();
+            metrics.track(message, receivedNanos);
+            return message;
+        }
+
+        // Number of buffers waiting to be written to this client
+        int depth() {
+            return queued.get();
+        }
+
+        // Write as much queued data as the socket accepts; wait for OP_WRITE for the rest
+        void flush() {
+            if (closed) return;
+            if (tls != null && !flushTls()) return;
+            if (!protocolKnown) return;
+            if (overflowed) {
+                log.warn("Client " + clientId + " is too slow, disconnecting.");
+                close();
+                return;
+            }
+            ByteBuffer[] gather = loop.gather;
+            EncodedMessage[] messages = loop.gatherMessages;
+            try {
+                while (!outbound.isEmpty()) {
+                    // Coalesce up to maxBatch queued messages into one gathering write
+                    int n = 0;
+                    for (EncodedMessage m : outbound) {
+                        if (n == gather.length) break;
+                        gather[n] = (n == 0 && writing != null) ? writing : m.buffer(binary, deflate);
+                        messages[n++] = m;
+                    }
+                    long bytes = (tls == null) ? channel.write(gather, 0, n) : tls.write(gather, 0, n);
+
+                    // Release every message that went out completely
+                    int written = 0;
+                    while (written < n && !gather[written].hasRemaining()) {
+                        outbound.poll();
+                        queued.decrementAndGet();
+                        messages[written].release();
+                        written++;
+                    }
+                    writing = (written < n && gather[written].position() > 0) ? gather[written] : null;
+                    Arrays.fill(gather, 0, n, null);
+                    Arrays.fill(messages, 0, n, null);
+                    if (written > 0) flushStats.recordFlush(written, bytes);
+
+                    if (written < n || (tls != null && tls.hasPendingOutput())) {
+                        // Socket buffer is full: continue when it becomes writable
+                        writePending = true;
+                        updateInterest();
+                        return;
+                    }
+                }
+                writePending = false;
+                updateInterest();
+            } catch (IOException | CancelledKeyException e) {
+                close();
+            }
+        }
+
+        // Encrypted bytes left over from the handshake or an earlier write go first
+        private boolean flushTls() {
+            try {
+                if (tls.flush()) {
+                    if (!protocolKnown && writePending) {
+                        writePending = false;
+                        updateInterest();
+                    }
+                    return true;
+                }
+            } catch (IOException e) {
+                close();
+                return false;
+            }
+            writePending = true;
+            updateInterest();
+            return false;
+        }
+
+        // Heartbeats.Peer: called on the timer wheel thread; enqueue() is thread-safe
+        public void sendPing(long token) {
+            enqueueAndRelease(EncodedMessage.of(Heartbeats.PING_PREFIX + " " + token, Frame.PING, 0, Long.toString(token)));
+        }
+
+        public void evict(String reason) {
+            loop.execute(() -> {
+                if (closed) return;
+                log.warn("Client " + clientId + ": " + reason + ", disconnecting.");
+                close();
+            });
+        }
+
+        // Read unless paused by the rate limit; write interest only while data is left over
+        void updateInterest() {
+            if (closed) return;
+            try {
+                key.interestOps((readsPaused ? 0 : SelectionKey.OP_READ) | (writePending ? SelectionKey.OP_WRITE : 0));
+            } catch (CancelledKeyException e) {
+                close();
+            }
+        }
+
+        // Release what is still queued (any thread; each message is polled once)
+        private void discardOutbound() {
+            EncodedMessage m;
+            while ((m = outbound.poll()) != null) {
+                m.release();
+            }
+        }
+
+        void close() {
+            if (closed) return;
+            closed = true;
+            if (heartbeat != null) heartbeat.stop();
+            connections.remove(clientId, this);
+            metrics.onDisconnect();
+            writing = null;
+            discardOutbound();
+            partial = null;
+            held = null;
+            if (tls != null) tls.close();
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+            log.info("Client " + clientId + " removed from chat.");
+        }
+    }
+
+    // Entry point: optional args are port and number of event loops
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int loopCount = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        new NioChatServer(port, loopCount).start();
+    }
+}
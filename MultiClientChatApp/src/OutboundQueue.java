@@ -0,0 +1,270 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// OutboundQueue: a bounded queue of encoded lines waiting to be written to ONE client.
+// Senders only offer() into it; a separate writer task (run()) drains it into the socket,
+// so a slow or stalled peer fills its own queue instead of blocking the sender.
+// The writer coalesces queued messages and flushes them in batches (see Config).
+public class OutboundQueue implements Runnable {
+
+    // What to do when the queue of a client is full
+    public enum OverflowPolicy {
+        DROP_OLDEST,   // discard the oldest queued line to make room
+        DISCONNECT,    // treat the client as a slow consumer and disconnect it
+        BLOCK          // wait up to blockMillis for room, then disconnect
+    }
+
+    // Settings shared by all queues of a server
+    public static class Config {
+        public final int capacity;
+        public final OverflowPolicy policy;
+        public final long blockMillis;
+        public final int maxBatch;          // most messages written before one flush
+        public final long maxDelayNanos;    // longest a batch waits for more messages
+
+        public Config(int capacity, OverflowPolicy policy, long blockMillis, int maxBatch, long maxDelayNanos) {
+            this.capacity = capacity;
+            this.policy = policy;
+            this.blockMillis = blockMillis;
+            this.maxBatch = maxBatch;
+            this.maxDelayNanos = maxDelayNanos;
+        }
+
+        // -Dchat.queue.capacity=1024 -Dchat.queue.overflow=drop-oldest|disconnect|block -Dchat.queue.blockMillis=100
+        // -Dchat.flush.maxBatch=64 -Dchat.flush.maxDelayMicros=1000
+        public static Config fromSystemProperties() {
+            int capacity = Integer.getInteger("chat.queue.capacity", 1024);
+            String name = System.getProperty("chat.queue.overflow", "drop-oldest");
+            OverflowPolicy policy = OverflowPolicy.valueOf(name.trim().toUpperCase().replace('-', '_'));
+            long blockMillis = Long.getLong("chat.queue.blockMillis", 100L);
+            int maxBatch = Math.max(1, Integer.getInteger("chat.flush.maxBatch", 64));
+            long maxDelayMicros = Long.getLong("chat.flush.maxDelayMicros", 1000L);
+            return new Config(capacity, policy, blockMillis, maxBatch, TimeUnit.MICROSECONDS.toNanos(maxDelayMicros));
+        }
+    }
+
+    // Marker used to wake up and stop the writer task
+    private static final EncodedMessage POISON = EncodedMessage.of("<close>");
+
+    private final ArrayBlockingQueue<EncodedMessage> queue;
+    private final Config config;
+    private final OutputStream out;
+    private final Runnable onSlowConsumer;
+    private final FlushStats flushStats;
+
+    // Size of the previous batch; lingering for more only pays off while traffic is bursty
+    private int lastBatchSize;
+
+    // Messages of the current batch, released after the flush that sends them
+    private final EncodedMessage[] inFlight;
+
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean closed;
+
+    // Set once the client negotiated binary frames (see Frame)
+    private volatile boolean binary;
+
+    // Set once a binary client also negotiated compressed frames (see Compression)
+    private volatile boolean deflate;
+
+    // Set if the client acknowledges sequenced messages: what is written (or still queued when
+    // the queue closes) is kept there until acked (see Delivery)
+    private volatile Delivery.Window window;
+
+    // onSlowConsumer is called (once) when the client has to be disconnected
+    public OutboundQueue(Config config, OutputStream out, FlushStats flushStats, Runnable onSlowConsumer) {
+        this.queue = new ArrayBlockingQueue<>(config.capacity);
+        this.inFlight = new EncodedMessage[config.maxBatch];
+        this.config = config;
+        this.out = out;
+        this.flushStats = flushStats;
+        this.onSlowConsumer = onSlowConsumer;
+    }
+
+    // Queue a message for this client; returns false if it was not accepted.
+    // An accepted message is retained until it has been written or dropped.
+    public boolean offer(EncodedMessage message) {
+        if (closed) return false;
+        if (!binary && message.isControl()) return false; // text clients have no use for it
+        message.retain();
+        if (queue.offer(message)) {
+            // Lost a race with close(): make sure the message is not stranded
+            if (closed) discardQueued();
+            return true;
+        }
+
+        // Acknowledged delivery promises at-least-once: nothing sequenced may be dropped, so
+        // overflow disconnects and the window (with what was queued) waits for the resume
+        OverflowPolicy policy = (window != null) ? OverflowPolicy.DISCONNECT : config.policy;
+        switch (policy) {
+            case DROP_OLDEST:
+                while (!closed) {
+                    EncodedMessage oldest = queue.poll();
+                    if (oldest != null) {
+                        dropped.incrementAndGet();
+                        oldest.release();
+                    }
+                    if (queue.offer(message)) return true;
+                }
+                break;
+
+            case BLOCK:
+                try {
+                    if (queue.offer(message, config.blockMillis, TimeUnit.MILLISECONDS)) return true;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                slowConsumer(message);
+                break;
+
+            default:
+                slowConsumer(message);
+                break;
+        }
+        message.release();
+        return false;
+    }
+
+    // Queue a message, waiting up to 'millis' for room (the caller may block: a resuming
+    // client's handler before it reads anything). A client that takes no more in that time
+    // is a slow consumer.
+    public boolean offerWaiting(EncodedMessage message, long millis) {
+        if (closed) return false;
+        message.retain();
+        try {
+            if (queue.offer(message, millis, TimeUnit.MILLISECONDS)) {
+                if (closed) discardQueued();
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        slowConsumer(message);
+        message.release();
+        return false;
+    }
+
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public void setDeflate(boolean deflate) {
+        this.deflate = deflate;
+    }
+
+    public void setWindow(Delivery.Window window) {
+        this.window = window;
+    }
+
+    // Number of messages currently waiting to be written
+    public int depth() {
+        return queue.size();
+    }
+
+    // Number of messages discarded by DROP_OLDEST so far
+    public long dropped() {
+        return dropped.get();
+    }
+
+    // Stop the writer task; queued messages are discarded
+    public void close() {
+        if (closed) return;
+        closed = true;
+        discardQueued();
+        queue.offer(POISON);
+    }
+
+    private void discardQueued() {
+        boolean poisoned = false;
+        Delivery.Window w = window;
+        EncodedMessage m;
+        while ((m = queue.poll()) != null) {
+            if (m == POISON) {
+                poisoned = true;
+                continue;
+            }
+            if (w != null && m.seq() > 0) w.add(m); // not sent, so not acked: resent on resume
+            m.release();
+        }
+        // Keep the stop marker for a writer that has not seen it yet
+        if (poisoned) queue.offer(POISON);
+    }
+
+    private void slowConsumer() {
+        slowConsumer(null);
+    }
+
+    // 'rejected' is the message that did not fit: with a window it goes in after the queued
+    // ones, so a resume sends it too
+    private void slowConsumer(EncodedMessage rejected) {
+        if (closed) return;
+        close();
+        Delivery.Window w = window;
+        if (w != null && rejected != null && rejected.seq() > 0) w.add(rejected);
+        onSlowConsumer.run();
+    }
+
+    // Writer task: drains the queue into the client's socket, one flush per batch
+    public void run() {
+        try {
+            while (!closed) {
+                EncodedMessage message = queue.take();
+                if (message == POISON) break;
+
+                int batch = 0;
+                long bytes = 0;
+                long deadline = System.nanoTime() + config.maxDelayNanos;
+                try {
+                    // Coalesce: keep writing into the buffered stream until the batch is full,
+                    // the queue is empty (and traffic is not bursty) or the max delay passed
+                    while (message != null && message != POISON) {
+                        inFlight[batch++] = message;
+                        bytes += write(message);
+                        if (batch >= config.maxBatch) break;
+
+                        message = queue.poll();
+                        if (message == null && lastBatchSize > 1) {
+                            long wait = deadline - System.nanoTime();
+                            if (wait > 0) message = queue.poll(wait, TimeUnit.NANOSECONDS);
+                        }
+                    }
+                    out.flush();
+                    flushStats.recordFlush(batch, bytes);
+                } catch (IOException e) {
+                    // The socket is broken; let the owner clean up
+                    slowConsumer();
+                } finally {
+                    // Written (or failed) messages are done with: release them only now, so
+                    // a release hook sees the time the bytes actually went to the socket
+                    for (int i = 0; i < batch; i++) {
+                        inFlight[i].release();
+                        inFlight[i] = null;
+                    }
+                }
+                lastBatchSize = batch;
+                if (message == POISON) break;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            discardQueued();
+        }
+    }
+
+    // Returns the number of bytes written
+    private int write(EncodedMessage message) throws IOException {
+        Delivery.Window w = window;
+        boolean sequenced = w != null && message.seq() > 0;
+        if (sequenced) w.add(message); // first: a failed write must be resent too
+        message.writeTo(out, binary, deflate, sequenced);
+        return message.length(binary, deflate, sequenced);
+    }
+}
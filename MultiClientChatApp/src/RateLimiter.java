@@ -0,0 +1,134 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// RateLimiter: token-bucket limits on inbound chat messages, so one flooding client cannot
+// make the server write N copies of every line it sends as fast as it can.
+//
+// Three levels, each a TokenBucket (unlimited when its rate is 0): one bucket per connection,
+// one per room (see RoomRegistry) and one global bucket for the whole server. A message must
+// get a token from every level that applies. What happens when it cannot is the Policy.
+public class RateLimiter {
+
+    // What to do with a message over the limit
+    public enum Policy {
+        DROP,        // discard it (the sender is told once per burst)
+        DELAY,       // stop reading from the sender until a token is free (TCP pushes back);
+                     // if that is more than maxDelay away, the message is dropped
+        DISCONNECT   // treat the client as abusive and close the connection
+    }
+
+    // Results of admit() other than a wait time
+    public static final long DROP = -1;
+    public static final long DISCONNECT = -2;
+
+    // Settings shared by all connections of a server
+    public static class Config {
+        public final double clientRate, roomRate, globalRate;   // messages per second, 0 = no limit
+        public final int clientBurst, roomBurst, globalBurst;   // messages allowed at once
+        public final Policy policy;
+        public final long maxDelayNanos;
+
+        public Config(double clientRate, int clientBurst, double roomRate, int roomBurst,
+                      double globalRate, int globalBurst, Policy policy, long maxDelayNanos) {
+            this.clientRate = clientRate;
+            this.clientBurst = clientBurst;
+            this.roomRate = roomRate;
+            this.roomBurst = roomBurst;
+            this.globalRate = globalRate;
+            this.globalBurst = globalBurst;
+            this.policy = policy;
+            this.maxDelayNanos = maxDelayNanos;
+        }
+
+        // -Dchat.limit.client.rate=20 -Dchat.limit.client.burst=40
+        // -Dchat.limit.room.rate=0 -Dchat.limit.room.burst=200
+        // -Dchat.limit.global.rate=0 -Dchat.limit.global.burst=1000
+        // -Dchat.limit.policy=drop|delay|disconnect -Dchat.limit.maxDelayMillis=1000
+        public static Config fromSystemProperties() {
+            double clientRate = Double.parseDouble(System.getProperty("chat.limit.client.rate", "20"));
+            int clientBurst = Integer.getInteger("chat.limit.client.burst", 40);
+            double roomRate = Double.parseDouble(System.getProperty("chat.limit.room.rate", "0"));
+            int roomBurst = Integer.getInteger("chat.limit.room.burst", 200);
+            double globalRate = Double.parseDouble(System.getProperty("chat.limit.global.rate", "0"));
+            int globalBurst = Integer.getInteger("chat.limit.global.burst", 1000);
+            String name = System.getProperty("chat.limit.policy", "drop");
+            Policy policy = Policy.valueOf(name.trim().toUpperCase());
+            long maxDelayMillis = Long.getLong("chat.limit.maxDelayMillis", 1000L);
+            return new Config(clientRate, clientBurst, roomRate, roomBurst, globalRate, globalBurst,
+                    policy, TimeUnit.MILLISECONDS.toNanos(maxDelayMillis));
+        }
+    }
+
+    private final Config config;
+    private final TokenBucket global;
+
+    // Messages that went over a limit, by what was done with them
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder delayed = new LongAdder();
+    private final LongAdder disconnected = new LongAdder();
+
+    public RateLimiter(Config config) {
+        this.config = config;
+        this.global = new TokenBucket(config.globalRate, config.globalBurst);
+    }
+
+    public Policy policy() {
+        return config.policy;
+    }
+
+    public TokenBucket newClientBucket() {
+        return new TokenBucket(config.clientRate, config.clientBurst);
+    }
+
+    public TokenBucket newRoomBucket() {
+        return new TokenBucket(config.roomRate, config.roomBurst);
+    }
+
+    // Decide about one inbound message; 'room' may be null (commands, servers without rooms).
+    // Returns 0 to handle it now, a wait in nanoseconds (DELAY policy) after which it may be
+    // handled, DROP or DISCONNECT. Buckets are charged in order; a message rejected by a later
+    // level keeps the tokens it took from the earlier ones, which only makes a flood cost more.
+    public long admit(TokenBucket client, TokenBucket room) {
+        long maxWait = (config.policy == Policy.DELAY) ? config.maxDelayNanos : 0;
+        long c = take(client, maxWait);
+        if (c < 0) return reject();
+        long r = take(room, maxWait);
+        if (r < 0) return reject();
+        long g = take(global, maxWait);
+        if (g < 0) return reject();
+        long wait = Math.max(c, Math.max(r, g));
+        if (wait > 0) delayed.increment();
+        return wait;
+    }
+
+    private static long take(TokenBucket bucket, long maxWait) {
+        return (bucket == null) ? 0 : bucket.reserve(maxWait);
+    }
+
+    private long reject() {
+        if (config.policy == Policy.DISCONNECT) {
+            disconnected.increment();
+            return DISCONNECT;
+        }
+        dropped.increment();
+        return DROP;
+    }
+
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    public long delayedCount() {
+        return delayed.sum();
+    }
+
+    public long disconnectedCount() {
+        return disconnected.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("rate limit %s: %d dropped, %d delayed, %d disconnected",
+                config.policy.name().toLowerCase(), droppedCount(), delayedCount(), disconnectedCount());
+    }
+}
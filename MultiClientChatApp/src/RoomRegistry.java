@@ -0,0 +1,150 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// RoomRegistry: routing index from room name to the set of its members, so a message only
+// fans out to the members of its room instead of to every connected client.
+// Rooms are created on first join and removed when their last member leaves
+// (except the default room, where every client starts). A room's history is kept apart from
+// its membership, so whoever joins an emptied room later still gets what was said there; only
+// when there are more than MAX_HISTORIES of them are the histories of empty rooms let go.
+public class RoomRegistry<T> {
+
+    public static final String DEFAULT_ROOM = "lobby";
+
+    // Histories kept, including those of rooms nobody is in (-Dchat.history.rooms=10000)
+    public static final int MAX_HISTORIES = Integer.getInteger("chat.history.rooms", 10_000);
+
+    // One room: its members, message counters, recent history and message rate limit
+    public static class Room<T> {
+        public final String name;
+        public final HistoryRing history;
+        public final TokenBucket limit;
+        private final Set<T> members = ConcurrentHashMap.newKeySet();
+        private final LongAdder messages = new LongAdder();
+
+        // Values at the previous sampleRates() call
+        private long lastMessages;
+        private volatile double messagesPerSecond;
+
+        Room(String name, TokenBucket limit, HistoryRing history) {
+            this.name = name;
+            this.limit = limit;
+            this.history = history;
+        }
+
+        // Live view of the members (for fan-out)
+        public Set<T> members() {
+            return members;
+        }
+
+        public int size() {
+            return members.size();
+        }
+
+        public void recordMessage() {
+            messages.increment();
+        }
+
+        public long totalMessages() {
+            return messages.sum();
+        }
+
+        public double messagesPerSecond() {
+            return messagesPerSecond;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("#%s (%d members, %.1f msg/s)", name, size(), messagesPerSecond);
+        }
+    }
+
+    private final ConcurrentHashMap<String, Room<T>> rooms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, HistoryRing> histories = new ConcurrentHashMap<>();
+    private final Supplier<TokenBucket> roomLimits;
+    private long lastSampleNanos = System.nanoTime();
+
+    public RoomRegistry() {
+        this(TokenBucket::unlimited);
+    }
+
+    // roomLimits makes the rate-limit bucket of each new room (see RateLimiter)
+    public RoomRegistry(Supplier<TokenBucket> roomLimits) {
+        this.roomLimits = roomLimits;
+        rooms.put(DEFAULT_ROOM, new Room<>(DEFAULT_ROOM, roomLimits.get(), history(DEFAULT_ROOM)));
+    }
+
+    // Longer room names are cut
+    public static final int MAX_NAME_LENGTH = 64;
+
+    // Room names are case-insensitive, without the leading '#', at most MAX_NAME_LENGTH characters
+    public static String normalize(String name) {
+        String n = name.trim().toLowerCase();
+        return ClientRegistry.clip(n.startsWith("#") ? n.substring(1) : n, MAX_NAME_LENGTH);
+    }
+
+    // Add a member to a room, creating the room if needed
+    public Room<T> join(String name, T member) {
+        // compute() keeps this atomic with leave() removing an empty room
+        return rooms.compute(name, (k, room) -> {
+            if (room == null) room = new Room<>(k, roomLimits.get(), history(k));
+            room.members.add(member);
+            return room;
+        });
+    }
+
+    // Remove a member; an empty room (other than the default one) disappears
+    public void leave(String name, T member) {
+        rooms.computeIfPresent(name, (k, room) -> {
+            room.members.remove(member);
+            return (room.members.isEmpty() && !k.equals(DEFAULT_ROOM)) ? null : room;
+        });
+    }
+
+    public Room<T> get(String name) {
+        return rooms.get(name);
+    }
+
+    public Collection<Room<T>> rooms() {
+        return rooms.values();
+    }
+
+    // The history of a room, whether or not anyone is in it now
+    public HistoryRing history(String name) {
+        HistoryRing h = histories.get(name);
+        if (h != null) return h;
+        if (histories.size() >= MAX_HISTORIES) {
+            histories.keySet().removeIf(n -> !rooms.containsKey(n));
+        }
+        return histories.computeIfAbsent(name, k -> new HistoryRing());
+    }
+
+    // Every room's history (for messages to all rooms)
+    public Collection<HistoryRing> histories() {
+        return histories.values();
+    }
+
+    // Sorted snapshot of room names (for menus and listings)
+    public List<String> names() {
+        List<String> names = new ArrayList<>(rooms.keySet());
+        names.sort(null);
+        return names;
+    }
+
+    // Update every room's msg/s over the interval since the previous call
+    public synchronized void sampleRates() {
+        long now = System.nanoTime();
+        double seconds = (now - lastSampleNanos) / 1e9;
+        lastSampleNanos = now;
+        for (Room<T> room : rooms.values()) {
+            long m = room.totalMessages();
+            room.messagesPerSecond = (seconds <= 0) ? 0 : (m - room.lastMessages) / seconds;
+            room.lastMessages = m;
+        }
+    }
+}
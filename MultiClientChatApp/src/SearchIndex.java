@@ -0,0 +1,582 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// SearchIndex: full-text search over routed chat messages (/search, and the server GUI's
+// search box).
+//
+// Senders only offer() the MessageLog.Record they already built into a bounded queue, like
+// the message log itself; one background thread drains it in batches and adds each message to
+// an inverted index: every word (lowercased letters and digits) maps to a posting list, the
+// ascending document numbers of the messages that contain it. The sender's ID and name are
+// indexed as terms too, and so is the room. Time is kept per document and checked on the
+// candidates (each segment's time range skips whole segments).
+//
+// The index is split into segments of segmentMessages documents, newest last. Only the newest
+// segment grows; a full one is trimmed to its exact size and never changes again, and the
+// oldest is dropped once the index holds more than maxMessages. A query intersects the
+// posting lists of its terms segment by segment, newest first (shortest list drives, the
+// others are binary-searched), so the cost follows the rarest term, not the number of
+// messages. Message text is kept as UTF-8 in one array per segment and decoded only for hits.
+//
+// On startup the last maxMessages records of the message log are indexed before the live ones.
+public class SearchIndex {
+
+    public static class Config {
+        public final boolean enabled;
+        public final int maxMessages;      // older messages are dropped a segment at a time
+        public final int segmentMessages;  // documents per segment
+        public final int queueCapacity;    // messages waiting for the indexer before drops
+
+        public Config(boolean enabled, int maxMessages, int segmentMessages, int queueCapacity) {
+            this.enabled = enabled;
+            this.maxMessages = maxMessages;
+            this.segmentMessages = segmentMessages;
+            this.queueCapacity = queueCapacity;
+        }
+
+        // -Dchat.search.enabled=true -Dchat.search.maxMessages=2000000
+        // -Dchat.search.segmentMessages=65536 -Dchat.search.queueCapacity=65536
+        public static Config fromSystemProperties() {
+            return new Config(
+                    Boolean.parseBoolean(System.getProperty("chat.search.enabled", "true")),
+                    Integer.getInteger("chat.search.maxMessages", 2_000_000),
+                    Integer.getInteger("chat.search.segmentMessages", 65_536),
+                    Integer.getInteger("chat.search.queueCapacity", 65_536));
+        }
+    }
+
+    // Most hits returned by one query
+    public static final int MAX_LIMIT = 200;
+
+    // Longer runs of letters are not words (base64, hashes, keyboard mashing)
+    private static final int MAX_TERM_CHARS = 40;
+
+    private static final int MAX_BATCH = 1024;
+
+    // Server messages to every room are logged with this room name (ChatServerGUI)
+    private static final String ALL_ROOMS = "*";
+
+    public static final String USAGE = "Usage: /search <words> [from:<user|id>] [in:<room>] [after:<time>] [before:<time>] [limit:<n>]";
+
+    // One search, parsed from the arguments of /search (see USAGE)
+    public static final class Query {
+        public final List<String> terms;     // all of them must occur
+        public final int senderId;           // -1 = anyone
+        public final String senderName;      // null = anyone
+        public final String room;            // null = every room
+        public final long fromMillis;        // inclusive
+        public final long toMillis;          // exclusive
+        public final int limit;
+
+        public Query(List<String> terms, int senderId, String senderName, String room,
+                     long fromMillis, long toMillis, int limit) {
+            this.terms = terms;
+            this.senderId = senderId;
+            this.senderName = senderName;
+            this.room = room;
+            this.fromMillis = fromMillis;
+            this.toMillis = toMillis;
+            this.limit = Math.max(1, Math.min(MAX_LIMIT, limit));
+        }
+
+        // Times are "30m", "2h", "7d" (that long ago), "2026-10-17" or "2026-10-17T14:30" (local time).
+        // Throws IllegalArgumentException with a message for the user.
+        public static Query parse(String text) {
+            List<String> terms = new ArrayList<>();
+            int senderId = -1;
+            String senderName = null;
+            String room = null;
+            long from = Long.MIN_VALUE;
+            long to = Long.MAX_VALUE;
+            int limit = 20;
+            for (String part : text.trim().split("\\s+")) {
+                if (part.isEmpty()) continue;
+                int colon = part.indexOf(':');
+                String key = (colon > 0) ? part.substring(0, colon).toLowerCase(Locale.ROOT) : "";
+                String value = (colon > 0) ? part.substring(colon + 1) : part;
+                switch (key) {
+                    case "from":
+                        if (value.matches("\\d+")) senderId = Integer.parseInt(value);
+                        else senderName = value.toLowerCase(Locale.ROOT);
+                        break;
+                    case "in":
+                        room = RoomRegistry.normalize(value);
+                        break;
+                    case "after":
+                        from = parseTime(value);
+                        break;
+                    case "before":
+                        to = parseTime(value);
+                        break;
+                    case "limit":
+                        try {
+                            limit = Integer.parseInt(value);
+                        } catch (NumberFormatException e) {
+                            throw new IllegalArgumentException("Not a number: " + value);
+                        }
+                        break;
+                    default:
+                        if (part.startsWith("#") && part.length() > 1) room = RoomRegistry.normalize(part);
+                        else tokenize(part, terms);
+                }
+            }
+            if (terms.isEmpty() && senderId < 0 && senderName == null && room == null
+                    && from == Long.MIN_VALUE && to == Long.MAX_VALUE) {
+                throw new IllegalArgumentException("Nothing to search for");
+            }
+            return new Query(terms, senderId, senderName, room, from, to, limit);
+        }
+
+        private static long parseTime(String value) {
+            try {
+                if (value.matches("\\d+[smhd]")) {
+                    long n = Long.parseLong(value.substring(0, value.length() - 1));
+                    Duration ago;
+                    switch (value.charAt(value.length() - 1)) {
+                        case 's': ago = Duration.ofSeconds(n); break;
+                        case 'm': ago = Duration.ofMinutes(n); break;
+                        case 'h': ago = Duration.ofHours(n); break;
+                        default: ago = Duration.ofDays(n);
+                    }
+                    return System.currentTimeMillis() - ago.toMillis();
+                }
+                ZoneId zone = ZoneId.systemDefault();
+                if (value.contains("T")) return LocalDateTime.parse(value).atZone(zone).toInstant().toEpochMilli();
+                return LocalDate.parse(value).atStartOfDay(zone).toInstant().toEpochMilli();
+            } catch (DateTimeException | ArithmeticException | NumberFormatException e) {
+                // ArithmeticException: a duration too long to express in millis (after:200000000000d)
+                throw new IllegalArgumentException("Not a time: " + value + " (use 30m, 2h, 7d or 2026-10-17[T14:30])");
+            }
+        }
+    }
+
+    // One matching message
+    public static final class Hit {
+        private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+        public final long seq;
+        public final long timeMillis;
+        public final String room;
+        public final int senderId;
+        public final String sender;
+        public final String text;
+
+        Hit(long seq, long timeMillis, String room, int senderId, String sender, String text) {
+            this.seq = seq;
+            this.timeMillis = timeMillis;
+            this.room = room;
+            this.senderId = senderId;
+            this.sender = sender;
+            this.text = text;
+        }
+
+        @Override
+        public String toString() {
+            String who = (senderId == 0) ? "Server"
+                    : "Client " + senderId + (sender == null ? "" : " (" + sender + ")");
+            return "[" + TIME.format(Instant.ofEpochMilli(timeMillis)) + " #" + room + " seq " + seq + "] " + who + ": " + text;
+        }
+    }
+
+    // Hits (newest first), how many messages matched in all, and how long it took
+    public static final class Result {
+        public final List<Hit> hits;
+        public final int total;
+        public final long micros;
+
+        Result(List<Hit> hits, int total, long micros) {
+            this.hits = hits;
+            this.total = total;
+            this.micros = micros;
+        }
+
+        // Header line shown above the hits
+        public String summary() {
+            return String.format("--- %d of %d matches, newest first (%.1f ms) ---", hits.size(), total, micros / 1000.0);
+        }
+    }
+
+    // Ascending document numbers of one term in one segment
+    private static final class Postings {
+        int[] docs = new int[2];
+        int size;
+
+        void add(int doc) {
+            if (size > 0 && docs[size - 1] == doc) return; // word repeated in the same message
+            if (size == docs.length) docs = Arrays.copyOf(docs, size * 2);
+            docs[size++] = doc;
+        }
+
+        void trim() {
+            if (docs.length != size) docs = Arrays.copyOf(docs, size);
+        }
+    }
+
+    private static final class Segment {
+        final long[] seqs;
+        final long[] times;
+        final int[] senderIds;
+        final String[] senders;
+        final String[] rooms;
+        final int[] textEnds;     // text of document d is text[textEnd(d - 1) .. textEnds[d])
+        byte[] text = new byte[64 * 1024];
+        int size;
+        final Map<String, Postings> terms = new HashMap<>();
+        final Map<String, String> names = new HashMap<>(); // one String per room and sender name
+        long minTime = Long.MAX_VALUE;
+        long maxTime = Long.MIN_VALUE;
+        boolean allRooms;         // holds messages to every room: the room term alone misses them
+
+        Segment(int capacity) {
+            seqs = new long[capacity];
+            times = new long[capacity];
+            senderIds = new int[capacity];
+            senders = new String[capacity];
+            rooms = new String[capacity];
+            textEnds = new int[capacity];
+        }
+
+        boolean full() {
+            return size == seqs.length;
+        }
+
+        void add(MessageLog.Record r, List<String> words) {
+            int doc = size;
+            seqs[doc] = r.seq;
+            times[doc] = r.timeMillis;
+            senderIds[doc] = r.senderId;
+            senders[doc] = (r.sender == null) ? null : names.computeIfAbsent(r.sender, k -> k);
+            rooms[doc] = names.computeIfAbsent(r.room, k -> k);
+
+            byte[] utf8 = r.text.getBytes(StandardCharsets.UTF_8);
+            int start = textEnd(doc - 1);
+            if (start + utf8.length > text.length) {
+                text = Arrays.copyOf(text, Math.max(text.length * 2, start + utf8.length));
+            }
+            System.arraycopy(utf8, 0, text, start, utf8.length);
+            textEnds[doc] = start + utf8.length;
+
+            for (String w : words) posting(w).add(doc);
+            posting(senderIdTerm(r.senderId)).add(doc);
+            if (r.sender != null) posting(senderNameTerm(r.sender.toLowerCase(Locale.ROOT))).add(doc);
+            if (ALL_ROOMS.equals(r.room)) allRooms = true;
+            else posting(roomTerm(r.room)).add(doc);
+
+            minTime = Math.min(minTime, r.timeMillis);
+            maxTime = Math.max(maxTime, r.timeMillis);
+            size = doc + 1;
+        }
+
+        private Postings posting(String term) {
+            return terms.computeIfAbsent(term, k -> new Postings());
+        }
+
+        int textEnd(int doc) {
+            return doc < 0 ? 0 : textEnds[doc];
+        }
+
+        // The segment is full and will not change again: give back the spare capacity
+        void seal() {
+            for (Postings p : terms.values()) p.trim();
+            text = Arrays.copyOf(text, textEnd(size - 1));
+        }
+
+        Hit hit(int doc) {
+            int start = textEnd(doc - 1);
+            return new Hit(seqs[doc], times[doc], rooms[doc], senderIds[doc], senders[doc],
+                    new String(text, start, textEnds[doc] - start, StandardCharsets.UTF_8));
+        }
+
+        boolean matches(int doc, Query q) {
+            if (times[doc] < q.fromMillis || times[doc] >= q.toMillis) return false;
+            return q.room == null || q.room.equals(rooms[doc]) || ALL_ROOMS.equals(rooms[doc]);
+        }
+    }
+
+    private final Config config;
+    private final BlockingQueue<MessageLog.Record> queue;
+    private final Thread indexer;
+    private volatile MessageLog backfillFrom;
+
+    // Segments, oldest first; the last one is the only one that grows
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private int documents;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final AtomicLong indexed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong queries = new AtomicLong();
+    private final LatencyHistogram queryLatency = new LatencyHistogram();
+
+    public SearchIndex(Config config) {
+        this.config = config;
+        this.queue = new ArrayBlockingQueue<>(config.queueCapacity);
+        this.indexer = new Thread(this::indexLoop, "SearchIndex-Indexer");
+        indexer.setDaemon(true);
+    }
+
+    // Start indexing; with a message log, its most recent records are indexed first
+    public void start(MessageLog log) {
+        backfillFrom = log;
+        indexer.start();
+    }
+
+    // Queue a message for indexing; never blocks. Returns false (and counts a drop) if the
+    // indexer has fallen queueCapacity messages behind.
+    public boolean add(MessageLog.Record record) {
+        if (queue.offer(record)) return true;
+        dropped.incrementAndGet();
+        return false;
+    }
+
+    // ---- Indexer thread ----
+
+    private void indexLoop() {
+        MessageLog log = backfillFrom;
+        if (log != null) backfill(log);
+        List<MessageLog.Record> batch = new ArrayList<>(MAX_BATCH);
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, MAX_BATCH - 1);
+            index(batch);
+            batch.clear();
+        }
+    }
+
+    // Index what the log held when it was opened; newer records come through the queue
+    private void backfill(MessageLog log) {
+        long last = log.lastSequence();
+        if (last <= 0) return;
+        long first = Math.max(1, last - config.maxMessages + 1);
+        List<MessageLog.Record> batch = new ArrayList<>(MAX_BATCH);
+        try {
+            log.read(first, null, (int) (last - first + 1), r -> {
+                if (r.seq > last) return;
+                batch.add(r);
+                if (batch.size() == MAX_BATCH) {
+                    index(batch);
+                    batch.clear();
+                }
+            });
+        } catch (IOException e) {
+            AsyncLogger.shared().warn("Search index backfill stopped: ", e.getMessage());
+        }
+        index(batch);
+        AsyncLogger.shared().info("Search index: messages loaded from the message log: ", documents());
+    }
+
+    // Tokenize outside the lock, add under it
+    private void index(List<MessageLog.Record> batch) {
+        if (batch.isEmpty()) return;
+        List<List<String>> words = new ArrayList<>(batch.size());
+        for (MessageLog.Record r : batch) {
+            List<String> w = new ArrayList<>();
+            tokenize(r.text, w);
+            words.add(w);
+        }
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                Segment active = segments.peekLast();
+                if (active == null || active.full()) {
+                    if (active != null) active.seal();
+                    active = new Segment(config.segmentMessages);
+                    segments.addLast(active);
+                }
+                active.add(batch.get(i), words.get(i));
+                documents++;
+            }
+            // Retention: whole segments, oldest first
+            while (segments.size() > 1 && documents - segments.peekFirst().size >= config.maxMessages) {
+                documents -= segments.pollFirst().size;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        indexed.addAndGet(batch.size());
+    }
+
+    // ---- Queries (any thread) ----
+
+    public Result search(Query q) {
+        long start = System.nanoTime();
+        List<Hit> hits = new ArrayList<>(Math.min(q.limit, 64));
+        int total = 0;
+        List<String> required = new ArrayList<>(q.terms);
+        if (q.senderId >= 0) required.add(senderIdTerm(q.senderId));
+        if (q.senderName != null) required.add(senderNameTerm(q.senderName));
+
+        lock.readLock().lock();
+        try {
+            for (Iterator<Segment> it = segments.descendingIterator(); it.hasNext(); ) {
+                Segment s = it.next();
+                if (s.size == 0 || s.maxTime < q.fromMillis || s.minTime >= q.toMillis) continue;
+                total += searchSegment(s, q, required, hits);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        long micros = (System.nanoTime() - start) / 1000;
+        queries.incrementAndGet();
+        queryLatency.record(micros);
+        return new Result(hits, total, micros);
+    }
+
+    // Count the matches in one segment, newest first, adding hits while there is room
+    private static int searchSegment(Segment s, Query q, List<String> required, List<Hit> hits) {
+        int count = 0;
+        if (q.room != null && !s.allRooms) {
+            required = new ArrayList<>(required);
+            required.add(roomTerm(q.room));
+        }
+        if (required.isEmpty()) {
+            // Only room or time filters: every document is a candidate
+            for (int doc = s.size - 1; doc >= 0; doc--) {
+                if (!s.matches(doc, q)) continue;
+                count++;
+                if (hits.size() < q.limit) hits.add(s.hit(doc));
+            }
+            return count;
+        }
+
+        Postings[] lists = new Postings[required.size()];
+        for (int i = 0; i < lists.length; i++) {
+            lists[i] = s.terms.get(required.get(i));
+            if (lists[i] == null) return 0; // a term this segment never saw
+        }
+        Arrays.sort(lists, Comparator.comparingInt(p -> p.size));
+
+        // The posting lists answer the query alone unless a filter must look at each document
+        boolean check = s.minTime < q.fromMillis || s.maxTime >= q.toMillis || (q.room != null && s.allRooms);
+        if (lists.length == 1 && !check) {
+            Postings only = lists[0];
+            for (int k = only.size - 1; k >= 0 && hits.size() < q.limit; k--) hits.add(s.hit(only.docs[k]));
+            return only.size;
+        }
+
+        // Walk the shortest list backwards; each other list keeps an upper bound that only shrinks
+        int[] bounds = new int[lists.length];
+        for (int i = 1; i < lists.length; i++) bounds[i] = lists[i].size;
+        Postings driver = lists[0];
+        candidates:
+        for (int k = driver.size - 1; k >= 0; k--) {
+            int doc = driver.docs[k];
+            for (int i = 1; i < lists.length; i++) {
+                int at = Arrays.binarySearch(lists[i].docs, 0, bounds[i], doc);
+                if (at < 0) {
+                    bounds[i] = -at - 1;
+                    if (bounds[i] == 0) break candidates; // nothing smaller left in that list
+                    continue candidates;
+                }
+                bounds[i] = at;
+            }
+            if (check && !s.matches(doc, q)) continue;
+            count++;
+            if (hits.size() < q.limit) hits.add(s.hit(doc));
+        }
+        return count;
+    }
+
+    // Words of a message: lowercased runs of letters and digits
+    static void tokenize(String text, List<String> out) {
+        int i = 0;
+        int n = text.length();
+        int start = -1;
+        while (i <= n) {
+            int c = (i < n) ? text.codePointAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                if (start < 0) start = i;
+            } else if (start >= 0) {
+                if (i - start <= MAX_TERM_CHARS) out.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+            i += Character.charCount(c);
+        }
+    }
+
+    // Sender and room terms cannot collide with words, which never contain '@' or '#'
+    private static String senderIdTerm(int id) {
+        return "@" + id;
+    }
+
+    private static String senderNameTerm(String lowerName) {
+        return "@@" + lowerName;
+    }
+
+    private static String roomTerm(String room) {
+        return "#" + room;
+    }
+
+    // ---- Stats ----
+
+    public long indexedCount() {
+        return indexed.get();
+    }
+
+    public long droppedCount() {
+        return dropped.get();
+    }
+
+    // Messages queued but not indexed yet
+    public int pending() {
+        return queue.size();
+    }
+
+    public int documents() {
+        lock.readLock().lock();
+        try {
+            return documents;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int segmentCount() {
+        lock.readLock().lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long queryCount() {
+        return queries.get();
+    }
+
+    public LatencyHistogram.Snapshot queryLatency() {
+        return queryLatency.snapshot();
+    }
+
+    @Override
+    public String toString() {
+        LatencyHistogram.Snapshot s = queryLatency();
+        return String.format("index: %d messages in %d segments, %d indexed, %d pending, %d dropped, %d queries (p50 %d µs, p99 %d µs)",
+                documents(), segmentCount(), indexedCount(), pending(), droppedCount(), queryCount(),
+                s.percentile(0.50), s.percentile(0.99));
+    }
+}
@@ -0,0 +1,367 @@
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// ServerMetrics: what a chat server is doing right now.
+//
+// Connections, accepts, inbound messages/bytes are counted here; outbound messages/bytes
+// come from the writers' FlushStats. Fan-out latency is the time from reading a message to
+// the flush that wrote it to its last recipient, measured through EncodedMessage's release
+// hook. Counters are LongAdders, so recording from handler threads or event loops never
+// contends; rates and recent percentiles are computed by sample(), once per reporting
+// interval, like FlushStats.
+//
+// render() gives a plain-text scrape (Prometheus text format); startEndpoint() serves it on
+// http://127.0.0.1:<port>/metrics.
+public class ServerMetrics {
+
+    private final FlushStats flushStats;
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final LongAdder accepts = new LongAdder();
+    private final LongAdder inboundMessages = new LongAdder();
+    private final LongAdder inboundBytes = new LongAdder();
+
+    // Receive → last recipient flush, since start and since the previous sample()
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram recentLatency = new LatencyHistogram();
+
+    // Client ID → messages waiting in its outbound queue, built on demand
+    private volatile Supplier<Map<Integer, Integer>> queueDepths = Collections::emptyMap;
+
+    // Counts of messages over the rate limits (null if the server does not limit)
+    private volatile RateLimiter rateLimiter;
+
+    // Pings and evicted connections (null if the server sends no heartbeats)
+    private volatile Heartbeats heartbeats;
+
+    // Compressed frames (null if the server does not report them)
+    private volatile Compression compression;
+
+    // Handshakes and encryption cost (null if the server speaks plaintext)
+    private volatile Tls tls;
+
+    // Traffic to and from other nodes (null if the server is not clustered)
+    private volatile ClusterNode cluster;
+
+    // Full-text index backlog and query latency (null if the server has no search)
+    private volatile SearchIndex search;
+
+    // Unacked backlog and redeliveries (null if the server has no acknowledged delivery)
+    private volatile Delivery delivery;
+
+    // Values at the previous sample, used to compute rates
+    private long lastSampleNanos = System.nanoTime();
+    private long lastAccepts, lastInMessages, lastInBytes, lastOutMessages, lastOutBytes;
+
+    // Computed by the most recent sample()
+    private volatile double acceptsPerSecond;
+    private volatile double inMessagesPerSecond, inBytesPerSecond;
+    private volatile double outMessagesPerSecond, outBytesPerSecond;
+    private volatile LatencyHistogram.Snapshot recent = new LatencyHistogram().snapshot();
+
+    private HttpServer endpoint;
+
+    public ServerMetrics(FlushStats flushStats) {
+        this.flushStats = flushStats;
+    }
+
+    public void queueDepths(Supplier<Map<Integer, Integer>> source) {
+        this.queueDepths = source;
+    }
+
+    public void rateLimiter(RateLimiter limiter) {
+        this.rateLimiter = limiter;
+    }
+
+    public void heartbeats(Heartbeats heartbeats) {
+        this.heartbeats = heartbeats;
+    }
+
+    public void compression(Compression compression) {
+        this.compression = compression;
+    }
+
+    public void tls(Tls tls) {
+        this.tls = tls;
+    }
+
+    public void cluster(ClusterNode cluster) {
+        this.cluster = cluster;
+    }
+
+    public void search(SearchIndex search) {
+        this.search = search;
+    }
+
+    public void delivery(Delivery delivery) {
+        this.delivery = delivery;
+    }
+
+    // ---- Recording (any thread) ----
+
+    public void onAccept() {
+        accepts.increment();
+    }
+
+    public void onConnect() {
+        connections.incrementAndGet();
+    }
+
+    public void onDisconnect() {
+        connections.decrementAndGet();
+    }
+
+    public void onInbound(int bytes) {
+        inboundMessages.increment();
+        inboundBytes.add(bytes);
+    }
+
+    // Inbound bytes that are not (yet) a message, e.g. a raw socket read
+    public void onInboundBytes(int bytes) {
+        inboundBytes.add(bytes);
+    }
+
+    public void onInboundMessage() {
+        inboundMessages.increment();
+    }
+
+    // Record the fan-out latency of a message received at receivedNanos when its last
+    // reference is released (after the last recipient's flush)
+    public void track(EncodedMessage message, long receivedNanos) {
+        message.onRelease(() -> {
+            long micros = (System.nanoTime() - receivedNanos) / 1000;
+            latency.record(micros);
+            recentLatency.record(micros);
+        });
+    }
+
+    // ---- Reading ----
+
+    // Compute rates and recent percentiles over the interval since the previous call
+    public synchronized void sample() {
+        long now = System.nanoTime();
+        double seconds = (now - lastSampleNanos) / 1e9;
+        lastSampleNanos = now;
+        if (seconds <= 0) return;
+
+        long a = accepts.sum(), im = inboundMessages.sum(), ib = inboundBytes.sum();
+        long om = flushStats.totalMessages(), ob = flushStats.totalBytes();
+        acceptsPerSecond = (a - lastAccepts) / seconds;
+        inMessagesPerSecond = (im - lastInMessages) / seconds;
+        inBytesPerSecond = (ib - lastInBytes) / seconds;
+        outMessagesPerSecond = (om - lastOutMessages) / seconds;
+        outBytesPerSecond = (ob - lastOutBytes) / seconds;
+        lastAccepts = a;
+        lastInMessages = im;
+        lastInBytes = ib;
+        lastOutMessages = om;
+        lastOutBytes = ob;
+
+        recent = recentLatency.snapshotAndReset();
+        Tls t = tls;
+        if (t != null) t.sample();
+    }
+
+    public int connections() {
+        return connections.get();
+    }
+
+    public double acceptsPerSecond() {
+        return acceptsPerSecond;
+    }
+
+    public double inMessagesPerSecond() {
+        return inMessagesPerSecond;
+    }
+
+    public double inBytesPerSecond() {
+        return inBytesPerSecond;
+    }
+
+    public double outMessagesPerSecond() {
+        return outMessagesPerSecond;
+    }
+
+    public double outBytesPerSecond() {
+        return outBytesPerSecond;
+    }
+
+    // Latency percentiles over the last sample interval
+    public LatencyHistogram.Snapshot recentLatency() {
+        return recent;
+    }
+
+    public int maxQueueDepth() {
+        int max = 0;
+        for (int d : queueDepths.get().values()) max = Math.max(max, d);
+        return max;
+    }
+
+    // Plain-text scrape: counters since start, rates and percentiles of the last interval
+    public String render() {
+        StringBuilder sb = new StringBuilder(1024);
+        sb.append("# HELP chat_connections Connected clients\n# TYPE chat_connections gauge\n");
+        sb.append("chat_connections ").append(connections.get()).append('\n');
+        counter(sb, "chat_accepts_total", "Accepted connections", accepts.sum());
+        counter(sb, "chat_inbound_messages_total", "Messages received from clients", inboundMessages.sum());
+        counter(sb, "chat_inbound_bytes_total", "Bytes received from clients", inboundBytes.sum());
+        counter(sb, "chat_outbound_messages_total", "Messages written to clients", flushStats.totalMessages());
+        counter(sb, "chat_outbound_bytes_total", "Bytes written to clients", flushStats.totalBytes());
+        counter(sb, "chat_flushes_total", "Socket flushes", flushStats.totalFlushes());
+        gauge(sb, "chat_accepts_per_second", "Accepts per second (last interval)", acceptsPerSecond);
+        gauge(sb, "chat_inbound_messages_per_second", "Inbound msgs/s (last interval)", inMessagesPerSecond);
+        gauge(sb, "chat_inbound_bytes_per_second", "Inbound bytes/s (last interval)", inBytesPerSecond);
+        gauge(sb, "chat_outbound_messages_per_second", "Outbound msgs/s (last interval)", outMessagesPerSecond);
+        gauge(sb, "chat_outbound_bytes_per_second", "Outbound bytes/s (last interval)", outBytesPerSecond);
+
+        RateLimiter limiter = rateLimiter;
+        if (limiter != null) {
+            sb.append("# HELP chat_rate_limited_total Messages over a rate limit, by action\n");
+            sb.append("# TYPE chat_rate_limited_total counter\n");
+            sb.append("chat_rate_limited_total{action=\"drop\"} ").append(limiter.droppedCount()).append('\n');
+            sb.append("chat_rate_limited_total{action=\"delay\"} ").append(limiter.delayedCount()).append('\n');
+            sb.append("chat_rate_limited_total{action=\"disconnect\"} ").append(limiter.disconnectedCount()).append('\n');
+        }
+
+        Heartbeats hb = heartbeats;
+        if (hb != null) {
+            counter(sb, "chat_heartbeat_pings_total", "Pings sent to silent connections", hb.pingsSent());
+            sb.append("# HELP chat_evicted_total Connections closed by the server, by reason\n");
+            sb.append("# TYPE chat_evicted_total counter\n");
+            sb.append("chat_evicted_total{reason=\"dead\"} ").append(hb.deadPeers()).append('\n');
+            sb.append("chat_evicted_total{reason=\"idle\"} ").append(hb.idleEvictions()).append('\n');
+            sb.append("# HELP chat_timer_wheel_pending Timeouts scheduled on the heartbeat timer wheel\n");
+            sb.append("# TYPE chat_timer_wheel_pending gauge\n");
+            sb.append("chat_timer_wheel_pending ").append(hb.scheduledTimeouts()).append('\n');
+        }
+
+        Compression deflate = compression;
+        if (deflate != null) {
+            counter(sb, "chat_compressed_messages_total", "Payloads compressed (once per message)", deflate.compressedCount());
+            counter(sb, "chat_compression_skipped_total", "Payloads too short or incompressible, sent plain", deflate.skippedCount());
+            gauge(sb, "chat_compression_ratio", "Compressed / original payload bytes", deflate.ratio(), "%.3f");
+            gauge(sb, "chat_compression_micros_per_message", "Time in the deflater per message", deflate.deflateMicrosPerMessage(), "%.2f");
+            counter(sb, "chat_compressed_sends_total", "Compressed frames written to clients", deflate.compressedSends());
+            counter(sb, "chat_compression_saved_bytes_total", "Outbound bytes saved by compression", deflate.savedBytes());
+            counter(sb, "chat_inflated_messages_total", "Compressed frames received from clients", deflate.inflatedCount());
+        }
+
+        Tls t = tls;
+        if (t != null) {
+            counter(sb, "chat_tls_handshakes_total", "Completed TLS handshakes", t.handshakeCount());
+            counter(sb, "chat_tls_resumed_total", "Handshakes that resumed a cached session", t.resumedCount());
+            counter(sb, "chat_tls_failed_handshakes_total", "Handshakes that failed", t.failedCount());
+            gauge(sb, "chat_tls_handshakes_per_second", "Handshakes per second (last interval)", t.handshakesPerSecond());
+            gauge(sb, "chat_tls_crypto_micros_per_kilobyte", "Encryption and decryption time per KB", t.cryptoMicrosPerKilobyte(), "%.2f");
+            summary(sb, "chat_tls_handshake_microseconds", "Accept to end of handshake", t.handshakeLatency());
+        }
+
+        ClusterNode node = cluster;
+        if (node != null) {
+            sb.append("# HELP chat_cluster_peers Connected links to other nodes\n# TYPE chat_cluster_peers gauge\n");
+            sb.append("chat_cluster_peers ").append(node.connectedPeers()).append('\n');
+            counter(sb, "chat_cluster_relayed_total", "Messages sent to other nodes", node.relayedCount());
+            counter(sb, "chat_cluster_batches_total", "Batches (writes) sent to other nodes", node.batchCount());
+            counter(sb, "chat_cluster_received_total", "Messages received from other nodes", node.receivedCount());
+            counter(sb, "chat_cluster_duplicates_total", "Resent messages dropped as duplicates", node.duplicateCount());
+            counter(sb, "chat_cluster_dropped_total", "Messages not relayed because a link queue was full", node.droppedCount());
+        }
+
+        SearchIndex index = search;
+        if (index != null) {
+            counter(sb, "chat_search_indexed_total", "Messages added to the search index", index.indexedCount());
+            counter(sb, "chat_search_dropped_total", "Messages not indexed because the indexer queue was full", index.droppedCount());
+            gauge(sb, "chat_search_pending", "Messages waiting for the indexer", index.pending(), "%.0f");
+            gauge(sb, "chat_search_documents", "Messages in the search index", index.documents(), "%.0f");
+            counter(sb, "chat_search_queries_total", "Searches answered", index.queryCount());
+            summary(sb, "chat_search_query_microseconds", "Time to answer a search", index.queryLatency());
+        }
+
+        Delivery d = delivery;
+        if (d != null) {
+            gauge(sb, "chat_delivery_unacked", "Messages sent to acking clients and not acknowledged yet", d.unackedCount(), "%.0f");
+            gauge(sb, "chat_delivery_parked_sessions", "Disconnected sessions whose unacked messages wait for a resume", d.parkedSessions(), "%.0f");
+            counter(sb, "chat_delivery_acks_total", "ACK frames received", d.ackCount());
+            counter(sb, "chat_delivery_acked_total", "Messages released by ACKs", d.ackedCount());
+            counter(sb, "chat_delivery_resumed_total", "Sessions resumed after a reconnect", d.resumedCount());
+            counter(sb, "chat_delivery_redelivered_total", "Unacked messages sent again after a reconnect", d.redeliveredCount());
+            counter(sb, "chat_delivery_overflowed_total", "Unacked messages let go because a window was full", d.overflowedCount());
+            counter(sb, "chat_delivery_expired_total", "Unacked messages of sessions that did not come back", d.expiredCount());
+        }
+
+        sb.append("# HELP chat_client_queue_depth Messages waiting in a client's outbound queue\n");
+        sb.append("# TYPE chat_client_queue_depth gauge\n");
+        for (Map.Entry<Integer, Integer> e : queueDepths.get().entrySet()) {
+            sb.append("chat_client_queue_depth{client=\"").append(e.getKey()).append("\"} ").append(e.getValue()).append('\n');
+        }
+
+        summary(sb, "chat_fanout_latency_microseconds", "Receive to last recipient flush, since start", latency.snapshot());
+        summary(sb, "chat_fanout_latency_recent_microseconds", "Receive to last recipient flush, last interval", recent);
+        return sb.toString();
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help, double value) {
+        gauge(sb, name, help, value, "%.1f");
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help, double value, String format) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" gauge\n");
+        // Locale.ROOT: always a '.' decimal point, whatever the machine's locale
+        sb.append(name).append(' ').append(String.format(Locale.ROOT, format, value)).append('\n');
+    }
+
+    private static void summary(StringBuilder sb, String name, String help, LatencyHistogram.Snapshot s) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" summary\n");
+        for (double q : new double[] {0.5, 0.9, 0.99, 0.999}) {
+            sb.append(name).append("{quantile=\"").append(q).append("\"} ").append(s.percentile(q)).append('\n');
+        }
+        sb.append(name).append("_max ").append(s.max()).append('\n');
+        sb.append(name).append("_count ").append(s.count()).append('\n');
+    }
+
+    // Serve render() on the loopback interface (-Dchat.metrics.port, 0 = off)
+    public void startEndpoint(int port) throws IOException {
+        if (port <= 0) return;
+        endpoint = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        endpoint.createContext("/metrics", exchange -> {
+            byte[] body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        endpoint.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "Metrics-Endpoint");
+            t.setDaemon(true);
+            return t;
+        }));
+        endpoint.start();
+    }
+
+    // -Dchat.metrics.port; off unless set, since any default derived from the chat port
+    // can land on another node's chat port when nodes share a host (see ClusterNode)
+    public static int portFromSystemProperties() {
+        return Integer.getInteger("chat.metrics.port", 0);
+    }
+}
@@ -0,0 +1,139 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+// TimerWheel: many coarse timeouts (one or more per connection) on one thread.
+//
+// Time is cut into ticks of tickNanos; a ring of 'wheelSize' slots holds the timeouts due in
+// each tick, a timeout further away than one turn of the ring waits for 'rounds' more turns.
+// Scheduling only puts the timeout on a lock-free queue, and cancelling only sets a flag,
+// so both are O(1) for the caller; the wheel thread moves new timeouts into their slot and,
+// once per tick, walks the one slot that is due. Deadlines are accurate to one tick, which
+// is plenty for heartbeats and idle timeouts measured in seconds.
+//
+// Tasks run on the wheel thread and must be short (enqueue a message, close a socket).
+public final class TimerWheel {
+
+    // A scheduled task; cancel() is safe from any thread
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadline;   // System.nanoTime() at which the task is due
+        private long rounds;           // full turns of the wheel left (wheel thread only)
+        private Timeout next;          // next timeout in the same slot (wheel thread only)
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private final long tickNanos;
+    private final Timeout[] slots;   // head of each slot's list
+    private final int mask;
+    private final long startNanos;
+    private long tick;               // ticks processed so far (wheel thread only)
+
+    private final ConcurrentLinkedQueue<Timeout> incoming = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    // wheelSize is rounded up to a power of two
+    public TimerWheel(String name, long tickMillis, int wheelSize) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        int size = Integer.highestOneBit(Math.max(2, wheelSize) - 1) << 1;
+        this.slots = new Timeout[size];
+        this.mask = size - 1;
+        this.startNanos = System.nanoTime();
+        this.thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Run 'task' once, after about 'delay'
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout t = new Timeout(task, System.nanoTime() + unit.toNanos(Math.max(0, delay)));
+        pending.incrementAndGet();
+        incoming.add(t);
+        return t;
+    }
+
+    // Timeouts scheduled and not run yet (cancelled ones count until their slot comes up)
+    public int pending() {
+        return pending.get();
+    }
+
+    public void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    private void run() {
+        while (running) {
+            // Sleep until the end of the current tick
+            long due = startNanos + (tick + 1) * tickNanos;
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0 && running) {
+                LockSupport.parkNanos(wait);
+            }
+            addIncoming();
+            expire(tick & mask);
+            tick++;
+        }
+    }
+
+    // Put newly scheduled timeouts into the slot of the tick they are due in
+    private void addIncoming() {
+        Timeout t;
+        while ((t = incoming.poll()) != null) {
+            if (t.cancelled) {
+                pending.decrementAndGet();
+                continue;
+            }
+            long dueTick = Math.max(tick, (t.deadline - startNanos + tickNanos - 1) / tickNanos - 1);
+            t.rounds = (dueTick - tick) / slots.length;
+            int slot = (int) (dueTick & mask);
+            t.next = slots[slot];
+            slots[slot] = t;
+        }
+    }
+
+    // Run the timeouts of one slot whose last round has come; drop cancelled ones
+    private void expire(long slot) {
+        Timeout prev = null;
+        Timeout t = slots[(int) slot];
+        while (t != null) {
+            Timeout next = t.next;
+            boolean remove = t.cancelled || t.rounds <= 0;
+            if (remove) {
+                if (prev == null) slots[(int) slot] = next;
+                else prev.next = next;
+                t.next = null;
+                pending.decrementAndGet();
+                if (!t.cancelled) runTask(t);
+            } else {
+                t.rounds--;
+                prev = t;
+            }
+            t = next;
+        }
+    }
+
+    private void runTask(Timeout t) {
+        try {
+            t.task.run();
+        } catch (RuntimeException e) {
+            AsyncLogger.shared().warn("Timer task failed: ", e);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+// TimestampCache: thread-safe clock formatting for logs and chat lines.
+//
+// DateTimeFormatter is immutable, so any thread may use it (unlike SimpleDateFormat). On top
+// of that the last formatted value is cached per tick of the pattern's resolution
+// ("HH:mm:ss" → one tick per second), so the many messages that share a timestamp reuse
+// one String instead of formatting it again.
+public final class TimestampCache {
+
+    // Last formatted tick; replaced as a whole, so readers never see a torn pair
+    private static final class Cached {
+        final long tick;
+        final String text;
+
+        Cached(long tick, String text) {
+            this.tick = tick;
+            this.text = text;
+        }
+    }
+
+    private final DateTimeFormatter formatter;
+    private final long resolutionMillis;
+    private volatile Cached last = new Cached(Long.MIN_VALUE, "");
+
+    // resolutionMillis: the smallest step the pattern shows (1000 for seconds, 1 for millis)
+    public TimestampCache(String pattern, long resolutionMillis) {
+        this.formatter = DateTimeFormatter.ofPattern(pattern).withZone(ZoneId.systemDefault());
+        this.resolutionMillis = Math.max(1, resolutionMillis);
+    }
+
+    public String format(long epochMillis) {
+        long tick = Math.floorDiv(epochMillis, resolutionMillis);
+        Cached c = last;
+        if (c.tick == tick) return c.text;
+        String text = formatter.format(Instant.ofEpochMilli(epochMillis));
+        last = new Cached(tick, text);
+        return text;
+    }
+
+    public String now() {
+        return format(System.currentTimeMillis());
+    }
+}
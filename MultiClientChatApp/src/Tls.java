@@ -0,0 +1,259 @@
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Tls: settings, SSLContexts and numbers for encrypted connections.
+//
+// The server side is NioChatServer: each connection gets an SSLEngine (see TlsChannel), so
+// encryption runs on the event loops next to the plain reads and writes, without a thread or
+// an SSLSocket per client. Clients use the same TlsChannel from AsyncChatClient's loop, or a
+// plain SSLSocket (LoadGenerator).
+//
+// For local testing the server creates a self-signed key pair (EC P-256, CN=localhost) in
+// the keystore file if it does not exist yet, with the JDK's keytool. Clients on the same
+// machine trust that file directly; elsewhere, copy it or point chat.tls.keystore at a real one.
+//
+// Resumption: the server keeps a session cache (TLS 1.2 IDs; TLS 1.3 uses tickets) and each
+// client process keeps one SSLContext, so a reconnect storm costs abbreviated handshakes.
+public class Tls {
+
+    // Settings shared by the server and the clients of a process
+    public static class Config {
+        public final boolean enabled;
+        public final String keystore;
+        public final char[] password;
+        public final boolean selfSigned;        // create the keystore if it is missing (server)
+        public final String[] protocols;
+        public final int sessionCacheSize;
+        public final int sessionTimeoutSeconds;
+
+        public Config(boolean enabled, String keystore, char[] password, boolean selfSigned,
+                      String[] protocols, int sessionCacheSize, int sessionTimeoutSeconds) {
+            this.enabled = enabled;
+            this.keystore = keystore;
+            this.password = password;
+            this.selfSigned = selfSigned;
+            this.protocols = protocols;
+            this.sessionCacheSize = sessionCacheSize;
+            this.sessionTimeoutSeconds = sessionTimeoutSeconds;
+        }
+
+        // -Dchat.tls.enabled=false -Dchat.tls.keystore=chat-tls.p12 -Dchat.tls.password=changeit
+        // -Dchat.tls.selfSigned=true -Dchat.tls.protocols=TLSv1.3,TLSv1.2
+        // -Dchat.tls.sessionCacheSize=20000 -Dchat.tls.sessionTimeoutSeconds=86400
+        public static Config fromSystemProperties() {
+            return new Config(
+                    Boolean.getBoolean("chat.tls.enabled"),
+                    System.getProperty("chat.tls.keystore", "chat-tls.p12"),
+                    System.getProperty("chat.tls.password", "changeit").toCharArray(),
+                    Boolean.parseBoolean(System.getProperty("chat.tls.selfSigned", "true")),
+                    System.getProperty("chat.tls.protocols", "TLSv1.3,TLSv1.2").split("\\s*,\\s*"),
+                    Integer.getInteger("chat.tls.sessionCacheSize", 20_000),
+                    Integer.getInteger("chat.tls.sessionTimeoutSeconds", 86_400));
+        }
+    }
+
+    private final Config config;
+    private final SSLContext context;
+    private final boolean server;
+
+    private final LongAdder handshakes = new LongAdder();
+    private final LongAdder resumed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LatencyHistogram handshakeLatency = new LatencyHistogram();
+
+    // Time spent in SSLEngine wrap/unwrap and the application bytes it handled
+    private final LongAdder cryptoNanos = new LongAdder();
+    private final LongAdder cryptoBytes = new LongAdder();
+
+    // Values at the previous sample, used to compute rates
+    private long lastHandshakes;
+    private long lastSampleNanos = System.nanoTime();
+    private volatile double handshakesPerSecond;
+
+    private Tls(Config config, boolean server) throws IOException {
+        this.config = config;
+        this.server = server;
+        try {
+            KeyStore keys = loadKeyStore(config, server);
+            SSLContext ctx = SSLContext.getInstance("TLS");
+            if (server) {
+                KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+                kmf.init(keys, config.password);
+                ctx.init(kmf.getKeyManagers(), null, null);
+                SSLSessionContext sessions = ctx.getServerSessionContext();
+                sessions.setSessionCacheSize(config.sessionCacheSize);
+                sessions.setSessionTimeout(config.sessionTimeoutSeconds);
+            } else {
+                // The keystore's own certificate is the trust anchor (self-signed)
+                TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                tmf.init(keys);
+                ctx.init(null, tmf.getTrustManagers(), null);
+                ctx.getClientSessionContext().setSessionTimeout(config.sessionTimeoutSeconds);
+            }
+            this.context = ctx;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("TLS setup failed: " + e.getMessage(), e);
+        }
+    }
+
+    // For NioChatServer; null if TLS is turned off
+    public static Tls server(Config config) throws IOException {
+        return config.enabled ? new Tls(config, true) : null;
+    }
+
+    // For clients; null if TLS is turned off
+    public static Tls client(Config config) throws IOException {
+        return config.enabled ? new Tls(config, false) : null;
+    }
+
+    // A server-side engine for one accepted connection, handshake not started yet
+    public SSLEngine newServerEngine() {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setEnabledProtocols(config.protocols);
+        return engine;
+    }
+
+    // A client-side engine for a non-blocking connection (see AsyncChatClient). Host and port
+    // key the session cache, so the next connection to the same server can resume.
+    public SSLEngine newClientEngine(String host, int port) {
+        SSLEngine engine = context.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        engine.setEnabledProtocols(config.protocols);
+        return engine;
+    }
+
+    // A connected client socket with the handshake done. Host and port are what the session
+    // cache is keyed by, so reconnecting to the same server resumes the session.
+    public Socket connect(String host, int port, int timeoutMillis) throws IOException {
+        Socket plain = new Socket();
+        plain.setTcpNoDelay(true);
+        plain.connect(new InetSocketAddress(host, port), timeoutMillis);
+        SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket(plain, host, port, true);
+        socket.setEnabledProtocols(config.protocols);
+        long start = System.nanoTime();
+        try {
+            socket.startHandshake();
+        } catch (IOException e) {
+            onHandshakeFailed();
+            socket.close();
+            throw e;
+        }
+        onHandshake(start, socket.getSession().getCreationTime());
+        return socket;
+    }
+
+    private static KeyStore loadKeyStore(Config config, boolean server) throws IOException, GeneralSecurityException {
+        File file = new File(config.keystore);
+        if (!file.exists()) {
+            if (!server || !config.selfSigned) throw new IOException("No keystore at " + file.getAbsolutePath());
+            createSelfSigned(file, config.password);
+        }
+        KeyStore keys = KeyStore.getInstance("PKCS12");
+        try (InputStream in = new FileInputStream(file)) {
+            keys.load(in, config.password);
+        }
+        return keys;
+    }
+
+    // keytool is the only JDK way to make a certificate without internal APIs
+    private static void createSelfSigned(File file, char[] password) throws IOException {
+        String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+        String pass = new String(password);
+        ProcessBuilder pb = new ProcessBuilder(keytool, "-genkeypair", "-alias", "chat",
+                "-keyalg", "EC", "-groupname", "secp256r1", "-sigalg", "SHA256withECDSA",
+                "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1",
+                "-validity", "3650", "-storetype", "PKCS12",
+                "-keystore", file.getPath(), "-storepass", pass, "-keypass", pass);
+        pb.redirectErrorStream(true);
+        pb.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        try {
+            Process p = pb.start();
+            if (!p.waitFor(60, TimeUnit.SECONDS) || p.exitValue() != 0) {
+                throw new IOException("keytool could not create " + file);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while creating " + file);
+        }
+        AsyncLogger.shared().info("Created self-signed keystore ", file.getAbsolutePath());
+    }
+
+    // A handshake that started at startNanos finished. A session created before the handshake
+    // started was taken from the cache (or a ticket): that is a resumption.
+    void onHandshake(long startNanos, long sessionCreatedMillis) {
+        long micros = (System.nanoTime() - startNanos) / 1000;
+        long startedMillis = System.currentTimeMillis() - micros / 1000;
+        handshakes.increment();
+        if (sessionCreatedMillis < startedMillis - 1) resumed.increment();
+        handshakeLatency.record(micros);
+    }
+
+    void onHandshakeFailed() {
+        failed.increment();
+    }
+
+    void onCrypto(long nanos, long appBytes) {
+        cryptoNanos.add(nanos);
+        cryptoBytes.add(appBytes);
+    }
+
+    // Compute the handshake rate over the interval since the previous call
+    public synchronized void sample() {
+        long now = System.nanoTime();
+        long h = handshakes.sum();
+        double seconds = (now - lastSampleNanos) / 1e9;
+        handshakesPerSecond = (seconds <= 0) ? 0 : (h - lastHandshakes) / seconds;
+        lastHandshakes = h;
+        lastSampleNanos = now;
+    }
+
+    public long handshakeCount() {
+        return handshakes.sum();
+    }
+
+    public long resumedCount() {
+        return resumed.sum();
+    }
+
+    public long failedCount() {
+        return failed.sum();
+    }
+
+    public double handshakesPerSecond() {
+        return handshakesPerSecond;
+    }
+
+    // Start of the connection (server: accept) to the end of the handshake
+    public LatencyHistogram.Snapshot handshakeLatency() {
+        return handshakeLatency.snapshot();
+    }
+
+    // Encryption + decryption time per KB of chat traffic
+    public double cryptoMicrosPerKilobyte() {
+        long bytes = cryptoBytes.sum();
+        return bytes == 0 ? 0 : cryptoNanos.sum() / 1000.0 / (bytes / 1024.0);
+    }
+
+    @Override
+    public String toString() {
+        LatencyHistogram.Snapshot s = handshakeLatency();
+        return String.format("%s: %d handshakes (%.1f/s, %d resumed, %d failed), handshake p50 %d µs p99 %d µs, crypto %.1f µs/KB",
+                server ? "tls" : "tls client", handshakeCount(), handshakesPerSecond(), resumedCount(), failedCount(),
+                s.percentile(0.50), s.percentile(0.99), cryptoMicrosPerKilobyte());
+    }
+}
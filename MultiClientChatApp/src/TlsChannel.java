@@ -0,0 +1,251 @@
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+// TlsChannel: an SSLEngine in front of one non-blocking SocketChannel, driven by the event
+// loop that owns the connection (all methods are loop-thread only).
+//
+// read() and write() look like the channel's own: read() decrypts into the caller's buffer,
+// write() encrypts from the gathered message buffers. The handshake happens inside them,
+// whenever the engine asks for it. Encrypted bytes only need a buffer while they are in
+// transit, so netIn/netOut are borrowed from the loop's BufferPool and given back as soon as
+// they are empty; an idle TLS connection holds no buffers, like an idle plain one.
+public final class TlsChannel {
+
+    // Direct buffers for encrypted bytes, shared by the connections of one loop
+    public static final class BufferPool {
+        private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+        private final int bufferSize;
+        private final int maxFree;
+        private int allocated;
+
+        // Two TLS records per buffer: one read or write moves up to ~32 KB
+        public BufferPool(SSLEngine sample, int maxFree) {
+            this.bufferSize = 2 * sample.getSession().getPacketBufferSize();
+            this.maxFree = maxFree;
+        }
+
+        ByteBuffer acquire() {
+            ByteBuffer b = free.poll();
+            if (b == null) {
+                allocated++;
+                b = ByteBuffer.allocateDirect(bufferSize);
+            }
+            return b;
+        }
+
+        void release(ByteBuffer b) {
+            b.clear();
+            if (free.size() < maxFree) free.push(b);
+            else allocated--;
+        }
+
+        // Buffers in use or kept for reuse
+        public int allocated() {
+            return allocated;
+        }
+    }
+
+    // Source for wraps that only carry handshake data or close_notify
+    private static final ByteBuffer[] NO_DATA = {ByteBuffer.allocate(0)};
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final BufferPool pool;
+    private final Tls tls;
+    private final int appBufferSize;
+
+    private ByteBuffer netIn;   // encrypted bytes read, not decrypted yet (write mode); null = none
+    private ByteBuffer netOut;  // encrypted bytes not written yet (read mode); null = none
+
+    private final long startedAt = System.nanoTime();
+    private boolean handshakeDone;
+    private boolean moreAvailable;  // netIn holds records that did not fit into the last read
+    private boolean closed;
+
+    public TlsChannel(SocketChannel channel, SSLEngine engine, BufferPool pool, Tls tls) throws SSLException {
+        this.channel = channel;
+        this.engine = engine;
+        this.pool = pool;
+        this.tls = tls;
+        this.appBufferSize = engine.getSession().getApplicationBufferSize();
+        engine.beginHandshake();
+    }
+
+    public boolean handshakeDone() {
+        return handshakeDone;
+    }
+
+    // Encrypted output is waiting for the socket to become writable
+    public boolean hasPendingOutput() {
+        return netOut != null;
+    }
+
+    // Decrypted data is ready without another socket read (the last read's buffer was full)
+    public boolean moreAvailable() {
+        return moreAvailable;
+    }
+
+    // Send the first flight if this side speaks first (a client's hello); false if the socket
+    // did not take it all (see hasPendingOutput())
+    public boolean startHandshake() throws IOException {
+        if (engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_WRAP) return true;
+        return wrap(NO_DATA, 0, 0);
+    }
+
+    // Read and decrypt into dst; returns the number of application bytes added (0 while the
+    // handshake runs or a record is incomplete), -1 at end of stream
+    public int read(ByteBuffer dst) throws IOException {
+        int start = dst.position();
+        if (netIn == null) netIn = pool.acquire();
+        int n = moreAvailable ? 0 : channel.read(netIn);
+        unwrap(dst);
+        int got = dst.position() - start;
+        if (got > 0) return got;
+        return (n < 0 || engine.isInboundDone()) ? -1 : 0;
+    }
+
+    private void unwrap(ByteBuffer dst) throws IOException {
+        moreAvailable = false;
+        netIn.flip();
+        try {
+            while (true) {
+                SSLEngineResult.HandshakeStatus hs = engine.getHandshakeStatus();
+                if (hs == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runDelegatedTasks();
+                    continue;
+                }
+                if (hs == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    if (engine.isOutboundDone()) return;
+                    if (!wrap(NO_DATA, 0, 0)) return; // the socket is full; continue on OP_WRITE
+                    continue;
+                }
+                if (!netIn.hasRemaining()) return;
+                if (dst.remaining() < appBufferSize) {
+                    moreAvailable = true;
+                    return;
+                }
+                long t0 = System.nanoTime();
+                SSLEngineResult r;
+                try {
+                    r = engine.unwrap(netIn, dst);
+                } catch (SSLException e) {
+                    if (!handshakeDone) tls.onHandshakeFailed();
+                    throw e;
+                }
+                if (r.bytesProduced() > 0) tls.onCrypto(System.nanoTime() - t0, r.bytesProduced());
+                if (r.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) onHandshakeFinished();
+
+                switch (r.getStatus()) {
+                    case OK:
+                        break;
+                    case BUFFER_UNDERFLOW:
+                        // An incomplete record: wait for more bytes (a record always fits into netIn)
+                        return;
+                    case BUFFER_OVERFLOW:
+                        moreAvailable = true;
+                        return;
+                    case CLOSED:
+                        return;
+                }
+            }
+        } finally {
+            netIn.compact();
+            if (netIn.position() == 0) {
+                pool.release(netIn);
+                netIn = null;
+                moreAvailable = false;
+            }
+        }
+    }
+
+    // Encrypt as much of srcs as the socket takes; returns the application bytes consumed.
+    // Anything encrypted but not written stays in netOut (see hasPendingOutput()).
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        if (!handshakeDone || !flush()) return 0;
+        long before = remaining(srcs, offset, length);
+        while (remaining(srcs, offset, length) > 0 && wrap(srcs, offset, length)) {
+            // next batch of records
+        }
+        return before - remaining(srcs, offset, length);
+    }
+
+    // Write out encrypted bytes still pending; true if there are none left
+    public boolean flush() throws IOException {
+        if (netOut == null) return true;
+        channel.write(netOut);
+        if (netOut.hasRemaining()) return false;
+        pool.release(netOut);
+        netOut = null;
+        return true;
+    }
+
+    // Encrypt into one pooled buffer (handshake data, or as many records of application data
+    // as fit) and write it. Returns false if the socket did not take everything.
+    private boolean wrap(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        if (!flush()) return false;
+        netOut = pool.acquire();
+        long t0 = System.nanoTime();
+        SSLEngineResult r;
+        try {
+            // Fill the pooled buffer with as many records as fit before the write
+            do {
+                r = engine.wrap(srcs, offset, length, netOut);
+                if (r.bytesConsumed() > 0) tls.onCrypto(System.nanoTime() - t0, r.bytesConsumed());
+                if (r.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) onHandshakeFinished();
+                if (r.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) runDelegatedTasks();
+                t0 = System.nanoTime();
+            } while (r.getStatus() == SSLEngineResult.Status.OK && r.bytesConsumed() > 0
+                    && remaining(srcs, offset, length) > 0);
+        } catch (SSLException e) {
+            if (!handshakeDone) tls.onHandshakeFailed();
+            throw e;
+        }
+        if (r.getStatus() == SSLEngineResult.Status.CLOSED && netOut.position() == 0 && !closed) {
+            throw new SSLException("Engine closed");
+        }
+        netOut.flip();
+        return flush();
+    }
+
+    // Key exchange and certificate work; short with an EC key, so it runs right here
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private void onHandshakeFinished() {
+        if (handshakeDone) return;
+        handshakeDone = true;
+        tls.onHandshake(startedAt, engine.getSession().getCreationTime());
+    }
+
+    private static long remaining(ByteBuffer[] srcs, int offset, int length) {
+        long n = 0;
+        for (int i = offset; i < offset + length; i++) n += srcs[i].remaining();
+        return n;
+    }
+
+    // Send close_notify if the socket takes it right away, and give the buffers back.
+    // The channel itself is closed by the caller.
+    public void close() {
+        if (closed) return;
+        closed = true;
+        try {
+            engine.closeOutbound();
+            if (flush()) wrap(NO_DATA, 0, 0);
+        } catch (IOException ignored) {
+            // the connection is going away anyway
+        }
+        if (netIn != null) pool.release(netIn);
+        if (netOut != null) pool.release(netOut);
+        netIn = null;
+        netOut = null;
+    }
+}
@@ -0,0 +1,58 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+// TokenBucket: allows 'rate' messages per second on average and bursts of up to 'burst'.
+//
+// Instead of a token count and a refill timestamp (two fields that must change together,
+// so a lock), the whole state is one number: the time at which the bucket will be full
+// again ("theoretical arrival time" in the GCRA formulation). Taking a token moves it one
+// interval forward with a single compareAndSet; the bucket is empty when that time lies
+// more than burst intervals in the future. Reading threads never block each other.
+public final class TokenBucket {
+
+    private final long intervalNanos;   // time to refill one token
+    private final long burstNanos;      // how far ahead of now the full time may run
+    private final AtomicLong fullAt;    // System.nanoTime() at which the bucket is full again
+
+    // rate <= 0 means unlimited
+    public TokenBucket(double ratePerSecond, int burst) {
+        this.intervalNanos = (ratePerSecond <= 0) ? 0 : Math.max(1, (long) (1e9 / ratePerSecond));
+        this.burstNanos = intervalNanos * Math.max(1, burst);
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    public static TokenBucket unlimited() {
+        return new TokenBucket(0, 1);
+    }
+
+    public boolean isUnlimited() {
+        return intervalNanos == 0;
+    }
+
+    // Take a token now if there is one
+    public boolean tryAcquire() {
+        return reserve(0) == 0;
+    }
+
+    // Take a token, waiting for it at most maxWaitNanos. Returns how long the caller has to
+    // wait before using it (0 = right away), or -1 if that would be longer than maxWaitNanos;
+    // then nothing is taken.
+    public long reserve(long maxWaitNanos) {
+        if (intervalNanos == 0) return 0;
+        long now = System.nanoTime();
+        while (true) {
+            long current = fullAt.get();
+            long base = (current - now < 0) ? now : current;  // a full bucket does not bank more
+            long next = base + intervalNanos;
+            long wait = next - burstNanos - now;
+            if (wait > maxWaitNanos) return -1;
+            if (fullAt.compareAndSet(current, next)) return Math.max(0, wait);
+        }
+    }
+
+    // Tokens available right now (for display)
+    public int available() {
+        if (intervalNanos == 0) return Integer.MAX_VALUE;
+        long ahead = Math.max(0, fullAt.get() - System.nanoTime());
+        return (int) ((burstNanos - ahead) / intervalNanos);
+    }
+}
@@ -0,0 +1,66 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+// Fan-out to N in-memory sinks for chatbench.FanOutBenchmark
+public class FanOutFixture implements chatbench.FanOutBenchmark.Target {
+
+    // Counts bytes instead of keeping them, so the sink itself costs (almost) nothing
+    static final class CountingSink extends OutputStream {
+        long bytes;
+
+        @Override
+        public void write(int b) {
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytes += len;
+        }
+    }
+
+    private final CountingSink[] sinks;
+    private final boolean[] binary;
+
+    private int senderId = 7;            // not final: keeps javac from folding the lines into constants
+    private String text = "hello everyone, how is it going?";
+
+    public FanOutFixture(int recipients) {
+        sinks = new CountingSink[recipients];
+        binary = new boolean[recipients];
+        for (int i = 0; i < recipients; i++) {
+            sinks[i] = new CountingSink();
+            binary[i] = (i % 2 == 1); // every other recipient negotiated frames
+        }
+    }
+
+    public long encodePerRecipient() throws IOException {
+        for (CountingSink sink : sinks) {
+            sink.write(("Client " + senderId + ": " + text + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        return sinks[0].bytes;
+    }
+
+    public long encodeOnceTextOnly() throws IOException {
+        EncodedMessage m = EncodedMessage.of("Client " + senderId + ": " + text, Frame.CHAT, senderId, text);
+        for (CountingSink sink : sinks) {
+            m.retain();
+            m.writeTo(sink, false);
+            m.release();
+        }
+        m.release();
+        return sinks[0].bytes;
+    }
+
+    public long encodeOnceMixedProtocols() throws IOException {
+        EncodedMessage m = EncodedMessage.of("Client " + senderId + ": " + text, Frame.CHAT, senderId, text);
+        for (int i = 0; i < sinks.length; i++) {
+            m.retain();
+            m.writeTo(sinks[i], binary[i]);
+            m.release();
+        }
+        m.release();
+        return sinks[0].bytes;
+    }
+}
@@ -0,0 +1,25 @@
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+// Chat line formatting for chatbench.FormattingBenchmark
+public class FormattingFixture implements chatbench.FormattingBenchmark.Target {
+
+    private int clientId = 42;           // not final: keeps javac from folding the lines into constants
+    private String username = "alice";
+    private String text = "hello everyone, how is it going?";
+
+    private final SimpleDateFormat simpleDateFormat = new SimpleDateFormat("HH:mm:ss");
+    private final TimestampCache timestampCache = new TimestampCache("HH:mm:ss", 1000);
+
+    public String consoleServerLine() {
+        return "Client " + clientId + ": " + text;
+    }
+
+    public String guiLineSimpleDateFormat() {
+        return "[" + simpleDateFormat.format(new Date()) + "] Client " + clientId + " (" + username + "): " + text;
+    }
+
+    public String guiLineTimestampCache() {
+        return "[" + timestampCache.now() + "] Client " + clientId + " (" + username + "): " + text;
+    }
+}
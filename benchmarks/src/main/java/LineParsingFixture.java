@@ -0,0 +1,52 @@
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Inbound stream parsing for chatbench.LineParsingBenchmark
+public class LineParsingFixture implements chatbench.LineParsingBenchmark.Target {
+
+    private final byte[] lines;
+    private final byte[] frames;
+    private final ByteBuffer frameBuffer;
+
+    public LineParsingFixture(int messages) {
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        ByteArrayOutputStream bin = new ByteArrayOutputStream();
+        for (int i = 0; i < messages; i++) {
+            String msg = "message number " + i + " with some ordinary chat text";
+            text.writeBytes((msg + "\n").getBytes(StandardCharsets.UTF_8));
+            bin.writeBytes(Frame.encode(Frame.CHAT, 0, msg));
+        }
+        lines = text.toByteArray();
+        frames = bin.toByteArray();
+        frameBuffer = ByteBuffer.wrap(frames);
+    }
+
+    public void textLinesBufferedReader(Blackhole bh) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(lines), StandardCharsets.UTF_8));
+        String line;
+        while ((line = in.readLine()) != null) bh.consume(line);
+    }
+
+    public void framesFrameReader(Blackhole bh) throws IOException {
+        FrameReader in = new FrameReader(new ByteArrayInputStream(frames));
+        while (in.next()) bh.consume(in.payloadText());
+    }
+
+    public void framesInPlace(Blackhole bh) throws IOException {
+        int at = 0;
+        int limit = frameBuffer.limit();
+        int total;
+        while ((total = Frame.completeFrameLength(frameBuffer, at, limit)) > 0) {
+            bh.consume(Frame.type(frameBuffer, at));
+            bh.consume(Frame.payloadLength(frameBuffer, at));
+            at += total;
+        }
+    }
+}
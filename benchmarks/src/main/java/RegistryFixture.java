@@ -0,0 +1,55 @@
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// ClientRegistry and the old locked list for chatbench.RegistryBenchmark
+public class RegistryFixture implements chatbench.RegistryBenchmark.Target {
+
+    static final class Client {
+        final int id;
+
+        Client(int id) {
+            this.id = id;
+        }
+    }
+
+    private final ClientRegistry<Client> registry = new ClientRegistry<>();
+    private final List<Client> lockedList = new ArrayList<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    public RegistryFixture(int connected) {
+        for (int i = 0; i < connected; i++) {
+            Client c = new Client(nextId.incrementAndGet());
+            registry.add(c.id, c);
+            lockedList.add(c);
+        }
+    }
+
+    public void registryJoinLeave() {
+        Client c = new Client(nextId.incrementAndGet());
+        registry.add(c.id, c);
+        registry.remove(c.id, c);
+    }
+
+    public void registryBroadcast(Blackhole bh) {
+        for (Client c : registry.clients()) bh.consume(c.id);
+    }
+
+    public void lockedListJoinLeave() {
+        Client c = new Client(nextId.incrementAndGet());
+        synchronized (lockedList) {
+            lockedList.add(c);
+        }
+        synchronized (lockedList) {
+            lockedList.remove(c);
+        }
+    }
+
+    public void lockedListBroadcast(Blackhole bh) {
+        synchronized (lockedList) {
+            for (Client c : lockedList) bh.consume(c.id);
+        }
+    }
+}
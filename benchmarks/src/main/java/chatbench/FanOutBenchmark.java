@@ -0,0 +1,50 @@
+package chatbench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Broadcasting one message to N recipients that write into in-memory sinks: the old way
+// (format and encode the line once per recipient) against EncodedMessage (encode once per
+// protocol, share the bytes), with all-text and mixed text/binary recipients.
+// (Implemented by FanOutFixture.)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FanOutBenchmark {
+
+    public interface Target {
+        long encodePerRecipient() throws IOException;
+        long encodeOnceTextOnly() throws IOException;
+        long encodeOnceMixedProtocols() throws IOException;
+    }
+
+    @Param({"1", "10", "100", "1000"})
+    public int recipients;
+
+    private Target target;
+
+    @Setup
+    public void setUp() {
+        target = Fixtures.create("FanOutFixture", Target.class, recipients);
+    }
+
+    @Benchmark
+    public long encodePerRecipient() throws IOException {
+        return target.encodePerRecipient();
+    }
+
+    @Benchmark
+    public long encodeOnceTextOnly() throws IOException {
+        return target.encodeOnceTextOnly();
+    }
+
+    @Benchmark
+    public long encodeOnceMixedProtocols() throws IOException {
+        return target.encodeOnceMixedProtocols();
+    }
+}
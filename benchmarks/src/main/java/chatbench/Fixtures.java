@@ -0,0 +1,24 @@
+package chatbench;
+
+// The chat classes live in the default package, which a named package cannot import, and
+// JMH refuses benchmarks in the default package. So each benchmark declares what it needs
+// as a nested Target interface, a default-package fixture (next to this package) implements
+// it against the real classes, and the benchmark loads the fixture once per trial here.
+// Only setup uses reflection; the measured calls are plain interface calls.
+final class Fixtures {
+
+    private Fixtures() {}
+
+    static <T> T create(String fixtureClass, Class<T> target, Object... args) {
+        try {
+            Class<?>[] types = new Class<?>[args.length];
+            for (int i = 0; i < args.length; i++) {
+                types[i] = (args[i] instanceof Integer) ? int.class : args[i].getClass();
+            }
+            Object fixture = Class.forName(fixtureClass).getConstructor(types).newInstance(args);
+            return target.cast(fixture);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create benchmark fixture " + fixtureClass, e);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package chatbench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Building the line a chat message is sent as: ChatServer's "Client N: text" and
+// ChatServerGUI's "[HH:mm:ss] Client N (user): text", with the old SimpleDateFormat and
+// with TimestampCache. (Implemented by FormattingFixture.)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FormattingBenchmark {
+
+    public interface Target {
+        String consoleServerLine();
+        String guiLineSimpleDateFormat();
+        String guiLineTimestampCache();
+    }
+
+    private Target target;
+
+    @Setup
+    public void setUp() {
+        target = Fixtures.create("FormattingFixture", Target.class);
+    }
+
+    @Benchmark
+    public String consoleServerLine() {
+        return target.consoleServerLine();
+    }
+
+    @Benchmark
+    public String guiLineSimpleDateFormat() {
+        return target.guiLineSimpleDateFormat();
+    }
+
+    @Benchmark
+    public String guiLineTimestampCache() {
+        return target.guiLineTimestampCache();
+    }
+}
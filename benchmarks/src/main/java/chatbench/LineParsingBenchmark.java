@@ -0,0 +1,47 @@
+package chatbench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Splitting 1000 inbound chat messages out of a received byte stream: text lines through
+// BufferedReader (ChatServer), frames through FrameReader (blocking servers) and frames
+// parsed in place in a ByteBuffer (NioChatServer). (Implemented by LineParsingFixture.)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LineParsingBenchmark {
+
+    public interface Target {
+        void textLinesBufferedReader(Blackhole bh) throws IOException;
+        void framesFrameReader(Blackhole bh) throws IOException;
+        void framesInPlace(Blackhole bh) throws IOException;
+    }
+
+    private Target target;
+
+    @Setup
+    public void setUp() {
+        target = Fixtures.create("LineParsingFixture", Target.class, 1000);
+    }
+
+    @Benchmark
+    public void textLinesBufferedReader(Blackhole bh) throws IOException {
+        target.textLinesBufferedReader(bh);
+    }
+
+    @Benchmark
+    public void framesFrameReader(Blackhole bh) throws IOException {
+        target.framesFrameReader(bh);
+    }
+
+    @Benchmark
+    public void framesInPlace(Blackhole bh) throws IOException {
+        target.framesInPlace(bh);
+    }
+}
@@ -0,0 +1,66 @@
+package chatbench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+// Join/leave churn against broadcast iteration on the client registry, run concurrently:
+// ClientRegistry (ConcurrentHashMap) against the synchronized ArrayList the servers used
+// before, which every broadcast had to lock for the whole fan-out.
+// (Implemented by RegistryFixture.)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegistryBenchmark {
+
+    public interface Target {
+        void registryJoinLeave();
+        void registryBroadcast(Blackhole bh);
+        void lockedListJoinLeave();
+        void lockedListBroadcast(Blackhole bh);
+    }
+
+    @State(Scope.Group)
+    public static class Registries {
+        @Param({"100", "1000"})
+        public int connected;
+
+        Target target;
+
+        @Setup
+        public void setUp() {
+            target = Fixtures.create("RegistryFixture", Target.class, connected);
+        }
+    }
+
+    @Benchmark
+    @Group("registry")
+    @GroupThreads(2)
+    public void registryJoinLeave(Registries r) {
+        r.target.registryJoinLeave();
+    }
+
+    @Benchmark
+    @Group("registry")
+    @GroupThreads(2)
+    public void registryBroadcast(Registries r, Blackhole bh) {
+        r.target.registryBroadcast(bh);
+    }
+
+    @Benchmark
+    @Group("lockedList")
+    @GroupThreads(2)
+    public void lockedListJoinLeave(Registries r) {
+        r.target.lockedListJoinLeave();
+    }
+
+    @Benchmark
+    @Group("lockedList")
+    @GroupThreads(2)
+    public void lockedListBroadcast(Registries r, Blackhole bh) {
+        r.target.lockedListBroadcast(bh);
+    }
+}